@@ -0,0 +1,301 @@
+
+
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.ImageIO;
+import com.kreative.ksfl.*;
+import com.kreative.rsrc.*;
+
+/*
+ * Converts PICT, snd, and stamp resources in bulk. Directories are walked
+ * recursively; resources are read on the main thread, and decoding and
+ * encoding are done on a fixed pool of worker threads. The number of items
+ * waiting or in progress is bounded, so the walker blocks when the workers
+ * fall behind instead of loading the whole archive into memory.
+ */
+public class BatchConvert {
+	public static void main(String[] args) {
+		boolean picts = false;
+		boolean snds = false;
+		boolean stamps = false;
+		String imgFmt = "png";
+		SoundFormat sndFmt = SoundFormat.WAV;
+		int org = 16000;
+		boolean trns = false;
+		int threads = Runtime.getRuntime().availableProcessors();
+		List<File> files = new ArrayList<File>();
+		for (String arg : args) {
+			if (arg.equalsIgnoreCase("-pict")) picts = true;
+			else if (arg.equalsIgnoreCase("-snd")) snds = true;
+			else if (arg.equalsIgnoreCase("-stamps")) stamps = true;
+			else if (arg.equalsIgnoreCase("-png")) imgFmt = "png";
+			else if (arg.equalsIgnoreCase("-jpg")) imgFmt = "jpg";
+			else if (arg.equalsIgnoreCase("-jpeg")) imgFmt = "jpg";
+			else if (arg.equalsIgnoreCase("-gif")) imgFmt = "gif";
+			else if (arg.equalsIgnoreCase("-bmp")) imgFmt = "bmp";
+			else if (arg.equalsIgnoreCase("-wbmp")) imgFmt = "wbmp";
+			else if (arg.equalsIgnoreCase("-wav") || arg.equalsIgnoreCase("-wave")) sndFmt = SoundFormat.WAV;
+			else if (arg.equalsIgnoreCase("-aif") || arg.equalsIgnoreCase("-aiff")) sndFmt = SoundFormat.AIFF;
+			else if (arg.equalsIgnoreCase("-c")) org = 16000;
+			else if (arg.equalsIgnoreCase("-o")) org = 18000;
+			else if (arg.equalsIgnoreCase("-w")) trns = false;
+			else if (arg.equalsIgnoreCase("-t")) trns = true;
+			else if (arg.toLowerCase().startsWith("-j")) {
+				try { threads = Math.max(1, Integer.parseInt(arg.substring(2))); }
+				catch (NumberFormatException nfe) { System.err.println("Invalid thread count: " + arg); }
+			}
+			else files.add(new File(arg));
+		}
+		if (!(picts || snds || stamps)) picts = snds = true;
+		BatchConvert bc = new BatchConvert(threads, threads * 4);
+		bc.picts = picts;
+		bc.snds = snds;
+		bc.stamps = stamps;
+		bc.imgFmt = imgFmt;
+		bc.sndFmt = sndFmt;
+		bc.org = org;
+		bc.trns = trns;
+		for (File f : files) bc.walk(f);
+		bc.finish();
+		bc.printSummary(System.out);
+		System.exit(0);
+	}
+	
+	private static enum SoundFormat {
+		WAV, AIFF;
+		public boolean write(SoundResource r, FileOutputStream out) throws IOException {
+			switch (this) {
+			case WAV: return r.writeWav(out.getChannel());
+			case AIFF: return r.writeAiff(out);
+			default: return false;
+			}
+		}
+	}
+	
+	private boolean picts = true;
+	private boolean snds = true;
+	private boolean stamps = false;
+	private String imgFmt = "png";
+	private SoundFormat sndFmt = SoundFormat.WAV;
+	private int org = 16000;
+	private boolean trns = false;
+	
+	private final ExecutorService pool;
+	private final Semaphore inFlight;
+	private final int threads;
+	private final AtomicInteger filesScanned = new AtomicInteger();
+	private final AtomicInteger itemsDone = new AtomicInteger();
+	private final AtomicInteger itemsUnconvertible = new AtomicInteger();
+	private final AtomicInteger itemsFailed = new AtomicInteger();
+	private final AtomicInteger filesFailed = new AtomicInteger();
+	private long[] latencies = new long[1024];
+	private int latencyCount = 0;
+	private long startTime;
+	private long endTime;
+	
+	public BatchConvert(int threads, int maxInFlight) {
+		this.threads = threads;
+		this.pool = Executors.newFixedThreadPool(threads);
+		this.inFlight = new Semaphore(maxInFlight);
+		this.startTime = System.nanoTime();
+	}
+	
+	public void walk(File f) {
+		if (f.isDirectory()) {
+			String[] names = f.list();
+			if (names == null) return;
+			Arrays.sort(names);
+			for (String name : names) {
+				if (!name.startsWith(".")) walk(new File(f, name));
+			}
+		} else if (f.isFile()) {
+			File rf = getResourceFork(f);
+			if (rf == null) return;
+			filesScanned.incrementAndGet();
+			try {
+				MacResourceProvider rp = new MacResourceFile(rf, "r", MacResourceFile.CREATE_NEVER);
+				try {
+					if (stamps && rp.contains(KSFLConstants.PICT, (short)(org + 1))) {
+						submit(new StampTask(f, rf));
+					}
+					if (picts) {
+						for (short id : rp.getIDs(KSFLConstants.PICT)) {
+							PictureResource pict = rp.getTyped(KSFLConstants.PICT, id, PictureResource.class);
+							submit(new PictureTask(f, pict));
+						}
+					}
+					if (snds) {
+						for (short id : rp.getIDs(KSFLConstants.snd)) {
+							SoundResource rsnd = rp.getTyped(KSFLConstants.snd, id, SoundResource.class);
+							submit(new SoundTask(f, rsnd));
+						}
+					}
+				} finally {
+					rp.close();
+				}
+			} catch (Exception e) {
+				filesFailed.incrementAndGet();
+				System.out.println(f.getPath() + "... CANNOT READ (" + e + ")");
+			}
+		}
+	}
+	
+	private static File getResourceFork(File f) {
+		File rf = new File(new File(f, "..namedfork"), "rsrc");
+		if (rf.isFile() && rf.length() > 0) return rf;
+		if (f.getName().toLowerCase().endsWith(".rsrc") && f.length() > 0) return f;
+		return null;
+	}
+	
+	private void submit(final Task t) throws InterruptedException {
+		inFlight.acquire();
+		try {
+			pool.execute(new Runnable() {
+				public void run() {
+					long t0 = System.nanoTime();
+					String result;
+					try {
+						if (t.convert()) {
+							itemsDone.incrementAndGet();
+							result = "done";
+						} else {
+							itemsUnconvertible.incrementAndGet();
+							result = "CANNOT CONVERT";
+						}
+					} catch (Exception e) {
+						itemsFailed.incrementAndGet();
+						result = "FAILED (" + e + ")";
+					} finally {
+						recordLatency(System.nanoTime() - t0);
+						inFlight.release();
+					}
+					System.out.println(t.describe() + "... " + result);
+				}
+			});
+		} catch (RejectedExecutionException ree) {
+			inFlight.release();
+			throw ree;
+		}
+	}
+	
+	public void finish() {
+		pool.shutdown();
+		try {
+			while (!pool.awaitTermination(1, TimeUnit.SECONDS));
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+		endTime = System.nanoTime();
+	}
+	
+	private synchronized void recordLatency(long nanos) {
+		if (latencyCount >= latencies.length) {
+			latencies = Arrays.copyOf(latencies, latencies.length * 2);
+		}
+		latencies[latencyCount++] = nanos;
+	}
+	
+	public synchronized void printSummary(PrintStream out) {
+		int items = latencyCount;
+		double seconds = (endTime - startTime) / 1e9;
+		out.println();
+		out.println("Files:      " + filesScanned.get() + " scanned, " + filesFailed.get() + " unreadable");
+		out.println("Items:      " + items + " total, " + itemsDone.get() + " done, "
+				+ itemsUnconvertible.get() + " cannot convert, " + itemsFailed.get() + " failed");
+		out.println("Threads:    " + threads);
+		out.println("Elapsed:    " + String.format("%.3f", seconds) + " s");
+		out.println("Throughput: " + String.format("%.1f", (seconds > 0) ? (items / seconds) : 0.0) + " items/s");
+		if (items > 0) {
+			long[] sorted = Arrays.copyOf(latencies, items);
+			Arrays.sort(sorted);
+			out.println("Latency:    "
+					+ "min " + ms(sorted[0])
+					+ ", p50 " + ms(percentile(sorted, 50))
+					+ ", p90 " + ms(percentile(sorted, 90))
+					+ ", p99 " + ms(percentile(sorted, 99))
+					+ ", max " + ms(sorted[items - 1]));
+		}
+	}
+	
+	private static long percentile(long[] sorted, int p) {
+		int i = (int)Math.ceil(sorted.length * p / 100.0) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, i))];
+	}
+	
+	private static String ms(long nanos) {
+		return String.format("%.2f", nanos / 1e6) + " ms";
+	}
+	
+	private static String outputName(File bf, MacResource r, String ext) {
+		return bf.getName() + " #" + r.id + ((r.name == null || r.name.trim().length() == 0) ? "" : (" " + r.name.trim().replace('/', ':'))) + "." + ext;
+	}
+	
+	private static abstract class Task {
+		public abstract String describe();
+		public abstract boolean convert() throws Exception;
+	}
+	
+	private class PictureTask extends Task {
+		private final File bf;
+		private final PictureResource pict;
+		public PictureTask(File bf, PictureResource pict) {
+			this.bf = bf;
+			this.pict = pict;
+		}
+		public String describe() {
+			return bf.getPath() + " PICT #" + pict.id + ((pict.name == null || pict.name.trim().length() == 0) ? "" : (" " + pict.name.trim()));
+		}
+		public boolean convert() throws Exception {
+			BufferedImage image = (BufferedImage)pict.toImage();
+			if (image == null) return false;
+			File outf = new File(bf.getParentFile(), outputName(bf, pict, imgFmt));
+			return ImageIO.write(image, imgFmt, outf);
+		}
+	}
+	
+	private class SoundTask extends Task {
+		private final File bf;
+		private final SoundResource rsnd;
+		public SoundTask(File bf, SoundResource rsnd) {
+			this.bf = bf;
+			this.rsnd = rsnd;
+		}
+		public String describe() {
+			return bf.getPath() + " snd #" + rsnd.id + ((rsnd.name == null || rsnd.name.trim().length() == 0) ? "" : (" " + rsnd.name.trim())) + " (" + rsnd.getCodecName() + ")";
+		}
+		public boolean convert() throws Exception {
+			File outf = new File(bf.getParentFile(), outputName(bf, rsnd, sndFmt.name().toLowerCase()));
+			FileOutputStream out = new FileOutputStream(outf);
+			boolean written = false;
+			try {
+				written = sndFmt.write(rsnd, out);
+			} finally {
+				out.close();
+				if (!written) outf.delete();
+			}
+			return written;
+		}
+	}
+	
+	private class StampTask extends Task {
+		private final File bf;
+		private final File rf;
+		public StampTask(File bf, File rf) {
+			this.bf = bf;
+			this.rf = rf;
+		}
+		public String describe() {
+			return bf.getPath() + " stamps";
+		}
+		public boolean convert() throws Exception {
+			switch (ConvertStamps.convert(bf, rf, org, trns, imgFmt, false, true, false)) {
+			case ConvertStamps.STAMPS_DONE: return true;
+			case ConvertStamps.STAMPS_CANNOT_WRITE: throw new IOException("cannot write");
+			default: return false;
+			}
+		}
+	}
+}
@@ -25,7 +25,7 @@ public class ConvertPictures {
 				MacResourceProvider rp = new MacResourceFile(f, "r", MacResourceFile.CREATE_NEVER);
 				short[] ids = rp.getIDs(KSFLConstants.PICT);
 				for (short id : ids) {
-					PictureResource pict = rp.get(KSFLConstants.PICT, id).shallowRecast(PictureResource.class);
+					PictureResource pict = rp.getTyped(KSFLConstants.PICT, id, PictureResource.class);
 					System.out.print("PICT #"+id+((pict.name == null || pict.name.trim().length() == 0) ? "" : (" "+pict.name.trim()))+"...");
 					BufferedImage image = (BufferedImage)pict.toImage();
 					if (image == null) {
@@ -40,63 +40,10 @@ public class ConvertStamps {
 			else try {
 				File bf = new File(arg);
 				File rf = new File(new File(bf, "..namedfork"), "rsrc");
-				MacResourceProvider rp = new MacResourceFile(rf, "r", MacResourceFile.CREATE_NEVER);
-				boolean stm = rp.contains(KSFLConstants.PICT, (short)(org +  01));
-				boolean anm = rp.contains(KSFLConstants.PICT, (short)(org +  51))
-				           && rp.contains(KSFLConstants.PICT, (short)(org + 101))
-				           && rp.contains(KSFLConstants.PICT, (short)(org + 151));
-				if (stm) {
-					System.out.print(arg + "...");
-					int w = 32 * 14 * 8;
-					int h = (anm ? (32 * 4) : 32);
-					int t = BufferedImage.TYPE_INT_ARGB;
-					BufferedImage img = new BufferedImage(w, h, t);
-					int[] rgb = new int[w * h];
-					for (int i = 0; i < rgb.length; i++) rgb[i] = (trns ? 0 : -1);
-					img.setRGB(0, 0, w, h, rgb, 0, w);
-					rgb = new int[31 * 31];
-					for (int y = 0, f = 0; f < (anm ? 4 : 1); f++, y += 32) {
-						for (int x = 0, p = 0; p < 8; p++) {
-							PictureResource pict = rp.get(KSFLConstants.PICT, (short)(org + 50*f + p + 1)).shallowRecast(PictureResource.class);
-							BufferedImage image = (BufferedImage)pict.toImage();
-							for (int i = 0; i < 14; i++, x += 32) {
-								image.getRGB(i * 32, 0, 31, 31, rgb, 0, 31);
-								if (trns) makeTransparent(rgb);
-								img.setRGB(x, y, 31, 31, rgb, 0, 31);
-							}
-						}
-					}
-					try {
-						if (dimg) {
-							File out = new File(bf.getParentFile(), bf.getName() + ".d");
-							out.mkdir();
-							int[] irgb = new int[32 * h];
-							BufferedImage iimg = new BufferedImage(32, h, t);
-							for (int i = 0, n = 14 * 8, x = 0; i < n; i++, x += 32) {
-								img.getRGB(x, 0, 32, h, irgb, 0, 32);
-								iimg.setRGB(0, 0, 32, h, irgb, 0, 32);
-								String iname = "000" + i;
-								iname = iname.substring(iname.length() - 3);
-								File iout = new File(out, iname + "." + fmt);
-								ImageIO.write(iimg, fmt, iout);
-							}
-						}
-						if (simg) {
-							File out = new File(bf.getParentFile(), bf.getName() + "." + fmt);
-							ImageIO.write(img, fmt, out);
-						}
-						if (spnx) {
-							File out = new File(bf.getParentFile(), bf.getName() + ".spnx");
-							PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(out), "UTF-8"), true);
-							printSPNX(pw, bf.getName(), anm);
-							pw.close();
-						}
-						System.out.println(" done");
-					} catch (IOException ioe) {
-						System.out.println(" CANNOT WRITE");
-					}
+				switch (convert(bf, rf, org, trns, fmt, dimg, simg, spnx)) {
+				case STAMPS_DONE: System.out.println(arg + "... done"); break;
+				case STAMPS_CANNOT_WRITE: System.out.println(arg + "... CANNOT WRITE"); break;
 				}
-				rp.close();
 			} catch (Exception e) {
 				e.printStackTrace();
 			}
@@ -104,6 +51,71 @@ public class ConvertStamps {
 		System.exit(0);
 	}
 	
+	static final int NOT_STAMPS = 0;
+	static final int STAMPS_DONE = 1;
+	static final int STAMPS_CANNOT_WRITE = -1;
+	
+	static int convert(File bf, File rf, int org, boolean trns, String fmt, boolean dimg, boolean simg, boolean spnx) throws IOException {
+		MacResourceProvider rp = new MacResourceFile(rf, "r", MacResourceFile.CREATE_NEVER);
+		boolean stm = rp.contains(KSFLConstants.PICT, (short)(org +  01));
+		boolean anm = rp.contains(KSFLConstants.PICT, (short)(org +  51))
+		           && rp.contains(KSFLConstants.PICT, (short)(org + 101))
+		           && rp.contains(KSFLConstants.PICT, (short)(org + 151));
+		int status = NOT_STAMPS;
+		if (stm) {
+			int w = 32 * 14 * 8;
+			int h = (anm ? (32 * 4) : 32);
+			int t = BufferedImage.TYPE_INT_ARGB;
+			BufferedImage img = new BufferedImage(w, h, t);
+			int[] rgb = new int[w * h];
+			for (int i = 0; i < rgb.length; i++) rgb[i] = (trns ? 0 : -1);
+			img.setRGB(0, 0, w, h, rgb, 0, w);
+			rgb = new int[31 * 31];
+			for (int y = 0, f = 0; f < (anm ? 4 : 1); f++, y += 32) {
+				for (int x = 0, p = 0; p < 8; p++) {
+					PictureResource pict = rp.getTyped(KSFLConstants.PICT, (short)(org + 50*f + p + 1), PictureResource.class);
+					BufferedImage image = (BufferedImage)pict.toImage();
+					for (int i = 0; i < 14; i++, x += 32) {
+						image.getRGB(i * 32, 0, 31, 31, rgb, 0, 31);
+						if (trns) makeTransparent(rgb);
+						img.setRGB(x, y, 31, 31, rgb, 0, 31);
+					}
+				}
+			}
+			try {
+				if (dimg) {
+					File out = new File(bf.getParentFile(), bf.getName() + ".d");
+					out.mkdir();
+					int[] irgb = new int[32 * h];
+					BufferedImage iimg = new BufferedImage(32, h, t);
+					for (int i = 0, n = 14 * 8, x = 0; i < n; i++, x += 32) {
+						img.getRGB(x, 0, 32, h, irgb, 0, 32);
+						iimg.setRGB(0, 0, 32, h, irgb, 0, 32);
+						String iname = "000" + i;
+						iname = iname.substring(iname.length() - 3);
+						File iout = new File(out, iname + "." + fmt);
+						ImageIO.write(iimg, fmt, iout);
+					}
+				}
+				if (simg) {
+					File out = new File(bf.getParentFile(), bf.getName() + "." + fmt);
+					ImageIO.write(img, fmt, out);
+				}
+				if (spnx) {
+					File out = new File(bf.getParentFile(), bf.getName() + ".spnx");
+					PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(out), "UTF-8"), true);
+					printSPNX(pw, bf.getName(), anm);
+					pw.close();
+				}
+				status = STAMPS_DONE;
+			} catch (IOException ioe) {
+				status = STAMPS_CANNOT_WRITE;
+			}
+		}
+		rp.close();
+		return status;
+	}
+	
 	private static void makeTransparent(int[] src) {
 		int[] buf = new int[33 * 33];
 		for (int i = 0; i < buf.length; i++) buf[i] = -1;
@@ -17,7 +17,7 @@ public class PlaySounds {
 				MacResourceProvider rp = new MacResourceFile(f, "r", MacResourceFile.CREATE_NEVER);
 				short[] ids = rp.getIDs(KSFLConstants.snd);
 				for (short id : ids) {
-					SoundResource rsnd = rp.get(KSFLConstants.snd, id).shallowRecast(SoundResource.class);
+					SoundResource rsnd = rp.getTyped(KSFLConstants.snd, id, SoundResource.class);
 					System.out.print("snd #"+id+((rsnd.name == null || rsnd.name.trim().length() == 0) ? "" : (" "+rsnd.name.trim()))+" ("+rsnd.getCodecName()+")...");
 					byte[] stuff = fmt.convert(rsnd);
 					if (stuff == null) {
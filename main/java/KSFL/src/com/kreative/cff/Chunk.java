@@ -27,6 +27,8 @@
 
 package com.kreative.cff;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.Arrays;
 import com.kreative.ksfl.KSFLUtilities;
@@ -36,22 +38,40 @@ public class Chunk implements Cloneable, Serializable {
 	
 	private Header header;
 	private byte[] data;
+	// the header as read, until a Header is asked for
+	private transient HeaderCodec.Record record;
 	
 	public Chunk(Header header, byte[] data) {
 		this.header = header;
 		this.data = data;
 	}
 	
+	public Chunk(HeaderCodec.Record record, byte[] data) {
+		this.header = null;
+		this.data = data;
+		this.record = record;
+	}
+	
 	public Chunk clone() {
-		return new Chunk(header.clone(), KSFLUtilities.copy(data));
+		return new Chunk(getHeader().clone(), KSFLUtilities.copy(data));
 	}
 	
 	public Header getHeader() {
+		if (header == null && record != null) {
+			header = record.toHeader();
+			record = null;
+		}
 		return header;
 	}
 	
 	public void setHeader(Header header) {
 		this.header = header;
+		this.record = null;
+	}
+	
+	// the header as read, if no Header has been created from it yet
+	/*package*/ HeaderCodec.Record record() {
+		return record;
 	}
 	
 	public byte[] getData() {
@@ -65,12 +85,17 @@ public class Chunk implements Cloneable, Serializable {
 	public boolean equals(Object o) {
 		return (
 				o instanceof Chunk
-				&& ((Chunk)o).header.equals(header)
+				&& ((Chunk)o).getHeader().equals(getHeader())
 				&& Arrays.equals(((Chunk)o).data, data)
 		);
 	}
 	
 	public int hashCode() {
-		return header.hashCode() ^ Arrays.hashCode(data);
+		return getHeader().hashCode() ^ Arrays.hashCode(data);
+	}
+	
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		getHeader();
+		out.defaultWriteObject();
 	}
 }
@@ -1,7 +1,14 @@
 package com.kreative.cff;
 
 import java.io.*;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Vector;
+import com.kreative.ksfl.AtomicFileWriter;
 
 public class ChunkFileEditor {
 	public static final int CREATE_NEVER = 0;
@@ -11,6 +18,67 @@ public class ChunkFileEditor {
 	private ChunkFileSpec spec;
 	private ChunkFile cf;
 	private File f;
+	private boolean transactional;
+	
+	/*
+	 * Index of chunks by (character type, item type, ID), kept up to date by
+	 * the methods of this class. A field missing from the chunk headers is
+	 * indexed as zero; if the ID is missing, the index of the chunk among the
+	 * chunks of the same type is used instead, the same as getChunkIndex.
+	 * If chunk headers differ in which of these fields they contain, lookups
+	 * fall back to a linear search.
+	 */
+	private static final class ChunkKey {
+		private final long ctype;
+		private final long itype;
+		private final long id;
+		public ChunkKey(long ctype, long itype, long id) {
+			this.ctype = ctype;
+			this.itype = itype;
+			this.id = id;
+		}
+		public boolean equals(Object o) {
+			if (o instanceof ChunkKey) {
+				ChunkKey k = (ChunkKey)o;
+				return ctype == k.ctype && itype == k.itype && id == k.id;
+			}
+			return false;
+		}
+		public int hashCode() {
+			long h = (ctype * 31 + itype) * 31 + id;
+			return (int)(h ^ (h >>> 32));
+		}
+	}
+	
+	private boolean indexed = false;
+	private int indexedSize = 0;
+	private Map<ChunkKey,Integer> index = null;
+	private Map<ChunkKey,Long> localCounts = null;
+	private boolean hasCType, hasIType, hasID;
+	
+	/*
+	 * The layout of the file as last read or written, one extent per chunk.
+	 * flush() writes a chunk again only if it has been replaced, its data
+	 * array has been replaced, its header fields have changed, or it has
+	 * been marked dirty. As long as no chunk has changed length, changed
+	 * chunks are written in place, chunks added to the end are appended,
+	 * chunks removed from the end are truncated, and the file header is
+	 * patched if its count or size has changed. Otherwise the whole file
+	 * is written again.
+	 */
+	private static final class Extent {
+		private Chunk chunk;
+		private byte[] data;
+		private HeaderCodec.Record record;
+		private Header header;
+		private long offset;
+		private long length;
+		private boolean dirty;
+	}
+	
+	private List<Extent> extents = null;
+	private byte[] fileHeaderBytes = null;
+	private long fileLength = -1;
 	
 	public ChunkFileEditor(ChunkFileSpec spec) {
 		this.spec = spec;
@@ -25,13 +93,36 @@ public class ChunkFileEditor {
 	}
 	
 	public ChunkFileEditor(ChunkFileSpec spec, File f, int create) throws IOException {
+		this(spec, f, create, false);
+	}
+	
+	public ChunkFileEditor(ChunkFileSpec spec, File f, int create, boolean verifyChecksums) throws IOException {
+		this(spec, f, create, verifyChecksums, false);
+	}
+	
+	/*
+	 * If transactional is true, the file is never modified in place.
+	 * flush() and close() write the whole file to a temporary file in the
+	 * same directory, force it to disk, and rename it over the original,
+	 * so a crash leaves either the old file or the new one. Nothing is
+	 * written if nothing has changed.
+	 */
+	public ChunkFileEditor(ChunkFileSpec spec, File f, int create, boolean verifyChecksums, boolean transactional) throws IOException {
 		this.spec = spec;
+		this.transactional = transactional;
 		if ((create == CREATE_ALWAYS) || ((create == CREATE_IF_EMPTY) && ((!f.exists()) || (f.length() == 0)))) {
 			this.cf = new ChunkFile(spec.fileHeaderSpec().createHeader());
+			this.f = f;
 		} else {
-			this.cf = spec.readChunkFile(new DataInputStream(new FileInputStream(f)));
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+			try {
+				this.cf = spec.readChunkFile(in, verifyChecksums);
+			} finally {
+				in.close();
+			}
+			this.f = f;
+			recordLayout();
 		}
-		this.f = f;
 	}
 	
 	public ChunkFileSpec getChunkFileSpec() {
@@ -58,27 +149,196 @@ public class ChunkFileEditor {
 	}
 	
 	public synchronized void flush() throws IOException {
-		if (f != null) {
-			FileOutputStream fout = new FileOutputStream(f);
-			DataOutputStream dout = new DataOutputStream(fout);
+		if (f != null) write();
+	}
+	
+	public synchronized void close() throws IOException {
+		if (f != null) write();
+	}
+	
+	// must be called if the data of a chunk is modified in place,
+	// so that flush() knows to write it
+	public synchronized void markDirty(int index) {
+		if (extents != null && index >= 0 && index < extents.size()) {
+			extents.get(index).dirty = true;
+		}
+	}
+	
+	public boolean isTransactional() {
+		return transactional;
+	}
+	
+	private void write() throws IOException {
+		if (transactional) {
+			if (extents == null || !f.isFile() || f.length() != fileLength || !unchanged()) {
+				writeAtomic();
+			}
+		} else {
+			if (extents == null || !f.isFile() || f.length() != fileLength || !writeChanges()) {
+				writeAll();
+			}
+		}
+	}
+	
+	private void writeAll() throws IOException {
+		DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+		try {
 			spec.writeChunkFile(dout, cf);
 			dout.flush();
-			fout.flush();
+		} finally {
 			dout.close();
-			fout.close();
 		}
+		recordLayout();
 	}
 	
-	public synchronized void close() throws IOException {
-		if (f != null) {
-			FileOutputStream fout = new FileOutputStream(f);
-			DataOutputStream dout = new DataOutputStream(fout);
+	private void writeAtomic() throws IOException {
+		AtomicFileWriter w = new AtomicFileWriter(f);
+		try {
+			DataOutputStream dout = new DataOutputStream(w.getOutputStream());
 			spec.writeChunkFile(dout, cf);
 			dout.flush();
-			fout.flush();
-			dout.close();
-			fout.close();
+			w.commit();
+		} finally {
+			w.abort();
+		}
+		recordLayout();
+	}
+	
+	private boolean unchanged() throws IOException {
+		int n = cf.size();
+		if (n != extents.size()) return false;
+		for (int i = 0; i < n; i++) {
+			if (changed(cf.get(i), extents.get(i))) return false;
+		}
+		spec.updateFileHeader(cf);
+		return Arrays.equals(encodeFileHeader(), fileHeaderBytes);
+	}
+	
+	// returns false, having written nothing, if chunks would have to move
+	private boolean writeChanges() throws IOException {
+		int n = cf.size();
+		int m = extents.size();
+		int common = Math.min(n, m);
+		for (int i = 0; i < common; i++) {
+			if (chunkLength(cf.get(i)) != extents.get(i).length) return false;
+		}
+		spec.updateFileHeader(cf);
+		byte[] fh = encodeFileHeader();
+		if (fh.length != fileHeaderBytes.length) return false;
+		boolean fhChanged = !Arrays.equals(fh, fileHeaderBytes);
+		boolean chunksChanged = (n != m);
+		for (int i = 0; i < common && !chunksChanged; i++) {
+			chunksChanged = changed(cf.get(i), extents.get(i));
+		}
+		if (!(fhChanged || chunksChanged)) return true;
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			for (int i = 0; i < common; i++) {
+				Chunk ch = cf.get(i);
+				Extent e = extents.get(i);
+				if (changed(ch, e)) {
+					writeChunks(raf, e.offset, i, i + 1);
+					snapshot(e, ch, e.offset);
+				}
+			}
+			// new chunks are written before the file header that counts them,
+			// and removed chunks are truncated after it
+			long end = (common > 0) ? (extents.get(common - 1).offset + extents.get(common - 1).length) : fh.length;
+			if (n > m) {
+				writeChunks(raf, end, m, n);
+				for (int i = m; i < n; i++) {
+					Extent e = new Extent();
+					snapshot(e, cf.get(i), end);
+					end += e.length;
+					extents.add(e);
+				}
+			}
+			if (fhChanged) {
+				raf.seek(0);
+				raf.write(fh);
+			}
+			if (n < m) {
+				extents.subList(n, m).clear();
+				raf.setLength(end);
+			}
+			fileHeaderBytes = fh;
+			fileLength = end;
+		} finally {
+			raf.close();
 		}
+		return true;
+	}
+	
+	private void writeChunks(RandomAccessFile raf, long offset, int from, int to) throws IOException {
+		raf.seek(offset);
+		// not closed; that would close raf
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(raf.getChannel())));
+		for (int i = from; i < to; i++) spec.chunkHeaderSpec().writeChunk(out, cf.get(i));
+		out.flush();
+	}
+	
+	private void recordLayout() throws IOException {
+		if (spec.fileHeaderSpec().codec().segmentCount() > 1) {
+			// the file header has data of its own
+			extents = null;
+			return;
+		}
+		fileHeaderBytes = encodeFileHeader();
+		extents = new ArrayList<Extent>(cf.size());
+		long pos = fileHeaderBytes.length;
+		for (Chunk ch : cf) {
+			Extent e = new Extent();
+			snapshot(e, ch, pos);
+			pos += e.length;
+			extents.add(e);
+		}
+		fileLength = pos;
+	}
+	
+	private void snapshot(Extent e, Chunk ch, long offset) {
+		e.chunk = ch;
+		e.data = ch.getData();
+		e.record = ch.record();
+		e.header = (e.record == null) ? ch.getHeader().clone() : null;
+		e.offset = offset;
+		e.length = chunkLength(ch);
+		e.dirty = false;
+	}
+	
+	private long chunkLength(Chunk ch) {
+		ChunkSpec chs = spec.chunkHeaderSpec();
+		int dl = ch.getData().length;
+		return chs.byteCount() + dl + ((chs.evenPadded() && (dl % 2) == 1) ? 1 : 0);
+	}
+	
+	private byte[] encodeFileHeader() throws IOException {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		spec.fileHeaderSpec().writeHeader(new DataOutputStream(bout), cf.getHeader());
+		return bout.toByteArray();
+	}
+	
+	// the size and checksum fields are left out; they are computed when written
+	private boolean changed(Chunk ch, Extent e) {
+		if (e.dirty || ch != e.chunk || ch.getData() != e.data) return true;
+		HeaderCodec.Record r = ch.record();
+		if (r != null) return r != e.record;
+		Header h = ch.getHeader();
+		for (FieldSpec fs : spec.chunkHeaderSpec()) {
+			FieldType ft = fs.type();
+			if (
+					fs.nativeType() == null ||
+					ft == FieldType.SIZE_WITHOUT_HEADER ||
+					ft == FieldType.SIZE_WITH_HEADER ||
+					ft == FieldType.CHECKSUM
+			) continue;
+			Number v = h.get(ft);
+			if (e.header != null) {
+				if (!eq(v, e.header.get(ft))) return true;
+			} else {
+				if (v == null || !e.record.has(ft) || v.longValue() != e.record.get(ft)) return true;
+			}
+		}
+		return false;
 	}
 	
 	public synchronized Header getHeader() {
@@ -95,6 +355,7 @@ public class ChunkFileEditor {
 			throw new ChunkAlreadyExistsException();
 		} else {
 			cf.add(ch);
+			chunkAppended();
 			return true;
 		}
 	}
@@ -107,6 +368,9 @@ public class ChunkFileEditor {
 		return (index >= 0 && index < cf.size());
 	}
 	
+	// the chunks returned by get() and the headers returned by getAttributes()
+	// are the ones in the file, not copies; if their type or ID fields are
+	// changed, invalidateIndex() must be called
 	public synchronized Chunk get(Number ctype, Number itype, Number id) {
 		return get(getChunkIndex(ctype, itype, id));
 	}
@@ -156,6 +420,8 @@ public class ChunkFileEditor {
 			if (index < 0) index = 0;
 			if (index > cf.size()) index = cf.size();
 			cf.add(index, ch);
+			if (index == cf.size() - 1) chunkAppended();
+			else invalidateIndex();
 			return true;
 		}
 	}
@@ -167,6 +433,7 @@ public class ChunkFileEditor {
 	public synchronized boolean remove(int index) {
 		if (index >= 0 && index < cf.size()) {
 			cf.remove(index);
+			invalidateIndex();
 			return true;
 		} else {
 			return false;
@@ -187,11 +454,13 @@ public class ChunkFileEditor {
 					eq(eh.get(FieldType.ID_NUMBER), h.get(FieldType.ID_NUMBER))
 			) {
 				cf.set(index, ch);
+				if (!sameKeyFields(eh, h)) invalidateIndex();
 				return true;
 			} else if (h.containsKey(FieldType.ID_NUMBER) && contains(h.get(FieldType.CHARACTER_TYPE), h.get(FieldType.INTEGER_TYPE), h.get(FieldType.ID_NUMBER))) {
 				throw new ChunkAlreadyExistsException();
 			} else {
 				cf.set(index, ch);
+				invalidateIndex();
 				return true;
 			}
 		} else {
@@ -212,11 +481,13 @@ public class ChunkFileEditor {
 					eq(eh.get(FieldType.ID_NUMBER), h.get(FieldType.ID_NUMBER))
 			) {
 				cf.get(index).setHeader(h);
+				if (!sameKeyFields(eh, h)) invalidateIndex();
 				return true;
 			} else if (h.containsKey(FieldType.ID_NUMBER) && contains(h.get(FieldType.CHARACTER_TYPE), h.get(FieldType.INTEGER_TYPE), h.get(FieldType.ID_NUMBER))) {
 				throw new ChunkAlreadyExistsException();
 			} else {
 				cf.get(index).setHeader(h);
+				invalidateIndex();
 				return true;
 			}
 		} else {
@@ -224,10 +495,96 @@ public class ChunkFileEditor {
 		}
 	}
 	
+	// must be called if the ChunkFile returned by getChunkFile() is modified
+	// directly, or if the type or ID fields of a header are changed through
+	// the chunks or headers returned by getChunkFile(), get(), or getAttributes()
+	public synchronized void invalidateIndex() {
+		indexed = false;
+		index = null;
+		localCounts = null;
+	}
+	
+	private Map<ChunkKey,Integer> index() {
+		if (!indexed || indexedSize != cf.size()) {
+			indexed = true;
+			indexedSize = cf.size();
+			index = null;
+			localCounts = null;
+			if (cf.isEmpty()) {
+				ChunkSpec cs = spec.chunkHeaderSpec();
+				hasCType = cs.containsType(FieldType.CHARACTER_TYPE);
+				hasIType = cs.containsType(FieldType.INTEGER_TYPE);
+				hasID = cs.containsType(FieldType.ID_NUMBER);
+			} else {
+				Header h = cf.get(0).getHeader();
+				hasCType = h.containsKey(FieldType.CHARACTER_TYPE);
+				hasIType = h.containsKey(FieldType.INTEGER_TYPE);
+				hasID = h.containsKey(FieldType.ID_NUMBER);
+			}
+			index = new HashMap<ChunkKey,Integer>();
+			if (!hasID) localCounts = new HashMap<ChunkKey,Long>();
+			for (int i = 0; i < indexedSize && index != null; i++) {
+				indexChunk(cf.get(i).getHeader(), i);
+			}
+		}
+		return index;
+	}
+	
+	private void indexChunk(Header h, int i) {
+		if (
+				h.containsKey(FieldType.CHARACTER_TYPE) != hasCType ||
+				h.containsKey(FieldType.INTEGER_TYPE) != hasIType ||
+				h.containsKey(FieldType.ID_NUMBER) != hasID
+		) {
+			index = null;
+			localCounts = null;
+			return;
+		}
+		long ctype = hasCType ? h.get(FieldType.CHARACTER_TYPE).longValue() : 0;
+		long itype = hasIType ? h.get(FieldType.INTEGER_TYPE).longValue() : 0;
+		long id;
+		if (hasID) {
+			id = h.get(FieldType.ID_NUMBER).longValue();
+		} else {
+			ChunkKey group = new ChunkKey(ctype, itype, 0);
+			Long n = localCounts.get(group);
+			id = (n == null) ? 0 : n.longValue();
+			localCounts.put(group, id + 1);
+		}
+		ChunkKey k = new ChunkKey(ctype, itype, id);
+		if (!index.containsKey(k)) index.put(k, i);
+	}
+	
+	private ChunkKey key(Number ctype, Number itype, long id) {
+		return new ChunkKey(
+				hasCType ? ctype.longValue() : 0,
+				hasIType ? itype.longValue() : 0,
+				id
+		);
+	}
+	
+	private void chunkAppended() {
+		if (indexed && indexedSize == cf.size() - 1) {
+			indexedSize++;
+			if (index != null) indexChunk(cf.get(indexedSize - 1).getHeader(), indexedSize - 1);
+		} else {
+			indexed = false;
+		}
+	}
+	
 	private static boolean eq(Number a, Number b) {
 		return (a == null) ? (b == null) : (b == null) ? (a == null) : (a.longValue() == b.longValue());
 	}
 	
+	// eq() treats a missing field and a null value alike, but the index does not
+	private static boolean sameKeyFields(Header a, Header b) {
+		return (
+				a.containsKey(FieldType.CHARACTER_TYPE) == b.containsKey(FieldType.CHARACTER_TYPE) &&
+				a.containsKey(FieldType.INTEGER_TYPE) == b.containsKey(FieldType.INTEGER_TYPE) &&
+				a.containsKey(FieldType.ID_NUMBER) == b.containsKey(FieldType.ID_NUMBER)
+		);
+	}
+	
 	public synchronized boolean setData(Number ctype, Number itype, Number id, byte[] data) {
 		return setData(getChunkIndex(ctype, itype, id), data);
 	}
@@ -235,6 +592,7 @@ public class ChunkFileEditor {
 	public synchronized boolean setData(int index, byte[] data) {
 		if (index >= 0 && index < cf.size()) {
 			cf.get(index).setData(data);
+			markDirty(index);
 			return true;
 		} else {
 			return false;
@@ -297,6 +655,11 @@ public class ChunkFileEditor {
 	}
 	
 	public synchronized int getChunkIndex(Number ctype, Number itype, Number id) {
+		Map<ChunkKey,Integer> index = index();
+		if (index != null) {
+			Integer i = index.get(key(ctype, itype, id.longValue()));
+			return (i == null) ? -1 : i.intValue();
+		}
 		long localIndex = 0;
 		for (int i = 0; i < cf.size(); i++) {
 			Header h = cf.get(i).getHeader();
@@ -323,6 +686,12 @@ public class ChunkFileEditor {
 	}
 	
 	public synchronized Number getNextAvailableID(Number ctype, Number itype, Number start) {
+		long next = start.longValue();
+		Map<ChunkKey,Integer> index = index();
+		if (index != null) {
+			while (index.containsKey(key(ctype, itype, next))) next++;
+			return castID(next);
+		}
 		Vector<Long> ids = new Vector<Long>();
 		long localIndex = 0;
 		for (int i = 0; i < cf.size(); i++) {
@@ -338,8 +707,11 @@ public class ChunkFileEditor {
 				}
 			}
 		}
-		long next = start.longValue();
 		while (ids.contains(next)) next++;
+		return castID(next);
+	}
+	
+	private Number castID(long next) {
 		if (spec.chunkHeaderSpec().containsType(FieldType.ID_NUMBER)) {
 			switch (spec.chunkHeaderSpec().getField(FieldType.ID_NUMBER).size()) {
 			case BYTE: return (byte)next;
@@ -30,8 +30,19 @@ package com.kreative.cff;
 import java.io.Serializable;
 import java.io.DataInput;
 import java.io.DataOutput;
+import java.io.File;
 import java.io.IOException;
 import java.io.EOFException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
 
 public class ChunkFileSpec implements Serializable {
 	private static final long serialVersionUID = 1L;
@@ -190,12 +201,13 @@ public class ChunkFileSpec implements Serializable {
 	
 	public ChunkFile readChunkHeaders(DataInput in) throws IOException {
 		Header fh = fileHeaderSpec.readHeader(in);
+		HeaderCodec chc = chunkHeaderSpec.codec();
 		ChunkFile cf = new ChunkFile(fh);
 		if (fh.containsKey(FieldType.CHUNK_COUNT)) {
 			long i = 0;
 			long c = fh.get(FieldType.CHUNK_COUNT).longValue();
 			while (i < c) {
-				Header h = chunkHeaderSpec.readHeader(in);
+				HeaderCodec.Record h = chc.read(in);
 				i++;
 				cf.add(new Chunk(h, new byte[0]));
 			}
@@ -204,12 +216,12 @@ public class ChunkFileSpec implements Serializable {
 			long i = 0;
 			long c = fh.get(FieldType.SIZE_WITHOUT_HEADER).longValue();
 			while (i < c) {
-				Header h = chunkHeaderSpec.readHeader(in);
+				HeaderCodec.Record h = chc.read(in);
 				long dl = (
-					h.containsKey(FieldType.SIZE_WITH_HEADER) ?
-					h.get(FieldType.SIZE_WITH_HEADER).longValue() :
-					h.containsKey(FieldType.SIZE_WITHOUT_HEADER) ?
-					(chunkHeaderSpec.byteCount() + h.get(FieldType.SIZE_WITHOUT_HEADER).longValue()) :
+					h.has(FieldType.SIZE_WITH_HEADER) ?
+					h.get(FieldType.SIZE_WITH_HEADER) :
+					h.has(FieldType.SIZE_WITHOUT_HEADER) ?
+					(chunkHeaderSpec.byteCount() + h.get(FieldType.SIZE_WITHOUT_HEADER)) :
 					0
 				);
 				if (chunkHeaderSpec.evenPadded() && (dl % 2) == 1) dl++;
@@ -221,12 +233,12 @@ public class ChunkFileSpec implements Serializable {
 			long i = fileHeaderSpec.byteCount();
 			long c = fh.get(FieldType.SIZE_WITH_HEADER).longValue();
 			while (i < c) {
-				Header h = chunkHeaderSpec.readHeader(in);
+				HeaderCodec.Record h = chc.read(in);
 				long dl = (
-					h.containsKey(FieldType.SIZE_WITH_HEADER) ?
-					h.get(FieldType.SIZE_WITH_HEADER).longValue() :
-					h.containsKey(FieldType.SIZE_WITHOUT_HEADER) ?
-					(chunkHeaderSpec.byteCount() + h.get(FieldType.SIZE_WITHOUT_HEADER).longValue()) :
+					h.has(FieldType.SIZE_WITH_HEADER) ?
+					h.get(FieldType.SIZE_WITH_HEADER) :
+					h.has(FieldType.SIZE_WITHOUT_HEADER) ?
+					(chunkHeaderSpec.byteCount() + h.get(FieldType.SIZE_WITHOUT_HEADER)) :
 					0
 				);
 				if (chunkHeaderSpec.evenPadded() && (dl % 2) == 1) dl++;
@@ -237,7 +249,7 @@ public class ChunkFileSpec implements Serializable {
 		else {
 			while (true) {
 				try {
-					Header h = chunkHeaderSpec.readHeader(in);
+					HeaderCodec.Record h = chc.read(in);
 					cf.add(new Chunk(h, new byte[0]));
 				} catch (EOFException eof) {
 					break;
@@ -248,13 +260,17 @@ public class ChunkFileSpec implements Serializable {
 	}
 	
 	public ChunkFile readChunkFile(DataInput in) throws IOException {
+		return readChunkFile(in, false);
+	}
+	
+	public ChunkFile readChunkFile(DataInput in, boolean verifyChecksums) throws IOException {
 		Header fh = fileHeaderSpec.readHeader(in);
 		ChunkFile cf = new ChunkFile(fh);
 		if (fh.containsKey(FieldType.CHUNK_COUNT)) {
 			long i = 0;
 			long c = fh.get(FieldType.CHUNK_COUNT).longValue();
 			while (i < c) {
-				Chunk ch = chunkHeaderSpec.readChunk(in);
+				Chunk ch = chunkHeaderSpec.readChunk(in, verifyChecksums);
 				i++;
 				cf.add(ch);
 			}
@@ -263,7 +279,7 @@ public class ChunkFileSpec implements Serializable {
 			long i = 0;
 			long c = fh.get(FieldType.SIZE_WITHOUT_HEADER).longValue();
 			while (i < c) {
-				Chunk ch = chunkHeaderSpec.readChunk(in);
+				Chunk ch = chunkHeaderSpec.readChunk(in, verifyChecksums);
 				i += chunkHeaderSpec.byteCount() + ch.getData().length;
 				if (chunkHeaderSpec.evenPadded() && ((ch.getData().length % 2) == 1)) i++;
 				cf.add(ch);
@@ -273,7 +289,7 @@ public class ChunkFileSpec implements Serializable {
 			long i = fileHeaderSpec.byteCount();
 			long c = fh.get(FieldType.SIZE_WITH_HEADER).longValue();
 			while (i < c) {
-				Chunk ch = chunkHeaderSpec.readChunk(in);
+				Chunk ch = chunkHeaderSpec.readChunk(in, verifyChecksums);
 				i += chunkHeaderSpec.byteCount() + ch.getData().length;
 				if (chunkHeaderSpec.evenPadded() && ((ch.getData().length % 2) == 1)) i++;
 				cf.add(ch);
@@ -282,7 +298,7 @@ public class ChunkFileSpec implements Serializable {
 		else {
 			while (true) {
 				try {
-					Chunk ch = chunkHeaderSpec.readChunk(in);
+					Chunk ch = chunkHeaderSpec.readChunk(in, verifyChecksums);
 					cf.add(ch);
 				} catch (EOFException eof) {
 					break;
@@ -292,7 +308,97 @@ public class ChunkFileSpec implements Serializable {
 		return cf;
 	}
 	
-	public void writeChunkFile(DataOutput out, ChunkFile cf) throws IOException {
+	private static ForkJoinPool sharedPool = null;
+	
+	private static synchronized ForkJoinPool getSharedPool() {
+		if (sharedPool == null) sharedPool = new ForkJoinPool();
+		return sharedPool;
+	}
+	
+	/*
+	 * Checks the checksums of all the chunks in a file without reading the
+	 * file into memory. The chunk headers are read first; then the checksums
+	 * are computed in parallel over memory-mapped views of the chunks.
+	 * Returns the indexes of the chunks whose checksums do not match.
+	 */
+	public int[] verifyChecksums(File f) throws IOException {
+		final FieldSpec csf = chunkHeaderSpec.getField(FieldType.CHECKSUM);
+		if (csf == null) return new int[0];
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			final FileChannel fc = raf.getChannel();
+			ChunkFile cf = readChunkHeaders(raf);
+			int hl = chunkHeaderSpec.byteCount();
+			long pos = fileHeaderSpec.byteCount();
+			List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>(cf.size());
+			for (Chunk ch : cf) {
+				final HeaderCodec.Record h = ch.record();
+				final long start = pos;
+				final long dl = (
+					h.has(FieldType.SIZE_WITH_HEADER) ?
+					(h.get(FieldType.SIZE_WITH_HEADER) - hl) :
+					h.has(FieldType.SIZE_WITHOUT_HEADER) ?
+					h.get(FieldType.SIZE_WITHOUT_HEADER) :
+					0
+				);
+				pos += hl + dl;
+				if (chunkHeaderSpec.evenPadded() && (dl % 2) == 1) pos++;
+				tasks.add(new Callable<Boolean>() {
+					public Boolean call() throws IOException {
+						return h.has(FieldType.CHECKSUM) && h.getChecksum() == ChunkSpec.checksumValue(csf, checksum(fc, start, dl)).longValue();
+					}
+				});
+			}
+			List<Future<Boolean>> results = getSharedPool().invokeAll(tasks);
+			List<Integer> bad = new ArrayList<Integer>();
+			for (int i = 0; i < results.size(); i++) {
+				try {
+					if (!results.get(i).get()) bad.add(i);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while verifying checksums.", ie);
+				} catch (ExecutionException ee) {
+					Throwable t = ee.getCause();
+					if (t instanceof IOException) throw (IOException)t;
+					if (t instanceof RuntimeException) throw (RuntimeException)t;
+					if (t instanceof Error) throw (Error)t;
+					throw new IOException(t);
+				}
+			}
+			int[] ret = new int[bad.size()];
+			for (int i = 0; i < ret.length; i++) ret[i] = bad.get(i);
+			return ret;
+		} finally {
+			raf.close();
+		}
+	}
+	
+	// CRC-32 of the type fields and data of the chunk at start, read from the file as is
+	private long checksum(FileChannel fc, long start, long dataLength) throws IOException {
+		if (dataLength < 0 || start + chunkHeaderSpec.byteCount() + dataLength > fc.size()) {
+			throw new EOFException();
+		}
+		CRC32 crc = new CRC32();
+		ByteBuffer b = fc.map(FileChannel.MapMode.READ_ONLY, start, chunkHeaderSpec.byteCount() + dataLength);
+		byte[] buf = new byte[(int)Math.min(dataLength, 65536) + 8];
+		int pos = 0;
+		for (FieldSpec f : chunkHeaderSpec) {
+			int len = (f.nativeType() == null) ? (int)dataLength : f.byteCount();
+			if (ChunkSpec.isChecksummed(f.type())) {
+				b.limit(pos + len).position(pos);
+				while (b.hasRemaining()) {
+					int n = Math.min(b.remaining(), buf.length);
+					b.get(buf, 0, n);
+					crc.update(buf, 0, n);
+				}
+			}
+			pos += len;
+		}
+		return crc.getValue();
+	}
+	
+	// sets the chunk count and size fields of the file header to match the chunks
+	public void updateFileHeader(ChunkFile cf) {
 		Header fh = cf.getHeader();
 		if (fh.containsKey(FieldType.CHUNK_COUNT)) {
 			fh.put(FieldType.CHUNK_COUNT, cf.size());
@@ -313,7 +419,11 @@ public class ChunkFileSpec implements Serializable {
 			}
 			fh.put(FieldType.SIZE_WITH_HEADER, l);
 		}
-		fileHeaderSpec.writeHeader(out, fh);
+	}
+	
+	public void writeChunkFile(DataOutput out, ChunkFile cf) throws IOException {
+		updateFileHeader(cf);
+		fileHeaderSpec.writeHeader(out, cf.getHeader());
 		for (Chunk ch : cf) chunkHeaderSpec.writeChunk(out, ch);
 	}
 	
@@ -0,0 +1,299 @@
+/*
+ * Copyright &copy; 2009-2011 Rebecca G. Bettencourt / Kreative Software
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License
+ * Version 1.1 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * <a href="http://www.mozilla.org/MPL/">http://www.mozilla.org/MPL/</a>
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * <p>
+ * Alternatively, the contents of this file may be used under the terms
+ * of the GNU Lesser General Public License (the "LGPL License"), in which
+ * case the provisions of LGPL License are applicable instead of those
+ * above. If you wish to allow use of your version of this file only
+ * under the terms of the LGPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the LGPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the LGPL License.
+ * @since KSFL 1.2
+ * @author Rebecca G. Bettencourt, Kreative Software
+ */
+
+package com.kreative.cff;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * A pull parser for chunk files. Each call to next() reads one chunk header
+ * and reports its position, without reading its data. Container chunks
+ * (FORM, LIST, RIFF, etc.) can be descended into with descend(); otherwise
+ * their contents are skipped like any other data. If the channel is
+ * seekable, data is skipped by changing the channel's position, so the time
+ * taken is proportional to the number of chunks visited, not their size.
+ */
+public class ChunkParser {
+	public static enum Event {
+		CHUNK,
+		END_CONTAINER,
+		END_OF_FILE
+	}
+	
+	public static final int FORM = 0x464F524D;
+	public static final int LIST = 0x4C495354;
+	public static final int CAT_ = 0x43415420;
+	public static final int PROP = 0x50524F50;
+	public static final int RIFF = 0x52494646;
+	public static final int RIFX = 0x52494658;
+	// RF64 is left out: its real sizes are kept in a ds64 chunk,
+	// which this parser does not read
+	public static final Set<Integer> DEFAULT_CONTAINER_TYPES = new HashSet<Integer>(Arrays.asList(
+			FORM, LIST, CAT_, PROP, RIFF, RIFX
+	));
+	
+	private final HeaderCodec codec;
+	private final ReadableByteChannel in;
+	private final SeekableByteChannel sin;
+	private final Set<Integer> containerTypes;
+	private final int leadingLength;
+	private final int trailingLength;
+	private final Header fileHeader;
+	private final List<Long> ends = new ArrayList<Long>();
+	private long chunksLeft;
+	private long pos;
+	
+	private HeaderCodec.Record record;
+	private Header header;
+	private long offset;
+	private long trailingOffset;
+	private long dataOffset;
+	private long dataLength;
+	private long next;
+	private boolean container;
+	private int formType;
+	private boolean trailingRead;
+	
+	public ChunkParser(ChunkFileSpec spec, ReadableByteChannel in) throws IOException {
+		this(spec, in, DEFAULT_CONTAINER_TYPES);
+	}
+	
+	public ChunkParser(ChunkFileSpec spec, ReadableByteChannel in, Set<Integer> containerTypes) throws IOException {
+		this.codec = spec.chunkHeaderSpec().codec();
+		this.in = in;
+		this.sin = (in instanceof SeekableByteChannel) ? (SeekableByteChannel)in : null;
+		this.containerTypes = containerTypes;
+		this.leadingLength = codec.segmentLength(0);
+		this.trailingLength = codec.byteCount() - leadingLength;
+		this.pos = (sin != null) ? sin.position() : 0;
+		HeaderCodec fhc = spec.fileHeaderSpec().codec();
+		long start = pos;
+		ByteBuffer b = read(fhc.byteCount());
+		HeaderCodec.Record fh = fhc.newRecord();
+		for (int s = 0; s < fhc.segmentCount(); s++) fhc.decode(fh, s, b);
+		this.fileHeader = fh.toHeader();
+		if (fh.has(FieldType.SIZE_WITH_HEADER)) {
+			ends.add(start + fh.get(FieldType.SIZE_WITH_HEADER));
+		} else if (fh.has(FieldType.SIZE_WITHOUT_HEADER)) {
+			ends.add(pos + fh.get(FieldType.SIZE_WITHOUT_HEADER));
+		} else {
+			ends.add(Long.MAX_VALUE);
+		}
+		this.chunksLeft = fh.has(FieldType.CHUNK_COUNT) ? fh.get(FieldType.CHUNK_COUNT) : -1;
+		this.next = pos;
+	}
+	
+	public Header getFileHeader() {
+		return fileHeader;
+	}
+	
+	public Event next() throws IOException {
+		record = null;
+		header = null;
+		skipTo(next);
+		int depth = ends.size();
+		long end = ends.get(depth - 1);
+		if (depth == 1 && chunksLeft == 0) return Event.END_OF_FILE;
+		if (pos >= end) {
+			if (depth == 1) return Event.END_OF_FILE;
+			ends.remove(depth - 1);
+			return Event.END_CONTAINER;
+		}
+		offset = pos;
+		ByteBuffer b = ByteBuffer.allocate(leadingLength);
+		int n = readSome(b);
+		if (n <= 0 && depth == 1) return Event.END_OF_FILE;
+		if (b.hasRemaining()) throw new EOFException();
+		pos += leadingLength;
+		b.flip();
+		HeaderCodec.Record r = codec.newRecord();
+		codec.decode(r, 0, b);
+		record = r;
+		dataOffset = pos;
+		dataLength = r.getDataLength();
+		// data that runs past the end of its container is cut short
+		if (dataLength > end - dataOffset - trailingLength) {
+			dataLength = Math.max(0, end - dataOffset - trailingLength);
+		}
+		trailingOffset = dataOffset + dataLength;
+		if (codec.evenPadded() && (dataLength % 2) == 1 && trailingOffset + trailingLength < end) trailingOffset++;
+		next = trailingOffset + trailingLength;
+		if (depth == 1 && chunksLeft > 0) chunksLeft--;
+		trailingRead = (trailingLength == 0);
+		if (!trailingRead && sin != null) readTrailing();
+		container = (
+				r.has(FieldType.CHARACTER_TYPE) &&
+				containerTypes.contains((int)r.get(FieldType.CHARACTER_TYPE)) &&
+				dataLength >= 4
+		);
+		if (container) {
+			formType = read(4, dataOffset).getInt();
+		} else {
+			formType = 0;
+		}
+		return Event.CHUNK;
+	}
+	
+	// the header of the current chunk, created the first time it is asked for
+	public Header getHeader() {
+		if (header == null && record != null) header = record.toHeader();
+		return header;
+	}
+	
+	// the header of the current chunk, without boxing its fields
+	public HeaderCodec.Record getRecord() {
+		return record;
+	}
+	
+	public int getType() {
+		return (record == null) ? 0 : (int)record.get(FieldType.CHARACTER_TYPE);
+	}
+	
+	public long getOffset() {
+		return offset;
+	}
+	
+	public long getDataOffset() {
+		return dataOffset;
+	}
+	
+	public long getDataLength() {
+		return dataLength;
+	}
+	
+	public int getDepth() {
+		return ends.size() - 1;
+	}
+	
+	public boolean isContainer() {
+		return container;
+	}
+	
+	public int getFormType() {
+		return formType;
+	}
+	
+	// enters the current container chunk; its children are returned by
+	// next(), followed by END_CONTAINER
+	public void descend() throws IOException {
+		if (record == null || !container) throw new IllegalStateException("Not a container chunk");
+		ends.add(dataOffset + dataLength);
+		next = dataOffset + 4;
+		record = null;
+		header = null;
+	}
+	
+	// skips the rest of the current container; next() then returns END_CONTAINER
+	public void ascend() throws IOException {
+		if (ends.size() <= 1) throw new IllegalStateException("Not in a container chunk");
+		record = null;
+		header = null;
+		next = ends.get(ends.size() - 1);
+	}
+	
+	public byte[] readData() throws IOException {
+		if (record == null) throw new IllegalStateException("No current chunk");
+		if (dataLength > Integer.MAX_VALUE) throw new IOException("Chunk too large");
+		if (sin == null && container && pos == dataOffset + 4) {
+			// next() has already read the form type from the stream,
+			// and there is no going back for it
+			ByteBuffer b = ByteBuffer.allocate((int)dataLength);
+			b.putInt(formType);
+			readSome(b);
+			if (b.hasRemaining()) throw new EOFException();
+			pos += dataLength - 4;
+			return b.array();
+		}
+		return read((int)dataLength, dataOffset).array();
+	}
+	
+	public Chunk readChunk() throws IOException {
+		byte[] data = readData();
+		if (!trailingRead) readTrailing();
+		return (header != null) ? new Chunk(header, data) : new Chunk(record, data);
+	}
+	
+	private void readTrailing() throws IOException {
+		ByteBuffer b = read(trailingLength, trailingOffset);
+		for (int s = 1; s < codec.segmentCount(); s++) codec.decode(record, s, b);
+		if (header != null) record.putInto(header);
+		trailingRead = true;
+	}
+	
+	private ByteBuffer read(int length) throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(length);
+		readSome(b);
+		if (b.hasRemaining()) throw new EOFException();
+		pos += length;
+		b.flip();
+		return b;
+	}
+	
+	private ByteBuffer read(int length, long at) throws IOException {
+		skipTo(at);
+		return read(length);
+	}
+	
+	private int readSome(ByteBuffer b) throws IOException {
+		int total = 0;
+		while (b.hasRemaining()) {
+			int n = in.read(b);
+			if (n < 0) break;
+			total += n;
+		}
+		return total;
+	}
+	
+	private void skipTo(long target) throws IOException {
+		if (target == pos) return;
+		if (sin != null) {
+			sin.position(target);
+			pos = target;
+		} else if (target > pos) {
+			ByteBuffer b = ByteBuffer.allocate((int)Math.min(target - pos, 65536));
+			while (pos < target) {
+				b.clear();
+				if (target - pos < b.capacity()) b.limit((int)(target - pos));
+				int n = in.read(b);
+				// let the next read report the end of the file
+				if (n < 0) break;
+				pos += n;
+			}
+		} else {
+			throw new IOException("Cannot seek backward in a non-seekable channel");
+		}
+	}
+}
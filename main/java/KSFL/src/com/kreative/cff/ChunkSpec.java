@@ -38,6 +38,7 @@ public class ChunkSpec extends Vector<FieldSpec> {
 	private static final long serialVersionUID = 1L;
 	
 	private boolean evenPadded;
+	private transient HeaderCodec codec;
 	
 	public ChunkSpec() {
 		super();
@@ -140,6 +141,16 @@ public class ChunkSpec extends Vector<FieldSpec> {
 		return bp;
 	}
 	
+	/*
+	 * Returns this spec compiled into a HeaderCodec. The codec is cached,
+	 * and compiled again if the fields of this spec have changed.
+	 */
+	public synchronized HeaderCodec codec() {
+		HeaderCodec c = codec;
+		if (c == null || !c.compiledFrom(this)) codec = c = new HeaderCodec(this);
+		return c;
+	}
+	
 	public Header createHeader() {
 		Header h = new Header();
 		for (FieldSpec fs : this) {
@@ -155,90 +166,77 @@ public class ChunkSpec extends Vector<FieldSpec> {
 	}
 	
 	public Header readHeader(DataInput in) throws IOException {
-		Header h = new Header();
-		Number lastSize = 0;
-		for (FieldSpec f : this) {
-			if (f.nativeType() == null) {
-				in.skipBytes(lastSize.intValue());
-				if (evenPadded && (lastSize.longValue() % 2) == 1) in.readByte();
-			} else {
-				Number n = f.read(in);
-				if (f.type().equals(FieldType.SIZE_WITHOUT_HEADER)) {
-					if (n.longValue() < 0) throw new IOException("Negative Size");
-					lastSize = n;
-				} else if (f.type().equals(FieldType.SIZE_WITH_HEADER)) {
-					if (n.longValue() < byteCount()) throw new IOException("Negative Size");
-					lastSize = n.longValue() - byteCount();
-				}
-				h.put(f.type(), n);
-			}
-		}
-		return h;
+		return codec().read(in).toHeader();
 	}
 	
 	public Chunk readChunk(DataInput in) throws IOException {
-		Header h = new Header();
-		Number lastSize = 0;
+		return readChunk(in, false);
+	}
+	
+	public Chunk readChunk(DataInput in, boolean verifyChecksum) throws IOException {
+		HeaderCodec c = codec();
+		HeaderCodec.Record r = c.newRecord();
+		byte[] buf = c.newBuffer();
 		byte[] d = new byte[0];
-		for (FieldSpec f : this) {
-			if (f.nativeType() == null) {
-				in.readFully(d = new byte[lastSize.intValue()]);
-				if (evenPadded && (lastSize.longValue() % 2) == 1) in.readByte();
-			} else {
-				Number n = f.read(in);
-				if (f.type().equals(FieldType.SIZE_WITHOUT_HEADER)) {
-					if (n.longValue() < 0) throw new IOException("Negative Size");
-					lastSize = n;
-				} else if (f.type().equals(FieldType.SIZE_WITH_HEADER)) {
-					if (n.longValue() < byteCount()) throw new IOException("Negative Size");
-					lastSize = n.longValue() - byteCount();
-				}
-				h.put(f.type(), n);
+		for (int s = 0; s < c.segmentCount(); s++) {
+			if (s > 0) {
+				if (r.getDataLength() > Integer.MAX_VALUE) throw new IOException("Chunk too large");
+				in.readFully(d = new byte[(int)r.getDataLength()]);
+				if (evenPadded && (r.getDataLength() % 2) == 1) in.readByte();
 			}
+			c.readSegment(in, r, s, buf);
 		}
-		return new Chunk(h,d);
+		if (verifyChecksum && r.has(FieldType.CHECKSUM)) {
+			FieldSpec f = getField(FieldType.CHECKSUM);
+			if (r.getChecksum() != checksumValue(f, c.checksum(null, r, d)).longValue()) {
+				throw new IOException("Checksum Mismatch");
+			}
+		}
+		return new Chunk(r, d);
 	}
 	
-	public void writeHeader(DataOutput out, Header h) throws IOException {
-		Number lastSize = 0;
-		for (FieldSpec f : this) {
-			if (f.nativeType() == null) {
-				out.write(new byte[lastSize.intValue()]);
-				if (evenPadded && (lastSize.longValue() % 2) == 1) out.writeByte(0);
-			} else {
-				Number n = h.get(f.type());
-				if (f.type().equals(FieldType.SIZE_WITHOUT_HEADER)) {
-					if (n.longValue() < 0) throw new IllegalArgumentException("Negative Size");
-					lastSize = n;
-				} else if (f.type().equals(FieldType.SIZE_WITH_HEADER)) {
-					if (n.longValue() < byteCount()) throw new IllegalArgumentException("Negative Size");
-					lastSize = n.longValue() - byteCount();
-				}
-				f.write(out, n);
-			}
+	/*
+	 * The checksum of a chunk is the CRC-32 of its type fields,
+	 * as they are written, followed by its data. For PNG files,
+	 * this is the chunk type and chunk data.
+	 */
+	/*package*/ static boolean isChecksummed(FieldType ft) {
+		return ft == FieldType.CHARACTER_TYPE || ft == FieldType.INTEGER_TYPE || ft == FieldType.DATA;
+	}
+	
+	public long checksum(Header h, byte[] data) throws IOException {
+		return codec().checksum(h, null, data);
+	}
+	
+	/*package*/ static Number checksumValue(FieldSpec f, long crc) {
+		switch (f.size()) {
+		case BYTE: return (byte)crc;
+		case SHORT: return (short)crc;
+		case MEDIUM: return (int)crc;
+		default: return crc;
 		}
 	}
 	
+	public void writeHeader(DataOutput out, Header h) throws IOException {
+		codec().write(out, h, null, true);
+	}
+	
 	public void writeChunk(DataOutput out, Chunk ch) throws IOException {
+		HeaderCodec c = codec();
 		Header h = ch.getHeader();
+		byte[] d = ch.getData();
+		FieldSpec csf = null;
 		for (FieldSpec f : this) {
-			if (f.nativeType() == null) {
-				out.write(ch.getData());
-				if (evenPadded && (ch.getData().length % 2) == 1) out.writeByte(0);
-			} else {
-				Number n;
-				if (f.type().equals(FieldType.SIZE_WITHOUT_HEADER)) {
-					n = ch.getData().length;
-					h.put(f.type(), n);
-				} else if (f.type().equals(FieldType.SIZE_WITH_HEADER)) {
-					n = ch.getData().length + byteCount();
-					h.put(f.type(), n);
-				} else {
-					n = h.get(f.type());
-				}
-				f.write(out, n);
+			if (f.type().equals(FieldType.SIZE_WITHOUT_HEADER)) {
+				h.put(f.type(), d.length);
+			} else if (f.type().equals(FieldType.SIZE_WITH_HEADER)) {
+				h.put(f.type(), d.length + c.byteCount());
+			} else if (f.type().equals(FieldType.CHECKSUM)) {
+				csf = f;
 			}
 		}
+		if (csf != null) h.put(csf.type(), checksumValue(csf, c.checksum(h, null, d)));
+		c.write(out, h, d, false);
 	}
 	
 	public boolean equals(Object o) {
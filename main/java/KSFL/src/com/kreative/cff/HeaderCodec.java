@@ -0,0 +1,360 @@
+/*
+ * Copyright &copy; 2009-2011 Rebecca G. Bettencourt / Kreative Software
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License
+ * Version 1.1 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * <a href="http://www.mozilla.org/MPL/">http://www.mozilla.org/MPL/</a>
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * <p>
+ * Alternatively, the contents of this file may be used under the terms
+ * of the GNU Lesser General Public License (the "LGPL License"), in which
+ * case the provisions of LGPL License are applicable instead of those
+ * above. If you wish to allow use of your version of this file only
+ * under the terms of the LGPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the LGPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the LGPL License.
+ * @since KSFL 1.2
+ * @author Rebecca G. Bettencourt, Kreative Software
+ */
+
+package com.kreative.cff;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/*
+ * A ChunkSpec compiled into a fixed layout. The fields of a chunk spec are
+ * divided into segments by its data fields; the fields within a segment are
+ * at fixed offsets, so each segment can be read or written as a single block
+ * of bytes. Decoded fields are stored as longs in a Record; a Header is only
+ * created from a Record when one is asked for.
+ */
+public class HeaderCodec {
+	private static final FieldType[] TYPES = FieldType.values();
+	private static final int TYPE_COUNT = TYPES.length;
+	
+	private final FieldSpec[] fields;
+	private final boolean evenPadded;
+	private final int byteCount;
+	private final int[] segmentStart;
+	private final int[] segmentEnd;
+	private final int[] segmentLength;
+	private final int[] fieldOffset;
+	private final FieldSize[] typeSize;
+	private final int maxSegmentLength;
+	
+	public HeaderCodec(ChunkSpec spec) {
+		this.fields = spec.toArray(new FieldSpec[spec.size()]);
+		this.evenPadded = spec.evenPadded();
+		this.fieldOffset = new int[fields.length];
+		this.typeSize = new FieldSize[TYPE_COUNT];
+		List<Integer> starts = new ArrayList<Integer>();
+		List<Integer> ends = new ArrayList<Integer>();
+		List<Integer> lengths = new ArrayList<Integer>();
+		int bc = 0, start = 0, off = 0, max = 0;
+		for (int i = 0; i < fields.length; i++) {
+			FieldSpec f = fields[i];
+			if (f.nativeType() == null) {
+				starts.add(start); ends.add(i); lengths.add(off);
+				max = Math.max(max, off);
+				start = i + 1;
+				off = 0;
+			} else {
+				fieldOffset[i] = off;
+				typeSize[f.type().ordinal()] = f.size();
+				off += f.byteCount();
+				bc += f.byteCount();
+			}
+		}
+		starts.add(start); ends.add(fields.length); lengths.add(off);
+		max = Math.max(max, off);
+		this.byteCount = bc;
+		this.maxSegmentLength = max;
+		this.segmentStart = toArray(starts);
+		this.segmentEnd = toArray(ends);
+		this.segmentLength = toArray(lengths);
+	}
+	
+	private static int[] toArray(List<Integer> l) {
+		int[] a = new int[l.size()];
+		for (int i = 0; i < a.length; i++) a[i] = l.get(i);
+		return a;
+	}
+	
+	/*package*/ boolean compiledFrom(ChunkSpec spec) {
+		if (spec.evenPadded() != evenPadded || spec.size() != fields.length) return false;
+		for (int i = 0; i < fields.length; i++) {
+			if (spec.get(i) != fields[i]) return false;
+		}
+		return true;
+	}
+	
+	public boolean evenPadded() {
+		return evenPadded;
+	}
+	
+	// total length of the fixed-size fields
+	public int byteCount() {
+		return byteCount;
+	}
+	
+	// the number of data fields plus one
+	public int segmentCount() {
+		return segmentLength.length;
+	}
+	
+	// the length of the fields before the first data field, or after the
+	// nth data field
+	public int segmentLength(int segment) {
+		return segmentLength[segment];
+	}
+	
+	public Record newRecord() {
+		return new Record(this);
+	}
+	
+	/*
+	 * Decodes the fields of one segment starting at the buffer's position,
+	 * and advances the position past them. The byte order of each field is
+	 * taken from the spec, not from the buffer.
+	 */
+	public void decode(Record r, int segment, ByteBuffer b) throws IOException {
+		int base = b.position();
+		boolean le = (b.order() == ByteOrder.LITTLE_ENDIAN);
+		for (int i = segmentStart[segment]; i < segmentEnd[segment]; i++) {
+			FieldSpec f = fields[i];
+			int at = base + fieldOffset[i];
+			boolean swap = (f.littleEndian() != le);
+			long v;
+			switch (f.size()) {
+			case BYTE: v = b.get(at); break;
+			case SHORT: v = swap ? Short.reverseBytes(b.getShort(at)) : b.getShort(at); break;
+			case MEDIUM: v = swap ? Integer.reverseBytes(b.getInt(at)) : b.getInt(at); break;
+			case LONG: v = swap ? Long.reverseBytes(b.getLong(at)) : b.getLong(at); break;
+			default: continue;
+			}
+			r.set(f.type(), v);
+		}
+		b.position(base + segmentLength[segment]);
+	}
+	
+	/*
+	 * Encodes the fields of one segment from a header starting at the
+	 * buffer's position, and advances the position past them. Returns the
+	 * data length given by the last size field in the segment, or
+	 * Long.MIN_VALUE if there is no size field in the segment.
+	 */
+	public long encode(Header h, int segment, ByteBuffer b, boolean checkSizes) {
+		int base = b.position();
+		long size = Long.MIN_VALUE;
+		for (int i = segmentStart[segment]; i < segmentEnd[segment]; i++) {
+			FieldSpec f = fields[i];
+			long v = h.get(f.type()).longValue();
+			if (f.type() == FieldType.SIZE_WITHOUT_HEADER) {
+				if (checkSizes && v < 0) throw new IllegalArgumentException("Negative Size");
+				size = v;
+			} else if (f.type() == FieldType.SIZE_WITH_HEADER) {
+				if (checkSizes && v < byteCount) throw new IllegalArgumentException("Negative Size");
+				size = v - byteCount;
+			}
+			put(b, base + fieldOffset[i], f, v);
+		}
+		b.position(base + segmentLength[segment]);
+		return size;
+	}
+	
+	private static void put(ByteBuffer b, int at, FieldSpec f, long v) {
+		boolean swap = (f.littleEndian() != (b.order() == ByteOrder.LITTLE_ENDIAN));
+		switch (f.size()) {
+		case BYTE: b.put(at, (byte)v); break;
+		case SHORT: b.putShort(at, swap ? Short.reverseBytes((short)v) : (short)v); break;
+		case MEDIUM: b.putInt(at, swap ? Integer.reverseBytes((int)v) : (int)v); break;
+		case LONG: b.putLong(at, swap ? Long.reverseBytes(v) : v); break;
+		default: break;
+		}
+	}
+	
+	/*package*/ void readSegment(DataInput in, Record r, int segment, byte[] buf) throws IOException {
+		int len = segmentLength[segment];
+		in.readFully(buf, 0, len);
+		ByteBuffer b = ByteBuffer.wrap(buf, 0, len);
+		decode(r, segment, b);
+	}
+	
+	/*package*/ byte[] newBuffer() {
+		return new byte[Math.max(maxSegmentLength, 8)];
+	}
+	
+	/*
+	 * Reads a header, skipping over the data. Each segment is read with a
+	 * single call to readFully.
+	 */
+	public Record read(DataInput in) throws IOException {
+		Record r = new Record(this);
+		byte[] buf = newBuffer();
+		for (int s = 0; s < segmentLength.length; s++) {
+			if (s > 0) {
+				skipFully(in, r.dataLength + ((evenPadded && (r.dataLength % 2) == 1) ? 1 : 0));
+			}
+			readSegment(in, r, s, buf);
+		}
+		return r;
+	}
+	
+	private static void skipFully(DataInput in, long n) throws IOException {
+		while (n > 0) {
+			int k = in.skipBytes((int)Math.min(n, Integer.MAX_VALUE));
+			if (k <= 0) {
+				in.readByte();
+				k = 1;
+			}
+			n -= k;
+		}
+	}
+	
+	/*
+	 * Writes a header followed by the given data. If data is null, zeros are
+	 * written in its place, as many as the last size field asks for.
+	 */
+	public void write(DataOutput out, Header h, byte[] data, boolean checkSizes) throws IOException {
+		byte[] buf = newBuffer();
+		ByteBuffer b = ByteBuffer.wrap(buf);
+		long lastSize = 0;
+		for (int s = 0; s < segmentLength.length; s++) {
+			if (s > 0) {
+				byte[] d = (data != null) ? data : new byte[(int)lastSize];
+				out.write(d);
+				if (evenPadded && (d.length % 2) == 1) out.writeByte(0);
+			}
+			b.clear();
+			long size = encode(h, s, b, checkSizes);
+			if (size != Long.MIN_VALUE) lastSize = size;
+			out.write(buf, 0, segmentLength[s]);
+		}
+	}
+	
+	/*
+	 * The CRC-32 of the type fields, as they are written, followed by the
+	 * data. Field values are taken from the header if there is one,
+	 * otherwise from the record.
+	 */
+	/*package*/ long checksum(Header h, Record r, byte[] data) {
+		CRC32 crc = new CRC32();
+		byte[] buf = new byte[8];
+		ByteBuffer b = ByteBuffer.wrap(buf);
+		for (FieldSpec f : fields) {
+			if (!ChunkSpec.isChecksummed(f.type())) continue;
+			if (f.nativeType() == null) {
+				crc.update(data);
+			} else {
+				long v = (h != null) ? h.get(f.type()).longValue() : r.get(f.type());
+				put(b, 0, f, v);
+				crc.update(buf, 0, f.byteCount());
+			}
+		}
+		return crc.getValue();
+	}
+	
+	private static long unsigned(FieldSize size, long v) {
+		switch (size) {
+		case BYTE: return v & 0xFFL;
+		case SHORT: return v & 0xFFFFL;
+		case MEDIUM: return v & 0xFFFFFFFFL;
+		default: return v;
+		}
+	}
+	
+	private static Number box(FieldSize size, long v) {
+		switch (size) {
+		case BYTE: return (byte)v;
+		case SHORT: return (short)v;
+		case MEDIUM: return (int)v;
+		default: return v;
+		}
+	}
+	
+	/*
+	 * The fields of a single chunk header, decoded but not boxed.
+	 */
+	public static final class Record {
+		private final HeaderCodec codec;
+		private final long[] values = new long[TYPE_COUNT];
+		private int present = 0;
+		private long dataLength = 0;
+		
+		private Record(HeaderCodec codec) {
+			this.codec = codec;
+		}
+		
+		// size fields are unsigned, so a 32-bit size can describe up to 4 GB
+		private void set(FieldType ft, long v) throws IOException {
+			if (ft == FieldType.SIZE_WITHOUT_HEADER || ft == FieldType.SIZE_WITH_HEADER) {
+				v = unsigned(codec.typeSize[ft.ordinal()], v);
+			}
+			if (ft == FieldType.SIZE_WITHOUT_HEADER) {
+				if (v < 0) throw new IOException("Negative Size");
+				dataLength = v;
+			} else if (ft == FieldType.SIZE_WITH_HEADER) {
+				if (v < codec.byteCount) throw new IOException("Negative Size");
+				dataLength = v - codec.byteCount;
+			}
+			values[ft.ordinal()] = v;
+			present |= (1 << ft.ordinal());
+		}
+		
+		public boolean has(FieldType ft) {
+			return (present & (1 << ft.ordinal())) != 0;
+		}
+		
+		// the value of a field, or zero if there is no such field
+		public long get(FieldType ft) {
+			return values[ft.ordinal()];
+		}
+		
+		// the length of the data given by the last size field read
+		public long getDataLength() {
+			return dataLength;
+		}
+		
+		public long getType() {
+			return has(FieldType.CHARACTER_TYPE) ? values[FieldType.CHARACTER_TYPE.ordinal()] : values[FieldType.INTEGER_TYPE.ordinal()];
+		}
+		
+		public long getID() {
+			return values[FieldType.ID_NUMBER.ordinal()];
+		}
+		
+		public long getChecksum() {
+			return values[FieldType.CHECKSUM.ordinal()];
+		}
+		
+		// creates a header with the same fields, boxed as FieldSpec.read would box them
+		public Header toHeader() {
+			Header h = new Header();
+			putInto(h);
+			return h;
+		}
+		
+		/*package*/ void putInto(Header h) {
+			for (int t = 0; t < TYPE_COUNT; t++) {
+				if ((present & (1 << t)) != 0) {
+					h.put(TYPES[t], box(codec.typeSize[t], values[t]));
+				}
+			}
+		}
+	}
+}
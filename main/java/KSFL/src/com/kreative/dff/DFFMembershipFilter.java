@@ -0,0 +1,154 @@
+/*
+ * Copyright &copy; 2009-2011 Rebecca G. Bettencourt / Kreative Software
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License
+ * Version 1.1 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * <a href="http://www.mozilla.org/MPL/">http://www.mozilla.org/MPL/</a>
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * <p>
+ * Alternatively, the contents of this file may be used under the terms
+ * of the GNU Lesser General Public License (the "LGPL License"), in which
+ * case the provisions of LGPL License are applicable instead of those
+ * above. If you wish to allow use of your version of this file only
+ * under the terms of the LGPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the LGPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the LGPL License.
+ * @since KSFL 1.2
+ * @author Rebecca G. Bettencourt, Kreative Software
+ */
+
+package com.kreative.dff;
+
+/**
+ * The <code>DFFMembershipFilter</code> class is a Bloom filter over the
+ * type/ID pairs and type/name pairs of the resources in a <code>DFFResourceProvider</code>.
+ * It can say for certain that a resource does not exist, without touching
+ * the provider; if it says a resource might exist, the provider must still be asked.
+ * Resources can be added to the filter, but not removed.
+ * @since KSFL 1.2
+ * @author Rebecca G. Bettencourt, Kreative Software
+ */
+public class DFFMembershipFilter {
+	private static final int BITS_PER_ENTRY = 10;
+	private static final int HASH_COUNT = 7;
+	
+	private final long[] bits;
+	private final int mask;
+	private final int capacity;
+	private int count;
+	
+	/**
+	 * Creates a new, empty filter sized for the specified number of entries.
+	 * Each resource added by both ID and name counts as two entries.
+	 * With that many entries or fewer, the false positive rate is about one percent.
+	 * @param capacity the expected number of entries.
+	 */
+	public DFFMembershipFilter(int capacity) {
+		int n = 64;
+		long need = (long)Math.max(capacity, 1) * BITS_PER_ENTRY;
+		while (n < need && n < (1 << 30)) n <<= 1;
+		this.bits = new long[n >>> 6];
+		this.mask = n - 1;
+		this.capacity = Math.max(capacity, 1);
+		this.count = 0;
+	}
+	
+	/**
+	 * Returns the number of entries this filter was sized for.
+	 * @return the number of entries this filter was sized for.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+	
+	/**
+	 * Returns the number of entries added to this filter.
+	 * @return the number of entries added to this filter.
+	 */
+	public int getCount() {
+		return count;
+	}
+	
+	/**
+	 * Adds a resource by type and ID number.
+	 * @param type the type of the resource.
+	 * @param id the ID number of the resource.
+	 */
+	public void add(long type, int id) {
+		set(hash(type, id));
+	}
+	
+	/**
+	 * Adds a resource by type and name.
+	 * @param type the type of the resource.
+	 * @param name the name of the resource.
+	 */
+	public void add(long type, String name) {
+		set(hash(type, name));
+	}
+	
+	/**
+	 * Determines if a resource of the specified type and ID number might exist.
+	 * @param type the type of the resource.
+	 * @param id the ID number of the resource.
+	 * @return false if the resource definitely does not exist, true if it might.
+	 */
+	public boolean mightContain(long type, int id) {
+		return test(hash(type, id));
+	}
+	
+	/**
+	 * Determines if a resource of the specified type and name might exist.
+	 * @param type the type of the resource.
+	 * @param name the name of the resource.
+	 * @return false if the resource definitely does not exist, true if it might.
+	 */
+	public boolean mightContain(long type, String name) {
+		return test(hash(type, name));
+	}
+	
+	private void set(long h) {
+		int h1 = (int)h;
+		int h2 = (int)(h >>> 32) | 1;
+		for (int i = 0; i < HASH_COUNT; i++, h1 += h2) {
+			int b = h1 & mask;
+			bits[b >>> 6] |= (1L << b);
+		}
+		count++;
+	}
+	
+	private boolean test(long h) {
+		int h1 = (int)h;
+		int h2 = (int)(h >>> 32) | 1;
+		for (int i = 0; i < HASH_COUNT; i++, h1 += h2) {
+			int b = h1 & mask;
+			if ((bits[b >>> 6] & (1L << b)) == 0) return false;
+		}
+		return true;
+	}
+	
+	private static long hash(long type, int id) {
+		return mix(type * 0x9E3779B97F4A7C15L + id);
+	}
+	
+	private static long hash(long type, String name) {
+		return mix((type * 0x9E3779B97F4A7C15L) ^ (name.hashCode() * 0xC2B2AE3D27D4EB4FL) ^ 0x5555555555555555L);
+	}
+	
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
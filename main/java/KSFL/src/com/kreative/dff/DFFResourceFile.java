@@ -33,6 +33,7 @@ import java.io.IOException;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Iterator;
+import com.kreative.ksfl.AtomicFileWriter;
 import com.kreative.ksfl.KSFLUtilities;
 
 /**
@@ -62,6 +63,9 @@ public class DFFResourceFile extends DFFResourceProvider {
 	private int d2objectCount;
 	private long d2headerSpace, d2nameSpace, d2dataSpace;
 	private String textEncoding = "UTF-8";
+	private DFFMembershipFilter filter = null;
+	private AtomicFileWriter working = null;
+	private boolean modified = false;
 	
 	private String ns(byte[] a) {
 		try {
@@ -411,9 +415,48 @@ public class DFFResourceFile extends DFFResourceProvider {
 	 * @throws IOException if an I/O error occurs.
 	 */
 	public DFFResourceFile(File f, String mode, int create, int version, boolean le) throws IOException {
-		raf = new RandomAccessFile(f, mode);
+		this(f, mode, create, version, le, false);
+	}
+	
+	/**
+	 * Creates a <code>DFFResourceFile</code> around a file.
+	 * If <code>transactional</code> is true and the file is opened for writing,
+	 * the file itself is never modified in place. Changes are made to a copy
+	 * of the file in the same directory, which replaces the file in a single
+	 * atomic rename when <code>commit</code>, <code>flush</code>, or
+	 * <code>close</code> is called. If the program crashes before then,
+	 * the file is left as it was.
+	 * Since <code>flush</code> and <code>close</code> cannot throw
+	 * <code>IOException</code>, they report a failed commit by throwing a
+	 * <code>RuntimeException</code>; call <code>commit</code> to get the
+	 * <code>IOException</code> itself. If <code>close</code> fails to commit,
+	 * the copy is kept, and its path is given in the exception message.
+	 * @param f the file object.
+	 * @param mode the access mode, as described by <code>RandomAccessFile(File, String)</code>.
+	 * @param create <code>CREATE_ALWAYS</code> if a new resource structure should be created, <code>CREATE_IF_EMPTY</code> if a new resource should be created if the file is empty, <code>CREATE_NEVER</code> if the file should not be modified.
+	 * @param version the DFF version to use; one of 1, 2, or 3.
+	 * @param le true if the DFF structure should use little-endian fields, false for big-endian.
+	 * @param transactional true if changes should be written to a copy of the file and committed atomically.
+	 * @throws NotADFFFileException if the file does not start with any of the magic numbers for DFF files.
+	 * @throws IOException if an I/O error occurs.
+	 * @since KSFL 1.2
+	 */
+	public DFFResourceFile(File f, String mode, int create, int version, boolean le, boolean transactional) throws IOException {
 		readOnly = (mode.equalsIgnoreCase("r"));
+		if (transactional && !readOnly) {
+			working = new AtomicFileWriter(f);
+			try {
+				if (create != CREATE_ALWAYS && f.exists()) working.copyFrom(f);
+			} catch (IOException e) {
+				working.abort();
+				throw e;
+			}
+			raf = working.getRandomAccessFile();
+		} else {
+			raf = new RandomAccessFile(f, mode);
+		}
 		if ((create == CREATE_ALWAYS) || ((create == CREATE_IF_EMPTY) && (raf.length() == 0))) {
+			modified = (working != null);
 			this.version = version;
 			this.sb = le;
 			switch (version) {
@@ -516,6 +559,7 @@ public class DFFResourceFile extends DFFResourceProvider {
 	 */
 	public synchronized void setTextEncoding(String encoding) {
 		textEncoding = encoding;
+		filter = null;
 	}
 	
 	/**
@@ -532,18 +576,74 @@ public class DFFResourceFile extends DFFResourceProvider {
 		return readOnly;
 	}
 	
+	/**
+	 * Returns true if changes are being made to a copy of the file
+	 * that replaces the file when committed.
+	 * @return true if changes are committed atomically.
+	 * @since KSFL 1.2
+	 */
+	public boolean isTransactional() {
+		return working != null;
+	}
+	
+	/**
+	 * Replaces the file with the copy that changes have been made to,
+	 * if any changes have been made since the last commit. The copy is
+	 * forced to disk and then renamed over the file. Does nothing
+	 * if this <code>DFFResourceFile</code> is not transactional.
+	 * Changes continue to be made to a fresh copy of the committed file,
+	 * so each commit takes time proportional to the size of the file,
+	 * not the size of the changes.
+	 * @throws IOException if an I/O error occurs. The file is left as it was.
+	 * @since KSFL 1.2
+	 */
+	public synchronized void commit() throws IOException {
+		if (working != null && modified) {
+			AtomicFileWriter next = working.copy();
+			long fp = raf.getFilePointer();
+			try {
+				working.commit();
+			} catch (IOException e) {
+				working.abort();
+				throw e;
+			} finally {
+				working = next;
+				raf = next.getRandomAccessFile();
+				raf.seek(fp);
+			}
+			modified = false;
+		}
+	}
+	
 	@Override
 	public synchronized void flush() {
-		// nothing
+		try {
+			commit();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
 	}
 	
 	@Override
 	public synchronized void close() {
-		try { raf.close(); } catch (Exception e) {}
+		if (working != null) {
+			if (modified) {
+				try {
+					working.commit();
+				} catch (IOException e) {
+					throw new RuntimeException("Could not commit changes; they were kept in " + working.getTempFile(), e);
+				}
+			} else {
+				working.abort();
+			}
+		} else {
+			try { raf.close(); } catch (Exception e) {}
+		}
 	}
 	
 	@Override
 	public synchronized boolean add(DFFResource r) throws DFFResourceAlreadyExistsException {
+		filter = null;
 		if (r.name == null) r.name = "";
 		if (r.data == null) r.data = new byte[0];
 		switch (version) {
@@ -560,6 +660,7 @@ public class DFFResourceFile extends DFFResourceProvider {
 						raf.writeShort(0);
 						raf.writeInt(sb?Integer.reverseBytes(r.data.length):r.data.length);
 						raf.write(r.data);
+						modified = true;
 						return true;
 					} catch (IOException ioe2) {
 						raf.setLength(l);
@@ -592,6 +693,7 @@ public class DFFResourceFile extends DFFResourceProvider {
 					d2objectCount++;
 					raf.seek(4L);
 					raf.writeInt(sb?Integer.reverseBytes(d2objectCount):d2objectCount);
+					modified = true;
 					return true;
 				} catch (IOException ioe) {}
 			}
@@ -644,6 +746,7 @@ public class DFFResourceFile extends DFFResourceProvider {
 					if (r.data.length > 0) {
 						d3paste(m, null, m[8], r.data, INSERTED_DATA, r.type, r.id);
 					}
+					modified = true;
 					return true;
 				}
 			}
@@ -655,6 +758,86 @@ public class DFFResourceFile extends DFFResourceProvider {
 		return false;
 	}
 	
+	@Override
+	public synchronized boolean mightContain(long type, int id) {
+		DFFMembershipFilter f = getFilter();
+		return (f == null) || f.mightContain(type, (version == 1) ? (int)(short)id : id);
+	}
+	@Override
+	public synchronized boolean mightContain(long type, String name) {
+		if (version == 1 || name == null || name.length() == 0) return true;
+		DFFMembershipFilter f = getFilter();
+		return (f == null) || f.mightContain(type, name);
+	}
+	
+	private DFFMembershipFilter getFilter() {
+		if (filter == null) {
+			try {
+				filter = buildFilter();
+			} catch (IOException ioe) {
+				filter = null;
+			}
+		}
+		return filter;
+	}
+	
+	private DFFMembershipFilter buildFilter() throws IOException {
+		switch (version) {
+		case 1:
+			List<Long> d1t = new ArrayList<Long>();
+			List<Integer> d1i = new ArrayList<Integer>();
+			raf.seek(4L);
+			while (raf.getFilePointer()+16L <= raf.length()) {
+				long t = sb?Long.reverseBytes(raf.readLong()):raf.readLong();
+				short i = sb?Short.reverseBytes(raf.readShort()):raf.readShort();
+				raf.readShort();
+				int l = sb?Integer.reverseBytes(raf.readInt()):raf.readInt();
+				d1t.add(t);
+				d1i.add((int)i);
+				raf.skipBytes(l);
+			}
+			DFFMembershipFilter d1f = new DFFMembershipFilter(d1t.size());
+			for (int i = 0; i < d1t.size(); i++) d1f.add(d1t.get(i), d1i.get(i));
+			return d1f;
+		case 2:
+			DFFMembershipFilter d2f = new DFFMembershipFilter(d2objectCount*2);
+			int d2i = 0;
+			long d2h = d2headerSpace;
+			long d2n = d2nameSpace;
+			while (d2i < d2objectCount && d2h < d2nameSpace) {
+				raf.seek(d2h);
+				long t = sb?Long.reverseBytes(raf.readLong()):raf.readLong();
+				short id1 = sb?Short.reverseBytes(raf.readShort()):raf.readShort();
+				raf.readShort();
+				raf.readShort();
+				short id2 = sb?Short.reverseBytes(raf.readShort()):raf.readShort();
+				d2f.add(t, (id1 & 0xFFFF) | ((id2 << 16) & 0xFFFF0000));
+				if (d2n < d2dataSpace) {
+					raf.seek(d2n);
+					int nl = (raf.readByte() & 0xFF);
+					byte[] nb = new byte[nl];
+					raf.read(nb);
+					d2f.add(t, ns(nb));
+					d2n += 1+nl;
+				}
+				d2h += 20;
+				d2i++;
+			}
+			return d2f;
+		case 3:
+			long[] d3t = getTypes();
+			int d3c = 0;
+			for (long t : d3t) d3c += getResourceCount(t);
+			DFFMembershipFilter d3f = new DFFMembershipFilter(d3c*2);
+			for (long t : d3t) {
+				for (int id : getIDs(t)) d3f.add(t, id);
+				for (String n : getNames(t)) if (n.length() > 0) d3f.add(t, n);
+			}
+			return d3f;
+		}
+		return null;
+	}
+	
 	@Override
 	public synchronized boolean contains(long type, int id) {
 		switch (version) {
@@ -1170,6 +1353,7 @@ public class DFFResourceFile extends DFFResourceProvider {
 					raf.seek(d1i+12L);
 					int d1l = sb?Integer.reverseBytes(raf.readInt()):raf.readInt();
 					KSFLUtilities.cut(raf, d1i, (long)d1l+16L);
+					modified = true;
 					return true;
 				} catch (IOException ioe1) {}
 			}
@@ -1186,6 +1370,7 @@ public class DFFResourceFile extends DFFResourceProvider {
 					d2objectCount--;
 					raf.seek(4L);
 					raf.writeInt(sb?Integer.reverseBytes(d2objectCount):d2objectCount);
+					modified = true;
 					return true;
 				} catch (IOException ioe1) {}
 			}
@@ -1207,6 +1392,7 @@ public class DFFResourceFile extends DFFResourceProvider {
 						raf.writeInt(sb?Integer.reverseBytes((int)d3i[2]-1):((int)d3i[2]-1));
 					}
 					if (d3i[5] > 0) d3cut(null, d3i, d3i[5], d3i[6], REMOVED_OBJECT_RECORD, type, id);
+					modified = true;
 					return true;
 				} 
 			} catch (IOException ioe) {}
@@ -1231,6 +1417,7 @@ public class DFFResourceFile extends DFFResourceProvider {
 					d2objectCount--;
 					raf.seek(4L);
 					raf.writeInt(sb?Integer.reverseBytes(d2objectCount):d2objectCount);
+					modified = true;
 					return true;
 				} catch (IOException ioe1) {}
 			}
@@ -1254,6 +1441,7 @@ public class DFFResourceFile extends DFFResourceProvider {
 						raf.writeInt(sb?Integer.reverseBytes((int)d3i[2]-1):((int)d3i[2]-1));
 					}
 					if (d3i[5] > 0) d3cut(null, d3i, d3i[5], d3i[6], REMOVED_OBJECT_RECORD, type, id);
+					modified = true;
 					return true;
 				} 
 			} catch (IOException ioe) {}
@@ -1280,6 +1468,7 @@ public class DFFResourceFile extends DFFResourceProvider {
 	
 	@Override
 	public synchronized boolean setAttributes(long type, int id, DFFResource r) throws DFFResourceAlreadyExistsException {
+		filter = null;
 		if (r.name == null) r.name = "";
 		switch (version) {
 		case 1:
@@ -1293,6 +1482,7 @@ public class DFFResourceFile extends DFFResourceProvider {
 						raf.seek(d1i);
 						raf.writeLong(sb?Long.reverseBytes(r.type):r.type);
 						raf.writeShort(sb?Short.reverseBytes((short)r.id):(short)r.id);
+						modified = true;
 						return true;
 					} catch (IOException ioe1) {}
 				}
@@ -1318,6 +1508,7 @@ public class DFFResourceFile extends DFFResourceProvider {
 						KSFLUtilities.cut(raf, d2i[1], d2i[4]);
 						KSFLUtilities.paste(raf, d2i[1], n);
 						d2dataSpace = d2dataSpace - d2i[4] + n.length;
+						modified = true;
 						return true;
 					} catch (IOException ioe) {}
 				}
@@ -1425,6 +1616,7 @@ public class DFFResourceFile extends DFFResourceProvider {
 							raf.writeInt((int)(d3i[7] = 0));
 							d3i[8] = 0;
 						}
+						modified = true;
 						return true;
 					}
 				}
@@ -1435,6 +1627,7 @@ public class DFFResourceFile extends DFFResourceProvider {
 	}
 	@Override
 	public synchronized boolean setAttributes(long type, String name, DFFResource r) throws DFFResourceAlreadyExistsException {
+		filter = null;
 		if (r.name == null) r.name = "";
 		switch (version) {
 		case 1:
@@ -1459,6 +1652,7 @@ public class DFFResourceFile extends DFFResourceProvider {
 						KSFLUtilities.cut(raf, d2i[1], d2i[4]);
 						KSFLUtilities.paste(raf, d2i[1], n);
 						d2dataSpace = d2dataSpace - d2i[4] + n.length;
+						modified = true;
 						return true;
 					} catch (IOException ioe) {}
 				}
@@ -1568,6 +1762,7 @@ public class DFFResourceFile extends DFFResourceProvider {
 							raf.writeInt((int)(d3i[7] = 0));
 							d3i[8] = 0;
 						}
+						modified = true;
 						return true;
 					}
 				}
@@ -1596,6 +1791,7 @@ public class DFFResourceFile extends DFFResourceProvider {
 					}
 					raf.seek(d1i+12L);
 					raf.writeInt(sb?Integer.reverseBytes((int)len):(int)len);
+					modified = true;
 					return true;
 				} catch (IOException ioe1) {}
 			}
@@ -1614,6 +1810,7 @@ public class DFFResourceFile extends DFFResourceProvider {
 					}
 					raf.seek(d2i[0]+16L);
 					raf.writeInt(sb?Integer.reverseBytes((int)len):(int)len);
+					modified = true;
 					return true;
 				} catch (IOException ioe) {}
 			}
@@ -1633,6 +1830,7 @@ public class DFFResourceFile extends DFFResourceProvider {
 					} else {
 						d3paste(null, d3i, (d3i[9]+d3i[10]), (len-d3i[10]), INSERTED_DATA, type, id);
 					}
+					modified = true;
 					return true;
 				}
 			} catch (IOException ioe) {}
@@ -1659,6 +1857,7 @@ public class DFFResourceFile extends DFFResourceProvider {
 					}
 					raf.seek(d2i[0]+16L);
 					raf.writeInt(sb?Integer.reverseBytes((int)len):(int)len);
+					modified = true;
 					return true;
 				} catch (IOException ioe) {}
 			}
@@ -1679,6 +1878,7 @@ public class DFFResourceFile extends DFFResourceProvider {
 					} else {
 						d3paste(null, d3i, (d3i[9]+d3i[10]), (len-d3i[10]), INSERTED_DATA, type, id);
 					}
+					modified = true;
 					return true;
 				}
 			} catch (IOException ioe) {}
@@ -1702,6 +1902,7 @@ public class DFFResourceFile extends DFFResourceProvider {
 					KSFLUtilities.paste(raf, d1i+16L, data);
 					raf.seek(d1i+12L);
 					raf.writeInt(sb?Integer.reverseBytes(data.length):data.length);
+					modified = true;
 					return true;
 				} catch (IOException ioe1) {}
 			}
@@ -1714,6 +1915,7 @@ public class DFFResourceFile extends DFFResourceProvider {
 					KSFLUtilities.paste(raf, d2i[2], data);
 					raf.seek(d2i[0]+16L);
 					raf.writeInt(sb?Integer.reverseBytes(data.length):data.length);
+					modified = true;
 					return true;
 				} catch (IOException ioe) {}
 			}
@@ -1737,6 +1939,7 @@ public class DFFResourceFile extends DFFResourceProvider {
 						raf.seek(d3i[5]+18);
 						KSFLUtilities.writeUInt48(raf, 0);
 					}
+					modified = true;
 					return true;
 				}
 			} catch (IOException ioe) {}
@@ -1757,6 +1960,7 @@ public class DFFResourceFile extends DFFResourceProvider {
 					KSFLUtilities.paste(raf, d2i[2], data);
 					raf.seek(d2i[0]+16L);
 					raf.writeInt(sb?Integer.reverseBytes(data.length):data.length);
+					modified = true;
 					return true;
 				} catch (IOException ioe) {}
 			}
@@ -1781,6 +1985,7 @@ public class DFFResourceFile extends DFFResourceProvider {
 						raf.seek(d3i[5]+18);
 						KSFLUtilities.writeUInt48(raf, 0);
 					}
+					modified = true;
 					return true;
 				}
 			} catch (IOException ioe) {}
@@ -1812,6 +2017,7 @@ public class DFFResourceFile extends DFFResourceProvider {
 					}
 					raf.seek(d1i+16L+doffset);
 					raf.write(data, off, len);
+					modified = true;
 					return len;
 				} catch (IOException ioe1) {}
 			}
@@ -1834,6 +2040,7 @@ public class DFFResourceFile extends DFFResourceProvider {
 					}
 					raf.seek(d2i[2]+doffset);
 					raf.write(data, off, len);
+					modified = true;
 					return len;
 				} catch (IOException ioe) {}
 			}
@@ -1858,6 +2065,7 @@ public class DFFResourceFile extends DFFResourceProvider {
 						KSFLUtilities.cut(raf, (d3i[9]+doffset), len);
 						KSFLUtilities.paste(raf, (d3i[9]+doffset), KSFLUtilities.copy(data, off, len));
 					}
+					modified = true;
 					return len;
 				}
 			} catch (IOException ioe) {}
@@ -1888,6 +2096,7 @@ public class DFFResourceFile extends DFFResourceProvider {
 					}
 					raf.seek(d2i[2]+doffset);
 					raf.write(data, off, len);
+					modified = true;
 					return len;
 				} catch (IOException ioe) {}
 			}
@@ -1914,6 +2123,7 @@ public class DFFResourceFile extends DFFResourceProvider {
 						KSFLUtilities.cut(raf, (d3i[9]+doffset), len);
 						KSFLUtilities.paste(raf, (d3i[9]+doffset), KSFLUtilities.copy(data, off, len));
 					}
+					modified = true;
 					return len;
 				}
 			} catch (IOException ioe) {}
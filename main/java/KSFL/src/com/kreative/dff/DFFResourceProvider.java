@@ -115,6 +115,31 @@ public abstract class DFFResourceProvider {
 	 */
 	public abstract boolean contains(long type, String name);
 	
+	/**
+	 * Quickly determines if the specified resource might exist, without
+	 * the cost of actually looking for it. If this returns false, the
+	 * resource definitely does not exist; if this returns true, it might.
+	 * The default implementation always returns true.
+	 * @param type the type of the resource.
+	 * @param id the ID number of the resource.
+	 * @return false if a resource of the specified type and ID number definitely does not exist, true otherwise.
+	 */
+	public boolean mightContain(long type, int id) {
+		return true;
+	}
+	/**
+	 * Quickly determines if the specified resource might exist, without
+	 * the cost of actually looking for it. If this returns false, the
+	 * resource definitely does not exist; if this returns true, it might.
+	 * The default implementation always returns true.
+	 * @param type the type of the resource.
+	 * @param name the name of the resource.
+	 * @return false if a resource of the specified type and name definitely does not exist, true otherwise.
+	 */
+	public boolean mightContain(long type, String name) {
+		return true;
+	}
+	
 	/**
 	 * Retrieves a resource from this <code>DFFResourceProvider</code>.
 	 * <br><br>
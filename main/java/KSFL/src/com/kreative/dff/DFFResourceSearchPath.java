@@ -43,6 +43,10 @@ import java.util.ListIterator;
  * on the current DFFResourceProvider. Methods that only read DFF objects by name or ID
  * start by looking at the current DFFResourceProvider, then keep looking at later elements
  * in the list until the DFF object is found or all elements have been searched.
+ * <p>
+ * Before looking for a DFF object in a DFFResourceProvider, the search path asks
+ * its <code>mightContain</code> method, so DFFResourceProviders that can say for
+ * certain that a DFF object does not exist are not searched at all.
  * @since KSFL 1.0
  * @author Rebecca G. Bettencourt, Kreative Software
  */
@@ -134,116 +138,105 @@ public class DFFResourceSearchPath extends DFFResourceProvider implements List<D
 	
 	@Override
 	public boolean contains(long type, int id) {
+		return find(type, id) != null;
+	}
+	@Override
+	public boolean contains(long type, String name) {
+		return find(type, name) != null;
+	}
+	
+	@Override
+	public boolean mightContain(long type, int id) {
 		for (int i = start; i < list.size(); i++) {
-			if (list.get(i).contains(type, id)) {
+			if (list.get(i).mightContain(type, id)) {
 				return true;
 			}
 		}
 		return false;
 	}
 	@Override
-	public boolean contains(long type, String name) {
+	public boolean mightContain(long type, String name) {
 		for (int i = start; i < list.size(); i++) {
-			if (list.get(i).contains(type, name)) {
+			if (list.get(i).mightContain(type, name)) {
 				return true;
 			}
 		}
 		return false;
 	}
 	
-	@Override
-	public DFFResource get(long type, int id) {
+	private DFFResourceProvider find(long type, int id) {
 		for (int i = start; i < list.size(); i++) {
-			if (list.get(i).contains(type, id)) {
-				return list.get(i).get(type, id);
+			DFFResourceProvider p = list.get(i);
+			if (p.mightContain(type, id) && p.contains(type, id)) {
+				return p;
 			}
 		}
 		return null;
 	}
-	@Override
-	public DFFResource get(long type, String name) {
+	
+	private DFFResourceProvider find(long type, String name) {
 		for (int i = start; i < list.size(); i++) {
-			if (list.get(i).contains(type, name)) {
-				return list.get(i).get(type, name);
+			DFFResourceProvider p = list.get(i);
+			if (p.mightContain(type, name) && p.contains(type, name)) {
+				return p;
 			}
 		}
 		return null;
 	}
 	
+	@Override
+	public DFFResource get(long type, int id) {
+		DFFResourceProvider p = find(type, id);
+		return (p == null) ? null : p.get(type, id);
+	}
+	@Override
+	public DFFResource get(long type, String name) {
+		DFFResourceProvider p = find(type, name);
+		return (p == null) ? null : p.get(type, name);
+	}
+	
 	@Override
 	public DFFResource getAttributes(long type, int id) {
-		for (int i = start; i < list.size(); i++) {
-			if (list.get(i).contains(type, id)) {
-				return list.get(i).getAttributes(type, id);
-			}
-		}
-		return null;
+		DFFResourceProvider p = find(type, id);
+		return (p == null) ? null : p.getAttributes(type, id);
 	}
 	@Override
 	public DFFResource getAttributes(long type, String name) {
-		for (int i = start; i < list.size(); i++) {
-			if (list.get(i).contains(type, name)) {
-				return list.get(i).getAttributes(type, name);
-			}
-		}
-		return null;
+		DFFResourceProvider p = find(type, name);
+		return (p == null) ? null : p.getAttributes(type, name);
 	}
 	
 	@Override
 	public long getLength(long type, int id) {
-		for (int i = start; i < list.size(); i++) {
-			if (list.get(i).contains(type, id)) {
-				return list.get(i).getLength(type, id);
-			}
-		}
-		return 0;
+		DFFResourceProvider p = find(type, id);
+		return (p == null) ? 0 : p.getLength(type, id);
 	}
 	@Override
 	public long getLength(long type, String name) {
-		for (int i = start; i < list.size(); i++) {
-			if (list.get(i).contains(type, name)) {
-				return list.get(i).getLength(type, name);
-			}
-		}
-		return 0;
+		DFFResourceProvider p = find(type, name);
+		return (p == null) ? 0 : p.getLength(type, name);
 	}
 	
 	@Override
 	public byte[] getData(long type, int id) {
-		for (int i = start; i < list.size(); i++) {
-			if (list.get(i).contains(type, id)) {
-				return list.get(i).getData(type, id);
-			}
-		}
-		return null;
+		DFFResourceProvider p = find(type, id);
+		return (p == null) ? null : p.getData(type, id);
 	}
 	@Override
 	public byte[] getData(long type, String name) {
-		for (int i = start; i < list.size(); i++) {
-			if (list.get(i).contains(type, name)) {
-				return list.get(i).getData(type, name);
-			}
-		}
-		return null;
+		DFFResourceProvider p = find(type, name);
+		return (p == null) ? null : p.getData(type, name);
 	}
 	
 	@Override
 	public int read(long type, int id, long doffset, byte[] data, int off, int len) {
-		for (int i = start; i < list.size(); i++) {
-			if (list.get(i).contains(type, id)) {
-				return list.get(i).read(type, id, doffset, data, off, len);
-			}
-		}
-		return 0;
+		DFFResourceProvider p = find(type, id);
+		return (p == null) ? 0 : p.read(type, id, doffset, data, off, len);
 	}
 	@Override
 	public int read(long type, String name, long doffset, byte[] data, int off, int len) {
-		for (int i = start; i < list.size(); i++) {
-			if (list.get(i).contains(type, name)) {
-				return list.get(i).read(type, name, doffset, data, off, len);
-			}
-		}
-		return 0;
+		DFFResourceProvider p = find(type, name);
+		return (p == null) ? 0 : p.read(type, name, doffset, data, off, len);
 	}
 	
 	@Override
@@ -411,22 +404,14 @@ public class DFFResourceSearchPath extends DFFResourceProvider implements List<D
 	
 	@Override
 	public String getNameFromID(long type, int id) {
-		for (int i = start; i < list.size(); i++) {
-			if (list.get(i).contains(type, id)) {
-				return list.get(i).getNameFromID(type, id);
-			}
-		}
-		return "";
+		DFFResourceProvider p = find(type, id);
+		return (p == null) ? "" : p.getNameFromID(type, id);
 	}
 	
 	@Override
 	public int getIDFromName(long type, String name) {
-		for (int i = start; i < list.size(); i++) {
-			if (list.get(i).contains(type, name)) {
-				return list.get(i).getIDFromName(type, name);
-			}
-		}
-		return 0;
+		DFFResourceProvider p = find(type, name);
+		return (p == null) ? 0 : p.getIDFromName(type, name);
 	}
 	
 	public boolean add(DFFResourceProvider elem) {
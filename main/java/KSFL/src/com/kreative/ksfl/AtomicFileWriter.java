@@ -0,0 +1,226 @@
+/*
+ * Copyright &copy; 2009-2011 Rebecca G. Bettencourt / Kreative Software
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License
+ * Version 1.1 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * <a href="http://www.mozilla.org/MPL/">http://www.mozilla.org/MPL/</a>
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * <p>
+ * Alternatively, the contents of this file may be used under the terms
+ * of the GNU Lesser General Public License (the "LGPL License"), in which
+ * case the provisions of LGPL License are applicable instead of those
+ * above. If you wish to allow use of your version of this file only
+ * under the terms of the LGPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the LGPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the LGPL License.
+ * @since KSFL 1.2
+ * @author Rebecca G. Bettencourt, Kreative Software
+ */
+
+package com.kreative.ksfl;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The <code>AtomicFileWriter</code> class replaces the contents of a file
+ * in a way that survives a crash. The new contents are written to a
+ * temporary file in the same directory as the target file. When
+ * <code>commit</code> is called, the temporary file is forced to disk
+ * and then renamed over the target file. If anything goes wrong before
+ * then, the target file is left as it was.
+ * <p>
+ * The target file must be an ordinary file in a writable directory.
+ * Since the target file is replaced rather than modified, hard links to it
+ * will keep the old contents.
+ * @since KSFL 1.2
+ * @author Rebecca G. Bettencourt, Kreative Software
+ */
+public class AtomicFileWriter {
+	private static final int BUFFER_SIZE = 65536;
+	
+	private final File target;
+	private final File temp;
+	private final RandomAccessFile raf;
+	private BufferedOutputStream out;
+	private boolean open;
+	
+	/**
+	 * Creates an empty temporary file for replacing the specified file.
+	 * @param target the file to be replaced.
+	 * @throws IOException if the temporary file cannot be created.
+	 */
+	public AtomicFileWriter(File target) throws IOException {
+		this.target = target.getAbsoluteFile();
+		this.temp = File.createTempFile("." + this.target.getName() + ".", ".tmp", this.target.getParentFile());
+		this.raf = new RandomAccessFile(temp, "rw");
+		this.out = null;
+		this.open = true;
+	}
+	
+	/**
+	 * Returns the file that will be replaced.
+	 * @return the file that will be replaced.
+	 */
+	public File getTarget() {
+		return target;
+	}
+	
+	/**
+	 * Returns the temporary file holding the new contents.
+	 * @return the temporary file holding the new contents.
+	 */
+	public File getTempFile() {
+		return temp;
+	}
+	
+	/**
+	 * Returns a <code>RandomAccessFile</code> open on the temporary file.
+	 * @return a <code>RandomAccessFile</code> open on the temporary file.
+	 */
+	public RandomAccessFile getRandomAccessFile() {
+		return raf;
+	}
+	
+	/**
+	 * Returns a buffered output stream that writes to the temporary file,
+	 * starting at its current position. The stream does not need to be
+	 * flushed or closed; <code>commit</code> will flush it.
+	 * @return a buffered output stream that writes to the temporary file.
+	 */
+	public OutputStream getOutputStream() {
+		if (out == null) {
+			out = new BufferedOutputStream(Channels.newOutputStream(raf.getChannel()), BUFFER_SIZE);
+		}
+		return out;
+	}
+	
+	/**
+	 * Replaces the contents of the temporary file with the contents of
+	 * another file, copied sequentially.
+	 * @param src the file to copy.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	public void copyFrom(File src) throws IOException {
+		RandomAccessFile sraf = new RandomAccessFile(src, "r");
+		try {
+			copyFrom(sraf.getChannel());
+		} finally {
+			sraf.close();
+		}
+	}
+	
+	private void copyFrom(FileChannel src) throws IOException {
+		FileChannel dst = raf.getChannel();
+		long length = src.size();
+		dst.truncate(0);
+		long pos = 0;
+		while (pos < length) {
+			long n = src.transferTo(pos, length - pos, dst.position(pos));
+			if (n <= 0) throw new IOException("Could not copy " + target);
+			pos += n;
+		}
+		raf.seek(0);
+	}
+	
+	/**
+	 * Creates another <code>AtomicFileWriter</code> for the same target file
+	 * whose temporary file starts with the current contents of this one.
+	 * This allows the contents to be committed while changes continue to be
+	 * made to the copy.
+	 * @return a new <code>AtomicFileWriter</code>.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	public AtomicFileWriter copy() throws IOException {
+		if (out != null) out.flush();
+		AtomicFileWriter w = new AtomicFileWriter(target);
+		try {
+			w.copyFrom(raf.getChannel());
+		} catch (IOException e) {
+			w.abort();
+			throw e;
+		}
+		return w;
+	}
+	
+	/**
+	 * Forces the temporary file to disk, closes it, and renames it over the
+	 * target file. The rename is atomic where the file system supports it.
+	 * If the target file exists, its permissions are kept.
+	 * If this fails, the target file is left as it was and the temporary file
+	 * is closed but kept, so that its contents are not lost; call
+	 * <code>abort</code> to delete it.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	public void commit() throws IOException {
+		if (!open) throw new IOException("Already committed or aborted");
+		try {
+			if (out != null) out.flush();
+			raf.getChannel().force(true);
+		} finally {
+			open = false;
+			raf.close();
+		}
+		copyPermissions();
+		try {
+			Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		syncDirectory();
+	}
+	
+	/**
+	 * Closes and deletes the temporary file, leaving the target file as it was.
+	 * Does nothing if the temporary file has already been committed.
+	 * May be called after <code>commit</code> fails.
+	 */
+	public void abort() {
+		if (open) {
+			open = false;
+			try { raf.close(); } catch (IOException e) {}
+		}
+		if (temp.exists()) temp.delete();
+	}
+	
+	private void copyPermissions() {
+		try {
+			if (target.exists()) {
+				Files.setPosixFilePermissions(temp.toPath(), Files.getPosixFilePermissions(target.toPath()));
+			}
+		} catch (UnsupportedOperationException e) {
+			// not a POSIX file system
+		} catch (IOException e) {
+			// keep the default permissions
+		}
+	}
+	
+	private void syncDirectory() {
+		// makes the rename itself durable; not possible on every platform
+		try {
+			FileChannel dir = FileChannel.open(target.getParentFile().toPath(), StandardOpenOption.READ);
+			try {
+				dir.force(true);
+			} finally {
+				dir.close();
+			}
+		} catch (IOException e) {}
+	}
+}
@@ -346,6 +346,16 @@ public class KSFLCLI {
 			return null;
 		}
 		
+		public boolean isReadOnly() {
+			switch (this) {
+			case LIST: case NEXT: case VERIFY: case EXTRACT:
+			case INFO: case CAT: case HEXCAT:
+				return true;
+			default:
+				return false;
+			}
+		}
+		
 		public static void print(PrintStream out) {
 			out.println("  k[reate]");
 			out.println("  l[ist] [type]");
@@ -1464,12 +1474,14 @@ public class KSFLCLI {
 					try {
 						RandomAccessFile raf = new RandomAccessFile(f, "r");
 						img = new PEImage();
-						img.decompile(raf);
+						// a mapped file cannot be truncated on Windows,
+						// so map sections only if the file will not be written
+						img.decompile(raf, readOnly(ops));
 						raf.close();
 						int[] rl = img.ofstToSNO(img.dirEntries.get(2).virtualAddress, img.headerSize());
 						PESection rs = img.sections.get(rl[0]);
 						rd = new PEResourceDirectory();
-						rd.decompile(rs.data, rl[1]);
+						rd.decompile(rs.getData(), rl[1]);
 						modified = false;
 					} catch (IOException e) {
 						System.err.println("Error: Invalid file ("+e.getClass().getSimpleName()+": "+e.getMessage()+")");
@@ -2151,6 +2163,7 @@ public class KSFLCLI {
 		}
 		if (img != null && modified) {
 			try {
+				img.loadSections();
 				RandomAccessFile raf = new RandomAccessFile(f, "rwd");
 				raf.setLength(0);
 				int[] rl = img.ofstToSNO(img.dirEntries.get(2).virtualAddress, img.headerSize());
@@ -2166,6 +2179,13 @@ public class KSFLCLI {
 		}
 	}
 	
+	private static boolean readOnly(List<Operation> ops) {
+		for (Operation op : ops) {
+			if (!op.isReadOnly()) return false;
+		}
+		return true;
+	}
+	
 	private static void winPEExtract(PEResourceEntry re, File f) {
 		if (re instanceof PEResourceData) {
 			try {
@@ -0,0 +1,148 @@
+/*
+ * Copyright &copy; 2009-2011 Rebecca G. Bettencourt / Kreative Software
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License
+ * Version 1.1 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * <a href="http://www.mozilla.org/MPL/">http://www.mozilla.org/MPL/</a>
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * <p>
+ * Alternatively, the contents of this file may be used under the terms
+ * of the GNU Lesser General Public License (the "LGPL License"), in which
+ * case the provisions of LGPL License are applicable instead of those
+ * above. If you wish to allow use of your version of this file only
+ * under the terms of the LGPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the LGPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the LGPL License.
+ * @since KSFL 1.2
+ * @author Rebecca G. Bettencourt, Kreative Software
+ */
+
+package com.kreative.pe;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/*
+ * Computes the PE image checksum: the sum of the file as little-endian 16-bit
+ * words, excluding the checksum field itself, with end-around carry, plus the
+ * length of the file. The file is read through memory-mapped buffers, and
+ * large files are summed in parallel. Partial sums are kept unfolded, so they
+ * can be combined in any order and the carries folded in once at the end.
+ */
+public class PEChecksum {
+	public static final int PARALLEL_THRESHOLD = 4 << 20;
+	private static final int CHUNK_SIZE = 1 << 20;
+	private static final int WINDOW_SIZE = 64 << 20;
+	
+	private static ForkJoinPool sharedPool = null;
+	
+	private static synchronized ForkJoinPool getSharedPool() {
+		if (sharedPool == null) sharedPool = new ForkJoinPool();
+		return sharedPool;
+	}
+	
+	private PEChecksum() {}
+	
+	public static long checksumOffset(RandomAccessFile f) throws IOException {
+		f.seek(0x3C);
+		return (Integer.reverseBytes(f.readInt()) & 0xFFFFFFFFL) + 24 + 64;
+	}
+	
+	public static int readChecksum(RandomAccessFile f) throws IOException {
+		f.seek(checksumOffset(f));
+		return Integer.reverseBytes(f.readInt());
+	}
+	
+	public static int compute(RandomAccessFile f) throws IOException {
+		return compute(f.getChannel(), checksumOffset(f));
+	}
+	
+	public static int compute(final FileChannel fc, long checksumOfst) throws IOException {
+		final long len = fc.size();
+		long sum;
+		if (len < PARALLEL_THRESHOLD) {
+			sum = sum(fc, 0, len);
+		} else {
+			int chunks = (int)Math.min((len + CHUNK_SIZE - 1) / CHUNK_SIZE, Runtime.getRuntime().availableProcessors() * 4);
+			List<Callable<Long>> tasks = new ArrayList<Callable<Long>>(chunks);
+			for (int c = 0; c < chunks; c++) {
+				// chunk boundaries must fall on word boundaries
+				final long start = (len * c / chunks) & ~1L;
+				final long end = (c == chunks - 1) ? len : ((len * (c+1) / chunks) & ~1L);
+				tasks.add(new Callable<Long>() {
+					public Long call() throws IOException {
+						return sum(fc, start, end);
+					}
+				});
+			}
+			sum = 0;
+			for (Future<Long> result : getSharedPool().invokeAll(tasks)) {
+				try {
+					sum += result.get();
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while computing checksum.", ie);
+				} catch (ExecutionException ee) {
+					Throwable t = ee.getCause();
+					if (t instanceof IOException) throw (IOException)t;
+					if (t instanceof RuntimeException) throw (RuntimeException)t;
+					if (t instanceof Error) throw (Error)t;
+					throw new IOException(t);
+				}
+			}
+		}
+		// take the checksum field back out
+		if (checksumOfst >= 0 && checksumOfst < len) {
+			sum -= sum(fc, checksumOfst, Math.min(checksumOfst + 4, len));
+		}
+		while ((sum >>> 16) != 0) sum = (sum & 0xFFFF) + (sum >>> 16);
+		return (int)(sum + len);
+	}
+	
+	public static boolean verify(RandomAccessFile f) throws IOException {
+		return readChecksum(f) == compute(f);
+	}
+	
+	// unfolded sum of the 16-bit words in [start, end); start must be even
+	private static long sum(FileChannel fc, long start, long end) throws IOException {
+		long sum = 0;
+		for (long pos = start; pos < end; pos += WINDOW_SIZE) {
+			int n = (int)Math.min(WINDOW_SIZE, end - pos);
+			ByteBuffer b;
+			if (n < 4096) {
+				b = ByteBuffer.allocate(n);
+				while (b.hasRemaining() && fc.read(b, pos + b.position()) >= 0);
+				b.flip();
+			} else {
+				MappedByteBuffer mb = fc.map(FileChannel.MapMode.READ_ONLY, pos, n);
+				b = mb;
+			}
+			b.order(ByteOrder.LITTLE_ENDIAN);
+			while (b.remaining() >= 8) {
+				long v = b.getLong();
+				sum += (v & 0xFFFF) + ((v >>> 16) & 0xFFFF) + ((v >>> 32) & 0xFFFF) + (v >>> 48);
+			}
+			while (b.remaining() >= 2) sum += b.getShort() & 0xFFFF;
+			if (b.hasRemaining()) sum += b.get() & 0xFF;
+		}
+		return sum;
+	}
+}
@@ -30,6 +30,7 @@ package com.kreative.pe;
 import java.io.RandomAccessFile;
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.channels.FileChannel;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -288,6 +289,15 @@ public class PEImage implements Cloneable, Serializable {
 	}
 	
 	public void decompile(RandomAccessFile f) throws IOException {
+		decompile(f, false);
+	}
+	
+	// If lazy is true, section data is left in the file and mapped into memory
+	// on demand by PESection.getData() or getDataBuffer(), except for the
+	// resource section, whose RVAs have to be adjusted. The mappings remain
+	// valid after f is closed, but not after the file is truncated or rewritten;
+	// call loadSections() before writing over the same file.
+	public void decompile(RandomAccessFile f, boolean lazy) throws IOException {
 		f.seek(0);
 		if (f.readShort() != 0x4D5A) throw new IOException("Not a valid EXE file.");
 		f.seek(0x3C);
@@ -371,14 +381,24 @@ public class PEImage implements Cloneable, Serializable {
 		while (dit.hasNext()) {
 			PEDLLImport di = dit.next();
 			f.seek(dlli+di.nameOfst);
-			di.name = ""; byte b;
-			while ((b = f.readByte()) != 0) di.name += (char)(b & 0xFF);
+			StringBuilder name = new StringBuilder(); byte b;
+			while ((b = f.readByte()) != 0) name.append((char)(b & 0xFF));
+			di.name = name.toString();
 		}
+		long fl = f.length();
 		for (int i=0; i<numSections; i++) {
 			PESection s = sections.get(i);
-			s.data = new byte[s.virtualSize];
-			f.seek(s.rawDataOfst);
-			f.read(s.data, 0, Math.min(s.virtualSize, s.rawDataSize));
+			if (lazy) {
+				long ofst = Math.min(s.rawDataOfst & 0xFFFFFFFFL, fl);
+				long len = Math.min(Math.max(0, Math.min(s.virtualSize, s.rawDataSize)), fl - ofst);
+				s.data = null;
+				s.mapped = f.getChannel().map(FileChannel.MapMode.READ_ONLY, ofst, len);
+			} else {
+				s.data = new byte[s.virtualSize];
+				s.mapped = null;
+				f.seek(s.rawDataOfst);
+				f.read(s.data, 0, Math.min(s.virtualSize, s.rawDataSize));
+			}
 		}
 		//special magic for certain sections
 		//this is simply recalculating RVAs as if the VA of the section is zero
@@ -387,11 +407,24 @@ public class PEImage implements Cloneable, Serializable {
 			int[] sno = ofstToSNO(de.virtualAddress, sizeOfHeaders);
 			if (sno[0] >= 0) {
 				PESection s = sections.get(sno[0]);
-				PEResourceDirectory.subtractVA(s.data, sno[1], s.virtualAddress);
+				PEResourceDirectory.subtractVA(s.getData(), sno[1], s.virtualAddress);
 			}
 		}
 	}
 	
+	public static int computeChecksum(RandomAccessFile f) throws IOException {
+		return PEChecksum.compute(f);
+	}
+	
+	// checks the checksum read by decompile() against the contents of the file
+	public boolean verifyChecksum(RandomAccessFile f) throws IOException {
+		return checksum == PEChecksum.compute(f);
+	}
+	
+	public void loadSections() {
+		for (PESection s : sections) s.getData();
+	}
+	
 	public void recalculate() {
 		int hs = headerSize();
 		//pe header
@@ -434,10 +467,11 @@ public class PEImage implements Cloneable, Serializable {
 		Iterator<PESection> si = sections.iterator();
 		while (si.hasNext()) {
 			PESection s = si.next();
-			int ms = alignInMemory(s.data.length);
-			int fs = alignInFile(nonZeroSize(s.data));
-			int fus = alignInFile(s.data.length);
-			s.virtualSize = s.data.length;
+			byte[] data = s.getData();
+			int ms = alignInMemory(data.length);
+			int fs = alignInFile(nonZeroSize(data));
+			int fus = alignInFile(data.length);
+			s.virtualSize = data.length;
 			s.virtualAddress = sizeOfImage;
 			s.rawDataSize = fs;
 			s.rawDataOfst = fa;
@@ -566,37 +600,37 @@ public class PEImage implements Cloneable, Serializable {
 			f.seek(dlli+d.nameOfst);
 			f.write(nb);
 		}
+		//special magic for certain sections
+		//this is simply recalculating RVAs back to the new VA
+		//(and back again once the section has been written)
+		PESection rsrc = null; int rsrcOfst = 0;
+		if (dirEntries.size() > 2) {
+			PEDirectoryEntry de = dirEntries.get(2);
+			int[] sno = ofstToSNO(de.virtualAddress, sizeOfHeaders);
+			if (sno != null && sno[0] >= 0) {
+				rsrc = sections.get(sno[0]);
+				rsrcOfst = sno[1];
+				PEResourceDirectory.addVA(rsrc.getData(), rsrcOfst, rsrc.virtualAddress);
+			}
+		}
 		for (int i=0; i<numSections; i++) {
 			PESection s = (i < sections.size())?sections.get(i):new PESection();
 			if (s.rawDataSize > 0 && s.rawDataOfst > 0) {
+				byte[] data = s.getData();
 				f.seek(s.rawDataOfst);
 				f.write(new byte[s.rawDataSize]);
 				f.seek(s.rawDataOfst);
-				f.write(s.data, 0, Math.min(s.rawDataSize, s.data.length));
+				f.write(data, 0, Math.min(s.rawDataSize, data.length));
 			}
 		}
-		//special magic for certain sections
-		//this is simply recalculating RVAs back to the new VA
-		if (dirEntries.size() > 2) {
-			PEDirectoryEntry de = dirEntries.get(2);
-			int[] sno = ofstToSNO(de.virtualAddress, sizeOfHeaders);
-			if (sno[0] >= 0) {
-				PESection s = sections.get(sno[0]);
-				PEResourceDirectory.addVA(s.data, sno[1], s.virtualAddress);
-			}
+		if (rsrc != null) {
+			PEResourceDirectory.subtractVA(rsrc.getData(), rsrcOfst, rsrc.virtualAddress);
 		}
 		//checksum
 		//See Peter Szor, The Art of Computer Virus Research and Defense, Sec 6.2.8.1.12
 		//If Microsoft C&D's us, this can lift right out; without it, the checksum will
 		//be left at zero, and Windows will execute most things with a zero checksum.
-		checksum = 0;
-		f.seek(0);
-		long len = f.length();
-		for (int i=0; i<len; i+=2) {
-			checksum += (Short.reverseBytes(f.readShort()) & 0xFFFF);
-			if (checksum > 0xFFFF) checksum = (checksum & 0xFFFF) + 1;
-		}
-		checksum += (int)len;
+		checksum = PEChecksum.compute(f.getChannel(), cs);
 		f.seek(cs);
 		f.writeInt(Integer.reverseBytes(checksum));
 	}
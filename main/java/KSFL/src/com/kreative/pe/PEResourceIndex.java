@@ -0,0 +1,377 @@
+/*
+ * Copyright &copy; 2009-2011 Rebecca G. Bettencourt / Kreative Software
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License
+ * Version 1.1 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * <a href="http://www.mozilla.org/MPL/">http://www.mozilla.org/MPL/</a>
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * <p>
+ * Alternatively, the contents of this file may be used under the terms
+ * of the GNU Lesser General Public License (the "LGPL License"), in which
+ * case the provisions of LGPL License are applicable instead of those
+ * above. If you wish to allow use of your version of this file only
+ * under the terms of the LGPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the LGPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the LGPL License.
+ * @since KSFL 1.2
+ * @author Rebecca G. Bettencourt, Kreative Software
+ */
+
+package com.kreative.pe;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * A read-only index of the resources in a PE file, built by walking the
+ * resource directory tables in the file itself rather than decompiling
+ * the image. Each resource is mapped from its (type, name, language)
+ * path to the file offset and length of its data, so it can be read or
+ * transferred directly from the file.
+ */
+public class PEResourceIndex {
+	public static class Entry {
+		public final int type;
+		public final String typeName;
+		public final int id;
+		public final String name;
+		public final int language;
+		public final int codePage;
+		public final int rva;
+		public final long offset;
+		public final int length;
+		// file offset of the IMAGE_RESOURCE_DATA_ENTRY
+		/*package*/ final long dataEntry;
+		
+		private Entry(Object[] path, long dataEntry, int codePage, int rva, long offset, int length) {
+			this.type = (path[0] instanceof Integer) ? (Integer)path[0] : -1;
+			this.typeName = (path[0] instanceof String) ? (String)path[0] : null;
+			this.id = (path[1] instanceof Integer) ? (Integer)path[1] : -1;
+			this.name = (path[1] instanceof String) ? (String)path[1] : null;
+			this.language = (path[2] instanceof Integer) ? (Integer)path[2] : 0;
+			this.codePage = codePage;
+			this.rva = rva;
+			this.offset = offset;
+			this.length = length;
+			this.dataEntry = dataEntry;
+		}
+	}
+	
+	private static final class Key {
+		private final Object type;
+		private final Object name;
+		private final int language;
+		private Key(Object type, Object name, int language) {
+			this.type = type;
+			this.name = name;
+			this.language = language;
+		}
+		public boolean equals(Object o) {
+			if (o instanceof Key) {
+				Key k = (Key)o;
+				return type.equals(k.type) && name.equals(k.name) && language == k.language;
+			}
+			return false;
+		}
+		public int hashCode() {
+			return (type.hashCode() * 31 + name.hashCode()) * 31 + language;
+		}
+	}
+	
+	// The walk follows offsets read from the file, so it is bounded for the sake
+	// of hostile files: only the type, name, and language levels are read, each
+	// directory is read at most once however many entries point to it, and no
+	// more than MAX_ENTRIES directory entries are read in all.
+	private static final int MAX_DEPTH = 3;
+	private static final int MAX_ENTRIES = 65536;
+	
+	private RandomAccessFile raf;
+	private FileChannel fc;
+	private boolean ownsFile;
+	private long fileLength;
+	private int[] sectionVA;
+	private int[] sectionSize;
+	private long[] sectionOfst;
+	private int[] sectionRawSize;
+	private long sectionHeaders;
+	private int sectionAlign;
+	/*package*/ long checksumOfst = -1;
+	/*package*/ long rsrcDirEntryOfst = -1;
+	/*package*/ int rsrcSection = -1;
+	/*package*/ long rsrcOfst;
+	/*package*/ long rsrcUsedEnd;
+	private List<Entry> entries = new ArrayList<Entry>();
+	private Map<Key,Entry> byPath = new HashMap<Key,Entry>();
+	private Map<Object,List<Entry>> byType = new HashMap<Object,List<Entry>>();
+	private int entriesRead = 0;
+	// false if the walk stopped early, in which case parts of the resource
+	// section may be in use that rsrcUsedEnd does not account for
+	/*package*/ boolean complete = true;
+	
+	public PEResourceIndex(File f) throws IOException {
+		this(new RandomAccessFile(f, "r"), true);
+	}
+	
+	public PEResourceIndex(RandomAccessFile f) throws IOException {
+		this(f, false);
+	}
+	
+	private PEResourceIndex(RandomAccessFile f, boolean ownsFile) throws IOException {
+		this.raf = f;
+		this.fc = f.getChannel();
+		this.ownsFile = ownsFile;
+		try {
+			build();
+		} catch (IOException e) {
+			if (ownsFile) f.close();
+			throw e;
+		} catch (RuntimeException e) {
+			if (ownsFile) f.close();
+			throw new IOException("Not a valid PE file.", e);
+		}
+	}
+	
+	private ByteBuffer read(long pos, int len) throws IOException {
+		if (pos < 0 || len < 0 || pos + len > fileLength) throw new IOException("Unexpected end of file.");
+		ByteBuffer b = ByteBuffer.allocate(len).order(ByteOrder.LITTLE_ENDIAN);
+		while (b.hasRemaining()) {
+			if (fc.read(b, pos + b.position()) < 0) throw new IOException("Unexpected end of file.");
+		}
+		b.flip();
+		return b;
+	}
+	
+	private int rvaToSection(int rva) {
+		long r = rva & 0xFFFFFFFFL;
+		for (int i = 0; i < sectionVA.length; i++) {
+			long va = sectionVA[i] & 0xFFFFFFFFL;
+			if (r >= va && r < va + (sectionSize[i] & 0xFFFFFFFFL)) return i;
+		}
+		return -1;
+	}
+	
+	private long rvaToOfst(int rva) {
+		int i = rvaToSection(rva);
+		if (i < 0) return -1;
+		return sectionOfst[i] + ((rva & 0xFFFFFFFFL) - (sectionVA[i] & 0xFFFFFFFFL));
+	}
+	
+	/*package*/ int ofstToRVA(long ofst) {
+		return (int)(sectionVA[rsrcSection] + (ofst - sectionOfst[rsrcSection]));
+	}
+	
+	/*package*/ long rsrcSectionHeader() {
+		return sectionHeaders + rsrcSection * 40;
+	}
+	
+	/*package*/ long rsrcSectionStart() {
+		return sectionOfst[rsrcSection];
+	}
+	
+	// the end of the part of the resource section that is in the file and can be
+	// mapped into memory without changing the memory layout of the image
+	/*package*/ long rsrcSectionEnd() {
+		long raw = sectionRawSize[rsrcSection] & 0xFFFFFFFFL;
+		long virt = sectionSize[rsrcSection] & 0xFFFFFFFFL;
+		if (sectionAlign > 0) {
+			long m = virt % sectionAlign;
+			if (m != 0) virt = virt - m + sectionAlign;
+		}
+		return Math.min(sectionOfst[rsrcSection] + Math.min(raw, virt), fileLength);
+	}
+	
+	private void use(long end) {
+		if (end > rsrcUsedEnd) rsrcUsedEnd = end;
+	}
+	
+	private void build() throws IOException {
+		fileLength = fc.size();
+		ByteBuffer b = read(0, 64);
+		if (b.getShort(0) != 0x5A4D) throw new IOException("Not a valid EXE file.");
+		long pe = b.getInt(0x3C) & 0xFFFFFFFFL;
+		b = read(pe, 24);
+		if (b.getInt(0) != PEImage.PE_SIGNATURE) throw new IOException("Not a valid PE file.");
+		int numSections = b.getShort(6) & 0xFFFF;
+		int optHeaderSize = b.getShort(20) & 0xFFFF;
+		long oh = pe + 24;
+		ByteBuffer opt = read(oh, optHeaderSize);
+		short magic = opt.getShort(0);
+		int dirs;
+		if (magic == PEImage.MAGIC_PE32PLUS) dirs = 112;
+		else if (magic == PEImage.MAGIC_PE32 || magic == PEImage.MAGIC_ROM_IMAGE) dirs = 96;
+		else throw new IOException("Not a valid PE file.");
+		int numDirs = opt.getInt(dirs - 4);
+		sectionAlign = opt.getInt(32);
+		sectionHeaders = oh + optHeaderSize;
+		ByteBuffer sh = read(sectionHeaders, numSections * 40);
+		sectionVA = new int[numSections];
+		sectionSize = new int[numSections];
+		sectionOfst = new long[numSections];
+		sectionRawSize = new int[numSections];
+		for (int i = 0, p = 0; i < numSections; i++, p += 40) {
+			int vs = sh.getInt(p + 8);
+			int rs = sh.getInt(p + 16);
+			sectionVA[i] = sh.getInt(p + 12);
+			sectionSize[i] = (vs != 0) ? vs : rs;
+			sectionOfst[i] = sh.getInt(p + 20) & 0xFFFFFFFFL;
+			sectionRawSize[i] = rs;
+		}
+		checksumOfst = oh + 64;
+		if (numDirs <= PEImage.DIR_ENTRY_RESOURCES || dirs + 8 * PEImage.DIR_ENTRY_RESOURCES + 8 > optHeaderSize) return;
+		int rsrcRVA = opt.getInt(dirs + 8 * PEImage.DIR_ENTRY_RESOURCES);
+		if (rsrcRVA == 0) return;
+		rsrcDirEntryOfst = oh + dirs + 8 * PEImage.DIR_ENTRY_RESOURCES;
+		rsrcSection = rvaToSection(rsrcRVA);
+		rsrcOfst = rvaToOfst(rsrcRVA);
+		if (rsrcOfst < 0) throw new IOException("Resource directory is outside of any section.");
+		rsrcUsedEnd = rsrcOfst;
+		walk(0, new Object[3], 0, new HashSet<Integer>());
+	}
+	
+	private void walk(int dir, Object[] path, int depth, Set<Integer> visited) throws IOException {
+		if (!visited.add(dir)) return;
+		if (depth >= MAX_DEPTH || entriesRead >= MAX_ENTRIES) {
+			complete = false;
+			return;
+		}
+		ByteBuffer h = read(rsrcOfst + dir, 16);
+		int total = (h.getShort(12) & 0xFFFF) + (h.getShort(14) & 0xFFFF);
+		int n = Math.min(total, MAX_ENTRIES - entriesRead);
+		if (n < total) complete = false;
+		entriesRead += n;
+		ByteBuffer es = read(rsrcOfst + dir + 16, n * 8);
+		use(rsrcOfst + dir + 16 + total * 8);
+		for (int i = 0, p = 0; i < n; i++, p += 8) {
+			int nm = es.getInt(p);
+			int of = es.getInt(p + 4);
+			Object k;
+			if (nm < 0) {
+				long so = rsrcOfst + (nm & 0x7FFFFFFF);
+				int nl = read(so, 2).getShort(0) & 0xFFFF;
+				k = new String(read(so + 2, nl * 2).array(), "UTF-16LE");
+				use(so + 2 + nl * 2);
+			} else {
+				k = nm;
+			}
+			if (depth < path.length) path[depth] = k;
+			if (of < 0) {
+				walk(of & 0x7FFFFFFF, path, depth + 1, visited);
+			} else {
+				ByteBuffer de = read(rsrcOfst + of, 16);
+				int rva = de.getInt(0);
+				int len = de.getInt(4);
+				long ofst = rvaToOfst(rva);
+				use(rsrcOfst + of + 16);
+				if (ofst < 0 || len < 0 || ofst + len > fileLength) continue;
+				if (rvaToSection(rva) == rsrcSection) use(ofst + len);
+				Object[] full = new Object[3];
+				for (int j = 0; j < 3; j++) full[j] = (j <= depth) ? path[j] : null;
+				if (full[0] == null) full[0] = Integer.valueOf(-1);
+				if (full[1] == null) full[1] = Integer.valueOf(-1);
+				Entry e = new Entry(full, rsrcOfst + of, de.getInt(8), rva, ofst, len);
+				add(e);
+			}
+		}
+	}
+	
+	private void add(Entry e) {
+		Object t = (e.typeName != null) ? e.typeName : Integer.valueOf(e.type);
+		Object n = (e.name != null) ? e.name : Integer.valueOf(e.id);
+		Key k = new Key(t, n, e.language);
+		if (byPath.containsKey(k)) return;
+		byPath.put(k, e);
+		entries.add(e);
+		List<Entry> l = byType.get(t);
+		if (l == null) byType.put(t, l = new ArrayList<Entry>());
+		l.add(e);
+	}
+	
+	public List<Entry> getEntries() {
+		return Collections.unmodifiableList(entries);
+	}
+	
+	public List<Entry> getEntries(int type) {
+		return entriesFor(Integer.valueOf(type));
+	}
+	
+	public List<Entry> getEntries(String type) {
+		return entriesFor(type);
+	}
+	
+	private List<Entry> entriesFor(Object type) {
+		List<Entry> l = byType.get(type);
+		if (l == null) return Collections.emptyList();
+		return Collections.unmodifiableList(l);
+	}
+	
+	public Entry get(int type, int id, int language) {
+		return byPath.get(new Key(Integer.valueOf(type), Integer.valueOf(id), language));
+	}
+	
+	public Entry get(int type, String name, int language) {
+		return byPath.get(new Key(Integer.valueOf(type), name, language));
+	}
+	
+	public Entry get(String type, int id, int language) {
+		return byPath.get(new Key(type, Integer.valueOf(id), language));
+	}
+	
+	public Entry get(String type, String name, int language) {
+		return byPath.get(new Key(type, name, language));
+	}
+	
+	// returns the first language found for the given type and ID
+	public Entry get(int type, int id) {
+		for (Entry e : entriesFor(Integer.valueOf(type))) {
+			if (e.name == null && e.id == id) return e;
+		}
+		return null;
+	}
+	
+	// returns the first language found for the given type and name
+	public Entry get(int type, String name) {
+		for (Entry e : entriesFor(Integer.valueOf(type))) {
+			if (name.equals(e.name)) return e;
+		}
+		return null;
+	}
+	
+	public byte[] read(Entry e) throws IOException {
+		return read(e.offset, e.length).array();
+	}
+	
+	public long transferTo(Entry e, WritableByteChannel out) throws IOException {
+		long pos = e.offset;
+		long end = e.offset + e.length;
+		while (pos < end) {
+			long n = fc.transferTo(pos, end - pos, out);
+			if (n <= 0) break;
+			pos += n;
+		}
+		return pos - e.offset;
+	}
+	
+	public void close() throws IOException {
+		if (ownsFile) raf.close();
+	}
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright &copy; 2009-2011 Rebecca G. Bettencourt / Kreative Software
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License
+ * Version 1.1 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * <a href="http://www.mozilla.org/MPL/">http://www.mozilla.org/MPL/</a>
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * <p>
+ * Alternatively, the contents of this file may be used under the terms
+ * of the GNU Lesser General Public License (the "LGPL License"), in which
+ * case the provisions of LGPL License are applicable instead of those
+ * above. If you wish to allow use of your version of this file only
+ * under the terms of the LGPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the LGPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the LGPL License.
+ * @since KSFL 1.2
+ * @author Rebecca G. Bettencourt, Kreative Software
+ */
+
+package com.kreative.pe;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/*
+ * Replaces resources in a PE file. If the new data fits in the space of
+ * the old data, or in the unused space at the end of the resource section,
+ * only the resource data and its IMAGE_RESOURCE_DATA_ENTRY are rewritten,
+ * and the checksum in the optional header is adjusted for just the bytes
+ * that changed. Otherwise the image is decompiled, modified, and recompiled
+ * in full.
+ */
+public class PEResourcePatcher {
+	private RandomAccessFile raf;
+	private PEResourceIndex index;
+	
+	public PEResourcePatcher(RandomAccessFile f) throws IOException {
+		this.raf = f;
+		this.index = new PEResourceIndex(f);
+	}
+	
+	public PEResourceIndex getIndex() {
+		return index;
+	}
+	
+	public boolean replace(int type, int id, int language, byte[] data) throws IOException {
+		return replace(type, Integer.valueOf(id), language, data);
+	}
+	
+	public boolean replace(int type, String name, int language, byte[] data) throws IOException {
+		return replace(type, (Object)name, language, data);
+	}
+	
+	// returns true if the file was patched in place, false if it was rebuilt
+	private boolean replace(int type, Object name, int language, byte[] data) throws IOException {
+		PEResourceIndex.Entry e = (name instanceof String)
+			? index.get(type, (String)name, language)
+			: index.get(type, ((Integer)name).intValue(), language);
+		if (e != null && replaceInPlace(e, data)) {
+			index = new PEResourceIndex(raf);
+			return true;
+		} else {
+			rebuild(type, name, language, data);
+			index = new PEResourceIndex(raf);
+			return false;
+		}
+	}
+	
+	public boolean replaceInPlace(PEResourceIndex.Entry e, byte[] data) throws IOException {
+		long ofst;
+		if (data.length <= e.length) {
+			ofst = e.offset;
+		} else if (index.rsrcSection >= 0 && index.complete) {
+			ofst = align(index.rsrcUsedEnd);
+			if (ofst + data.length > index.rsrcSectionEnd()) return false;
+		} else {
+			return false;
+		}
+		long cs = readChecksum();
+		long[] regions = new long[]{
+			e.dataEntry, e.dataEntry + 8,
+			ofst, ofst + Math.max(data.length, (ofst == e.offset) ? e.length : 0),
+			index.rsrcDirEntryOfst, index.rsrcDirEntryOfst + 8,
+			index.rsrcSectionHeader() + 8, index.rsrcSectionHeader() + 12
+		};
+		int before = 0;
+		for (int i = 0; i < regions.length; i += 2) before += wordSum(regions[i], regions[i+1]);
+		if (ofst != e.offset) {
+			// the resource data directory entry should cover data appended to the section
+			raf.seek(index.rsrcDirEntryOfst);
+			int dva = Integer.reverseBytes(raf.readInt());
+			int dsize = Integer.reverseBytes(raf.readInt());
+			int end = index.ofstToRVA(ofst + data.length);
+			if ((end & 0xFFFFFFFFL) > ((dva & 0xFFFFFFFFL) + (dsize & 0xFFFFFFFFL))) {
+				raf.seek(index.rsrcDirEntryOfst + 4);
+				raf.writeInt(Integer.reverseBytes(end - dva));
+			}
+			// and the section's virtual size should cover it too
+			raf.seek(index.rsrcSectionHeader() + 8);
+			long vs = Integer.reverseBytes(raf.readInt()) & 0xFFFFFFFFL;
+			long nvs = ofst + data.length - index.rsrcSectionStart();
+			if (vs != 0 && nvs > vs) {
+				raf.seek(index.rsrcSectionHeader() + 8);
+				raf.writeInt(Integer.reverseBytes((int)nvs));
+			}
+		}
+		raf.seek(e.dataEntry);
+		raf.writeInt(Integer.reverseBytes((ofst == e.offset) ? e.rva : index.ofstToRVA(ofst)));
+		raf.writeInt(Integer.reverseBytes(data.length));
+		raf.seek(ofst);
+		raf.write(data);
+		if (ofst == e.offset && data.length < e.length) {
+			raf.write(new byte[e.length - data.length]);
+		}
+		if (cs != 0) {
+			int after = 0;
+			for (int i = 0; i < regions.length; i += 2) after += wordSum(regions[i], regions[i+1]);
+			long len = raf.length();
+			long sum = ((cs - len) & 0xFFFFFFFFL) % 0xFFFF;
+			sum = (sum - before + after) % 0xFFFF;
+			if (sum < 0) sum += 0xFFFF;
+			if (sum == 0) sum = 0xFFFF;
+			writeChecksum((int)(sum + len));
+		}
+		return true;
+	}
+	
+	private static long align(long a) {
+		long m = a % 8;
+		if (m == 0) return a;
+		else return a - m + 8;
+	}
+	
+	private long readChecksum() throws IOException {
+		raf.seek(index.checksumOfst);
+		return Integer.reverseBytes(raf.readInt()) & 0xFFFFFFFFL;
+	}
+	
+	private void writeChecksum(int cs) throws IOException {
+		raf.seek(index.checksumOfst);
+		raf.writeInt(Integer.reverseBytes(cs));
+	}
+	
+	// sum of the 16-bit words covering [start, end), mod 0xFFFF, skipping the checksum field
+	private int wordSum(long start, long end) throws IOException {
+		start &= ~1L;
+		end = Math.min((end + 1) & ~1L, raf.length() + 1);
+		if (end <= start) return 0;
+		byte[] b = new byte[(int)(end - start)];
+		raf.seek(start);
+		raf.read(b);
+		long sum = 0;
+		for (int i = 0; i < b.length; i += 2) {
+			long p = start + i;
+			if (p >= index.checksumOfst && p < index.checksumOfst + 4) continue;
+			sum += (b[i] & 0xFF) | ((i + 1 < b.length ? b[i+1] & 0xFF : 0) << 8);
+		}
+		return (int)(sum % 0xFFFF);
+	}
+	
+	private void rebuild(int type, Object name, int language, byte[] data) throws IOException {
+		// read eagerly; the file is truncated below, which fails on Windows
+		// while any part of it is still mapped
+		PEImage img = new PEImage();
+		img.decompile(raf, false);
+		int[] rl = img.ofstToSNO(img.dirEntries.get(PEImage.DIR_ENTRY_RESOURCES).virtualAddress, img.headerSize());
+		PESection rs = img.sections.get(rl[0]);
+		PEResourceDirectory rd = new PEResourceDirectory();
+		rd.decompile(rs.getData(), rl[1]);
+		PEResourceDirectory td = (PEResourceDirectory)find(rd, Integer.valueOf(type), true);
+		PEResourceDirectory nd = (PEResourceDirectory)find(td, name, true);
+		PEResourceEntry le = find(nd, Integer.valueOf(language), false);
+		if (le instanceof PEResourceData) {
+			((PEResourceData)le).data = data;
+		} else {
+			if (le != null) nd.entries.remove(le);
+			nd.entries.add(new PEResourceData(language, data, 0));
+		}
+		rs.data = new byte[rd.calculateTotalLength()];
+		rd.recompile(rs.data, rl[1]);
+		img.recalculate();
+		raf.setLength(0);
+		img.recompile(raf);
+	}
+	
+	private static PEResourceEntry find(PEResourceDirectory d, Object name, boolean dir) {
+		for (PEResourceEntry e : d.entries) {
+			if ((name instanceof String) ? name.equals(e.name) : (e.name == null && e.id == ((Integer)name).intValue())) {
+				if (!dir || e instanceof PEResourceDirectory) return e;
+			}
+		}
+		if (!dir) return null;
+		PEResourceDirectory nd = (name instanceof String)
+			? new PEResourceDirectory((String)name, 0, 0, 0)
+			: new PEResourceDirectory(((Integer)name).intValue(), 0, 0, 0);
+		d.entries.add(nd);
+		return nd;
+	}
+}
@@ -27,7 +27,11 @@
 
 package com.kreative.pe;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import com.kreative.ksfl.KSFLUtilities;
 
 public class PESection implements Cloneable, Serializable {
@@ -80,6 +84,38 @@ public class PESection implements Cloneable, Serializable {
 	public static final int CHARACTERISTICS_WRITE = 0x80000000; // The section can be written to.
 	public int characteristics;
 	public byte[] data;
+	// raw data still in the file, for sections of lazily decompiled images
+	transient ByteBuffer mapped;
+	
+	public boolean isLoaded() {
+		return (mapped == null || data != null);
+	}
+	
+	public ByteBuffer getDataBuffer() {
+		if (data != null || mapped == null) {
+			return ByteBuffer.wrap(getData()).order(ByteOrder.LITTLE_ENDIAN);
+		} else {
+			// bytes past the end of the raw data are implicitly zero
+			return mapped.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+		}
+	}
+	
+	public byte[] getData() {
+		if (data == null) {
+			data = new byte[Math.max(0, virtualSize)];
+			if (mapped != null) {
+				ByteBuffer b = mapped.duplicate();
+				b.get(data, 0, Math.min(data.length, b.remaining()));
+			}
+		}
+		mapped = null;
+		return data;
+	}
+	
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		getData();
+		out.defaultWriteObject();
+	}
 	
 	public PESection clone() {
 		PESection s = new PESection();
@@ -93,7 +129,11 @@ public class PESection implements Cloneable, Serializable {
 		s.relocCnt = relocCnt;
 		s.lineNumCnt = lineNumCnt;
 		s.characteristics = characteristics;
-		s.data = KSFLUtilities.copy(data);
+		if (data == null && mapped != null) {
+			s.mapped = mapped.duplicate();
+		} else {
+			s.data = KSFLUtilities.copy(data);
+		}
 		return s;
 	}
 }
@@ -31,11 +31,17 @@ import java.io.File;
 import java.io.RandomAccessFile;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import com.kreative.ksfl.KSFLUtilities;
 
 /**
  * The <code>PalmResourceFile</code> class represents a Palm OS resource database in a <code>RandomAccessFile</code>.
+ * <p>
+ * The PRC header and the resource header list are read into memory when the file is opened.
+ * Changes are kept in memory and written to the file in a single pass, header first and then
+ * the data of each resource in order, when <code>flush</code> or <code>close</code> is called.
  * @since KSFL 1.0
  * @author Rebecca G. Bettencourt, Kreative Software
  */
@@ -53,103 +59,113 @@ public class PalmResourceFile extends PalmResourceProvider {
 	 */
 	public static final int CREATE_ALWAYS = 2;
 	
+	private static class Entry {
+		public int type;
+		public short id;
+		public long offset;
+		public int length;
+		public byte[] data;
+		public int length() {
+			return (data != null) ? data.length : length;
+		}
+	}
+	
 	private RandomAccessFile raf;
 	private boolean readOnly = false;
+	private byte[] header = new byte[0x4C];
+	private byte[] gap = new byte[0];
+	private List<Entry> entries = new ArrayList<Entry>();
+	private Map<Long,Entry> index = new HashMap<Long,Entry>();
+	private boolean dirty = false;
 	
-	private int[] locate(int type, short id) {
-		// 0 - number of resources
-		// 1 - offset to header
-		// 2 - length of header
-		// 3 - offset to data
-		// 4 - length of data
-		try {
-			raf.seek(0x4C);
-			int n = raf.readShort();
-			for (int i=0, h=0x4E; i<n; i++, h+=10) {
-				int t = raf.readInt();
-				short d = raf.readShort();
-				int o = raf.readInt();
-				if (t == type && d == id) {
-					int o2;
-					if (i == n-1) {
-						o2 = (int)raf.length();
-					} else {
-						raf.skipBytes(6);
-						o2 = raf.readInt();
-					}
-					return new int[]{ n, h, 10, o, o2-o };
-				}
-			}
-		} catch (IOException e) {}
-		return null;
-	}
-	
-	private int[] locateend() {
-		try {
-			raf.seek(0x4C);
-			int n = raf.readShort();
-			return new int[] { n, 0x4E+10*n, 10, (int)raf.length(), 0 };
-		} catch (IOException e) {}
-		return null;
+	private static long key(int type, short id) {
+		return ((long)type << 16) | (id & 0xFFFFL);
 	}
 	
-	private static final int INSERTED_OBJECT_RECORD = 2;
-	private static final int INSERTED_DATA = 4;
-	private static final int REMOVED_OBJECT_RECORD = 2;
-	private static final int REMOVED_DATA = 4;
-	
-	private void cut(int[] loc, int offset, int length, int what, int type, short id) throws IOException {
-		KSFLUtilities.cut(raf, offset, length);
-		//update location
-		if (loc != null) {
-			if (what == REMOVED_OBJECT_RECORD) loc[0]--;
-			if (loc[1] > offset) loc[1] -= length;
-			if (loc[3] > offset) loc[3] -= length;
+	private void load() throws IOException {
+		long fl = raf.length();
+		raf.seek(0);
+		raf.readFully(header);
+		int n = Math.max(0, (int)raf.readShort());
+		byte[] rcds = new byte[10*n];
+		raf.readFully(rcds);
+		entries.clear();
+		for (int i=0, h=0; i<n; i++, h+=10) {
+			Entry e = new Entry();
+			e.type = KSFLUtilities.getInt(rcds, h);
+			e.id = KSFLUtilities.getShort(rcds, h+4);
+			e.offset = KSFLUtilities.getInt(rcds, h+6) & 0xFFFFFFFFL;
+			entries.add(e);
 		}
-		//update header
-		raf.seek(0x4C);
-		short n = raf.readShort();
-		if (what == REMOVED_OBJECT_RECORD) {
-			raf.seek(0x4C);
-			raf.writeShort(--n);
+		for (int i=0; i<n; i++) {
+			Entry e = entries.get(i);
+			long end = (i == n-1) ? fl : entries.get(i+1).offset;
+			e.length = (int)Math.max(0, Math.min(end, fl) - e.offset);
 		}
-		//update records
-		for (int i=0, h=0x4E; i<n; i++, h+=10) {
-			raf.seek(h+6);
-			int o = raf.readInt();
-			if (o > offset) {
-				raf.seek(h+6);
-				raf.writeInt(o-length);
-			}
+		long tableEnd = 0x4E + 10L*n;
+		long dataStart = (n > 0) ? entries.get(0).offset : fl;
+		if (dataStart > tableEnd && dataStart <= fl) {
+			gap = new byte[(int)(dataStart - tableEnd)];
+			raf.seek(tableEnd);
+			raf.readFully(gap);
+		}
+		reindex();
+	}
+	
+	private void reindex() {
+		index.clear();
+		for (Entry e : entries) {
+			Long k = key(e.type, e.id);
+			if (!index.containsKey(k)) index.put(k, e);
 		}
 	}
 	
-	private void paste(int[] loc, int offset, byte[] stuff, int what, int type, short id) throws IOException {
-		boolean found = false;
-		KSFLUtilities.paste(raf, offset, stuff);
-		//update location
-		if (loc != null) {
-			if (what == INSERTED_OBJECT_RECORD) loc[0]++;
-			if ((loc[1] > offset) || (loc[1] == offset && what != INSERTED_OBJECT_RECORD)) loc[1] += stuff.length;
-			if ((loc[3] > offset) || (loc[3] == offset && what != INSERTED_DATA)) loc[3] += stuff.length;
+	private byte[] read(Entry e) throws IOException {
+		if (e.data != null) return KSFLUtilities.copy(e.data);
+		byte[] stuff = new byte[e.length];
+		raf.seek(e.offset);
+		raf.read(stuff);
+		return stuff;
+	}
+	
+	private void write() throws IOException {
+		int n = entries.size();
+		long[] offsets = new long[n];
+		long pos = 0x4E + 10L*n + gap.length;
+		for (int i=0; i<n; i++) {
+			offsets[i] = pos;
+			pos += entries.get(i).length();
+		}
+		// Resources whose data moves must be read before anything is overwritten.
+		for (int i=0; i<n; i++) {
+			Entry e = entries.get(i);
+			if (e.data == null && e.offset != offsets[i]) e.data = read(e);
 		}
-		//update header
-		raf.seek(0x4C);
-		short n = raf.readShort();
-		if (what == INSERTED_OBJECT_RECORD) {
-			raf.seek(0x4C);
-			raf.writeShort(++n);
+		byte[] h = new byte[0x4E + 10*n + gap.length];
+		System.arraycopy(header, 0, h, 0, 0x4C);
+		KSFLUtilities.putShort(h, 0x4C, (short)n);
+		for (int i=0, p=0x4E; i<n; i++, p+=10) {
+			Entry e = entries.get(i);
+			KSFLUtilities.putInt(h, p, e.type);
+			KSFLUtilities.putShort(h, p+4, e.id);
+			KSFLUtilities.putInt(h, p+6, (int)offsets[i]);
 		}
-		//update records
-		for (int i=0, h=0x4E; i<n; i++, h+=10) {
-			int t = raf.readInt();
-			short d = raf.readShort();
-			int o = raf.readInt();
-			if ((o > offset) || (o == offset && !(what == INSERTED_DATA && !found))) {
-				raf.seek(h+6);
-				raf.writeInt(o+stuff.length);
+		System.arraycopy(gap, 0, h, 0x4E + 10*n, gap.length);
+		raf.seek(0);
+		raf.write(h);
+		for (int i=0; i<n; i++) {
+			Entry e = entries.get(i);
+			if (e.data != null) {
+				raf.seek(offsets[i]);
+				raf.write(e.data);
 			}
-			found = found || (type == t && id == d);
+		}
+		raf.setLength(pos);
+		for (int i=0; i<n; i++) {
+			Entry e = entries.get(i);
+			e.offset = offsets[i];
+			e.length = e.length();
+			e.data = null;
 		}
 	}
 	
@@ -184,11 +200,20 @@ public class PalmResourceFile extends PalmResourceProvider {
 			raf.writeShort(0);
 			raf.writeShort(0);
 		}
+		// don't leave the file open if it isn't a resource file after all
+		boolean loaded = false;
+		try {
+			load();
+			loaded = true;
+		} finally {
+			if (!loaded) try { raf.close(); } catch (Exception e) {}
+		}
 	}
 	
 	/**
 	 * Returns the <code>RandomAccessFile</code> this is wrapped around.
 	 * This should be used for debugging purposes only.
+	 * The file does not reflect changes that have not yet been flushed.
 	 * @return the <code>RandomAccessFile</code> this is wrapped around.
 	 */
 	public RandomAccessFile getRandomAccessFile() {
@@ -200,72 +225,76 @@ public class PalmResourceFile extends PalmResourceProvider {
 		return readOnly;
 	}
 	
+	/**
+	 * Writes all changes to the file, rewriting the header and resource data in one pass.
+	 */
 	@Override
 	public synchronized void flush() {
-		// nothing
+		if (dirty && !readOnly) {
+			try {
+				write();
+				dirty = false;
+			} catch (IOException ioe) {}
+		}
 	}
 	
+	/**
+	 * Writes all changes to the file and closes it.
+	 */
 	@Override
 	public synchronized void close() {
+		flush();
 		try { raf.close(); } catch (Exception e) {}
 	}
 	
 	@Override
 	public synchronized byte[] getPRCHeader() {
 		byte[] h = new byte[0x4E];
-		try {
-			raf.seek(0);
-			raf.read(h);
-		} catch (IOException ioe) {}
+		System.arraycopy(header, 0, h, 0, 0x4C);
+		KSFLUtilities.putShort(h, 0x4C, (short)entries.size());
 		return h;
 	}
 	
 	@Override
 	public synchronized void setPRCHeader(byte[] header) {
-		if (header.length > 0x4C) header = KSFLUtilities.copy(header, 0x00, 0x4C);
-		try {
-			raf.seek(0);
-			raf.write(header);
-		} catch (IOException ioe) {}
+		if (readOnly) return;
+		System.arraycopy(header, 0, this.header, 0, Math.min(header.length, 0x4C));
+		dirty = true;
 	}
 	
 	@Override
 	public synchronized boolean add(PalmResource r) throws PalmResourceAlreadyExistsException {
-		try {
-			if (locate(r.type,r.id) != null) throw new PalmResourceAlreadyExistsException();
-			int[] loc = locateend();
-			byte[] rcd = new byte[10];
-			KSFLUtilities.putInt(rcd, 0, r.type);
-			KSFLUtilities.putShort(rcd, 4, r.id);
-			KSFLUtilities.putInt(rcd, 6, loc[3]);
-			paste(loc, loc[1], rcd, INSERTED_OBJECT_RECORD, r.type, r.id);
-			paste(loc, loc[3], r.data, INSERTED_DATA, r.type, r.id);
-			return true;
-		} catch (IOException ioe) {}
-		return false;
+		if (index.containsKey(key(r.type, r.id))) throw new PalmResourceAlreadyExistsException();
+		if (readOnly) return false;
+		Entry e = new Entry();
+		e.type = r.type;
+		e.id = r.id;
+		e.offset = -1;
+		e.data = (r.data != null) ? KSFLUtilities.copy(r.data) : new byte[0];
+		e.length = e.data.length;
+		entries.add(e);
+		index.put(key(e.type, e.id), e);
+		dirty = true;
+		return true;
 	}
 	
 	@Override
 	public synchronized boolean contains(int type, short id) {
-		return (locate(type,id) != null);
+		return index.containsKey(key(type, id));
 	}
 	
 	@Override
 	public synchronized PalmResource get(int type, short id) {
 		try {
-			int[] l = locate(type,id);
-			if (l != null) {
-				raf.seek(l[3]); byte[] stuff = new byte[l[4]]; raf.read(stuff);
-				return new PalmResource(type, id, stuff);
-			}
+			Entry e = index.get(key(type, id));
+			if (e != null) return new PalmResource(type, id, read(e));
 		} catch (IOException ioe) {}
 		return null;
 	}
 	
 	@Override
 	public synchronized PalmResource getAttributes(int type, short id) {
-		int[] l = locate(type,id);
-		if (l != null) {
+		if (index.containsKey(key(type, id))) {
 			return new PalmResource(type, id, new byte[0]);
 		}
 		return null;
@@ -274,25 +303,22 @@ public class PalmResourceFile extends PalmResourceProvider {
 	@Override
 	public synchronized byte[] getData(int type, short id) {
 		try {
-			int[] l = locate(type,id);
-			if (l != null) {
-				raf.seek(l[3]); byte[] stuff = new byte[l[4]]; raf.read(stuff);
-				return stuff;
-			}
+			Entry e = index.get(key(type, id));
+			if (e != null) return read(e);
 		} catch (IOException ioe) {}
 		return null;
 	}
 	
 	@Override
 	public synchronized boolean remove(int type, short id) {
-		try {
-			int[] loc = locate(type,id);
-			if (loc != null) {
-				cut(loc, loc[3], loc[4], REMOVED_DATA, type, id);
-				cut(loc, loc[1], loc[2], REMOVED_OBJECT_RECORD, type, id);
-				return true;
-			}
-		} catch (IOException ioe) {}
+		if (readOnly) return false;
+		Entry e = index.get(key(type, id));
+		if (e != null) {
+			entries.remove(e);
+			reindex();
+			dirty = true;
+			return true;
+		}
 		return false;
 	}
 	
@@ -305,164 +331,89 @@ public class PalmResourceFile extends PalmResourceProvider {
 
 	@Override
 	public synchronized boolean setAttributes(int type, short id, PalmResource r) throws PalmResourceAlreadyExistsException {
-		try {
-			int[] loc = locate(type,id);
-			if (loc != null) {
-				int[] loce = locate(r.type,r.id);
-				if ((loce != null) && (
-						(loce[0] != loc[0]) ||
-						(loce[1] != loc[1]) ||
-						(loce[2] != loc[2]) ||
-						(loce[3] != loc[3]) ||
-						(loce[4] != loc[4])
-				)) {
-					throw new PalmResourceAlreadyExistsException();
-				} else {
-					raf.seek(loc[1]);
-					raf.writeInt(r.type);
-					raf.writeShort(r.id);
-					return true;
-				}
+		Entry e = index.get(key(type, id));
+		if (e != null) {
+			Entry ee = index.get(key(r.type, r.id));
+			if (ee != null && ee != e) {
+				throw new PalmResourceAlreadyExistsException();
+			} else if (readOnly) {
+				return false;
+			} else {
+				e.type = r.type;
+				e.id = r.id;
+				reindex();
+				dirty = true;
+				return true;
 			}
-		} catch (IOException ioe) {}
+		}
 		return false;
 	}
 	
 	@Override
 	public synchronized boolean setData(int type, short id, byte[] data) {
-		try {
-			int[] loc = locate(type,id);
-			if (loc != null) {
-				cut(loc, loc[3], loc[4], REMOVED_DATA, type, id);
-				paste(loc, loc[3], data, INSERTED_DATA, type, id);
-				return true;
-			}
-		} catch (IOException ioe) {}
+		if (readOnly) return false;
+		Entry e = index.get(key(type, id));
+		if (e != null) {
+			e.data = KSFLUtilities.copy(data);
+			e.length = e.data.length;
+			dirty = true;
+			return true;
+		}
 		return false;
 	}
 	
 	@Override
 	public synchronized int getTypeCount() {
-		int cnt = 0;
-		try {
-			ArrayList<Integer> a = new ArrayList<Integer>();
-			raf.seek(0x4C);
-			int n = raf.readShort();
-			for (int i=0; i<n; i++) {
-				int t = raf.readInt();
-				raf.skipBytes(6);
-				if (!a.contains(t)) {
-					cnt++;
-					a.add(t);
-				}
-			}
-		} catch (IOException ioe) {}
-		return cnt;
+		return getTypes().length;
 	}
 	@Override
 	public synchronized int getType(int index) {
-		try {
-			int idx = 0;
-			ArrayList<Integer> a = new ArrayList<Integer>();
-			raf.seek(0x4C);
-			int n = raf.readShort();
-			for (int i=0; i<n; i++) {
-				int t = raf.readInt();
-				raf.skipBytes(6);
-				if (!a.contains(t)) {
-					if (idx == index) return t;
-					else {
-						idx++;
-						a.add(t);
-					}
-				}
-			}
-		} catch (IOException ioe) {}
-		return 0;
+		int[] types = getTypes();
+		return (index >= 0 && index < types.length) ? types[index] : 0;
 	}
 	@Override
 	public synchronized int[] getTypes() {
 		ArrayList<Integer> a = new ArrayList<Integer>();
-		try {
-			raf.seek(0x4C);
-			int n = raf.readShort();
-			for (int i=0; i<n; i++) {
-				int t = raf.readInt();
-				raf.skipBytes(6);
-				if (!a.contains(t)) a.add(t);
-			}
-		} catch (IOException ioe) {}
+		for (Entry e : entries) {
+			if (!a.contains(e.type)) a.add(e.type);
+		}
 		int[] s = new int[a.size()];
-		Iterator<Integer> i = a.iterator();
-		for (int j=0; j<s.length && i.hasNext(); j++) s[j] = i.next();
+		for (int j=0; j<s.length; j++) s[j] = a.get(j);
 		return s;
 	}
 	
 	@Override
 	public synchronized int getResourceCount(int type) {
 		int cnt = 0;
-		try {
-			raf.seek(0x4C);
-			int n = raf.readShort();
-			for (int i=0; i<n; i++) {
-				int t = raf.readInt();
-				raf.skipBytes(6);
-				if (t == type) cnt++;
-			}
-		} catch (IOException ioe) {}
+		for (Entry e : entries) {
+			if (e.type == type) cnt++;
+		}
 		return cnt;
 	}
 	@Override
 	public synchronized short getID(int type, int index) {
-		try {
-			int idx = 0;
-			raf.seek(0x4C);
-			int n = raf.readShort();
-			for (int i=0; i<n; i++) {
-				int t = raf.readInt();
-				short d = raf.readShort();
-				raf.skipBytes(4);
-				if (t == type) {
-					if (idx == index) return d;
-					else idx++;
-				}
+		int idx = 0;
+		for (Entry e : entries) {
+			if (e.type == type) {
+				if (idx == index) return e.id;
+				else idx++;
 			}
-		} catch (IOException ioe) {}
+		}
 		return 0;
 	}
 	@Override
 	public synchronized short[] getIDs(int type) {
-		ArrayList<Short> a = new ArrayList<Short>();
-		try {
-			raf.seek(0x4C);
-			int n = raf.readShort();
-			for (int i=0; i<n; i++) {
-				int t = raf.readInt();
-				short d = raf.readShort();
-				raf.skipBytes(4);
-				if (t == type) a.add(d);
-			}
-		} catch (IOException ioe) {}
-		short[] s = new short[a.size()];
-		Iterator<Short> i = a.iterator();
-		for (int j=0; j<s.length && i.hasNext(); j++) s[j] = i.next();
+		short[] s = new short[getResourceCount(type)];
+		int j = 0;
+		for (Entry e : entries) {
+			if (e.type == type) s[j++] = e.id;
+		}
 		return s;
 	}
 	
 	@Override
 	public synchronized short getNextAvailableID(int type, short start) {
-		try {
-			ArrayList<Short> a = new ArrayList<Short>();
-			raf.seek(0x4C);
-			int n = raf.readShort();
-			for (int i=0; i<n; i++) {
-				int t = raf.readInt();
-				short d = raf.readShort();
-				raf.skipBytes(4);
-				if (t == type) a.add(d);
-			}
-			while (a.contains(start)) start++;
-		} catch (IOException ioe) {}
+		while (index.containsKey(key(type, start))) start++;
 		return start;
 	}
 }
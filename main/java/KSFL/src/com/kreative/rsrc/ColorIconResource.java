@@ -247,10 +247,20 @@ public class ColorIconResource extends MacResource {
 	
 	/**
 	 * Creates an AWT image of this icon's color image composited with its mask.
+	 * If a default <code>MacResourceImageCache</code> is set, the image is cached.
 	 * @return an AWT image of this icon's color image composited with its mask.
 	 */
-	@SuppressWarnings("unused")
 	public Image getComposite() {
+		MacResourceImageCache cache = MacResourceImageCache.getDefaultCache();
+		if (cache == null) return createComposite();
+		MacResourceImageCache.Key key = new MacResourceImageCache.Key(type, id, 0, data);
+		BufferedImage img = cache.get(key);
+		if (img == null) cache.put(key, img = createComposite());
+		return img;
+	}
+	
+	@SuppressWarnings("unused")
+	private BufferedImage createComposite() {
 		try {
 			DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
 			PixMap iconpm = PixMap.read(in, true);
@@ -354,4 +354,37 @@ public class ColorLookUpTableResource extends MacResource {
 		}
 		return ret;
 	}
+	
+	/**
+	 * Returns all the colors in this color table as an array of RGB values,
+	 * without creating any <code>java.awt.Color</code>s.
+	 * @return all the colors in this color table in an array.
+	 */
+	public int[] getRGBsByArrayIndex() {
+		int cc = (KSFLUtilities.getShort(data, 6)+1) & 0xFFFF;
+		int[] ret = new int[Math.min(cc, Math.max(0, (data.length-8)/8))];
+		for (int i=0, p=8; i<ret.length; i++, p+=8) {
+			ret[i] = 0xFF000000
+					| (((KSFLUtilities.getShort(data, p+2) & 0xFFFF)/257) << 16)
+					| (((KSFLUtilities.getShort(data, p+4) & 0xFFFF)/257) << 8)
+					| ((KSFLUtilities.getShort(data, p+6) & 0xFFFF)/257);
+		}
+		return ret;
+	}
+	
+	/**
+	 * Creates a <code>NearestColorIndex</code> for this color table that maps
+	 * RGB colors to the pixel index of the nearest color in this color table.
+	 * The index is a snapshot; it does not change if this color table does,
+	 * so it should be created once and reused for all the colors to be mapped.
+	 * @return a nearest color index for this color table.
+	 */
+	public NearestColorIndex getNearestColorIndex() {
+		int[] colors = getRGBsByArrayIndex();
+		int[] indices = new int[colors.length];
+		for (int i=0, p=8; i<indices.length; i++, p+=8) {
+			indices[i] = KSFLUtilities.getShort(data, p) & 0xFFFF;
+		}
+		return new NearestColorIndex(colors, indices);
+	}
 }
@@ -266,4 +266,32 @@ public class ColorPaletteResource extends MacResource {
 		}
 		return ret;
 	}
+	
+	/**
+	 * Returns all the colors in this color palette as an array of RGB values,
+	 * without creating any <code>java.awt.Color</code>s.
+	 * @return all the colors in this color palette in an array.
+	 */
+	public int[] getRGBs() {
+		int cc = KSFLUtilities.getShort(data, 0) & 0xFFFF;
+		int[] ret = new int[Math.min(cc, Math.max(0, (data.length-16)/16))];
+		for (int i=0, p=16; i<ret.length; i++, p+=16) {
+			ret[i] = 0xFF000000
+					| (((KSFLUtilities.getShort(data, p+0) & 0xFFFF)/257) << 16)
+					| (((KSFLUtilities.getShort(data, p+2) & 0xFFFF)/257) << 8)
+					| ((KSFLUtilities.getShort(data, p+4) & 0xFFFF)/257);
+		}
+		return ret;
+	}
+	
+	/**
+	 * Creates a <code>NearestColorIndex</code> for this color palette that maps
+	 * RGB colors to the array index of the nearest color in this color palette.
+	 * The index is a snapshot; it does not change if this color palette does,
+	 * so it should be created once and reused for all the colors to be mapped.
+	 * @return a nearest color index for this color palette.
+	 */
+	public NearestColorIndex getNearestColorIndex() {
+		return new NearestColorIndex(getRGBs());
+	}
 }
@@ -28,8 +28,14 @@
 package com.kreative.rsrc;
 
 import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.awt.image.MemoryImageSource;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.io.UnsupportedEncodingException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import com.kreative.ksfl.*;
 
 /**
@@ -327,6 +333,20 @@ public class FontResource extends MacResource {
 		public int[] width;
 		public float[] widthx;
 		
+		/**
+		 * The maximum number of colorized copies of the font bitmap
+		 * kept by <code>getStrike</code>.
+		 */
+		public static final int MAX_CACHED_STRIKES = 16;
+		
+		private final Map<Long,BufferedImage> strikes = new LinkedHashMap<Long,BufferedImage>(MAX_CACHED_STRIKES, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			protected boolean removeEldestEntry(Map.Entry<Long,BufferedImage> eldest) {
+				return size() > MAX_CACHED_STRIKES;
+			}
+		};
+		private ByteTables byteTables = null;
+		
 		/**
 		 * Creates a new font info record for this font.
 		 */
@@ -392,6 +412,63 @@ public class FontResource extends MacResource {
 					rowBytes*16, height, bitmap, 0, rowBytes*2, bgColor, fgColor));
 		}
 		
+		/**
+		 * Returns the font bitmap as an image, using the specified background and foreground colors.
+		 * Unlike <code>getBitmapImage</code>, the image is created once per pair of colors and then
+		 * shared, so it must not be modified. The most recently used strikes are kept,
+		 * up to <code>MAX_CACHED_STRIKES</code>. This assumes the font is 1-bit.
+		 * @param bgColor the background color as an ARGB value.
+		 * @param fgColor the foreground color as an ARGB value.
+		 * @return the font bitmap in the specified colors.
+		 */
+		public BufferedImage getStrike(int bgColor, int fgColor) {
+			Long key = Long.valueOf(((long)bgColor << 32) | (fgColor & 0xFFFFFFFFL));
+			synchronized (strikes) {
+				BufferedImage img = strikes.get(key);
+				if (img == null) {
+					int w = rowBytes*16;
+					img = new BufferedImage(Math.max(w, 1), Math.max((int)height, 1), BufferedImage.TYPE_INT_ARGB);
+					if (w > 0 && height > 0) {
+						img.setRGB(0, 0, w, height, BitmapImageSource.makePixels(bitmap, bgColor, fgColor), 0, w);
+					}
+					strikes.put(key, img);
+				}
+				return img;
+			}
+		}
+		
+		/**
+		 * Discards the cached strikes and character tables. This must be called
+		 * after changing any of the fields of this font info record.
+		 */
+		public void flushCaches() {
+			synchronized (strikes) {
+				strikes.clear();
+				byteTables = null;
+			}
+		}
+		
+		private ByteTables getByteTables() {
+			ByteTables t = byteTables;
+			if (t == null) {
+				t = new ByteTables();
+				for (int ch = 0; ch < 256; ch++) {
+					t.index[ch] = charValueToIndex(ch);
+					t.width[ch] = width[t.index[ch]];
+				}
+				byteTables = t;
+			}
+			return t;
+		}
+		
+		private int[] getByteIndexTable() {
+			return getByteTables().index;
+		}
+		
+		private int[] getByteWidthTable() {
+			return getByteTables().width;
+		}
+		
 		/**
 		 * Converts a character value to the equivalent offset in the font's tables.
 		 * If the specified character value is not defined for this font, this maps
@@ -420,15 +497,15 @@ public class FontResource extends MacResource {
 		}
 		
 		public int drawCharacter(Graphics g, int x, int y, int ch) {
-			return drawCharacter(g, x, y, ch, getBitmapImage(g));
+			return drawCharacter(g, x, y, ch, getStrike(0x00000000, g.getColor().getRGB()));
 		}
 		
 		public int drawCharacter(Graphics g, int x, int y, int ch, int bg, int fg) {
-			return drawCharacter(g, x, y, ch, getBitmapImage(bg, fg));
+			return drawCharacter(g, x, y, ch, getStrike(bg, fg));
 		}
 		
 		public int drawCharacter(Graphics g, int x, int y, int ch, Color bg, Color fg) {
-			return drawCharacter(g, x, y, ch, getBitmapImage(bg, fg));
+			return drawCharacter(g, x, y, ch, getStrike(bg.getRGB(), fg.getRGB()));
 		}
 		
 		private int drawCharacter(Graphics g, int x, int y, int ch, Image bmp) {
@@ -449,15 +526,15 @@ public class FontResource extends MacResource {
 		}
 		
 		public void drawAlphabet(Graphics g, int x, int y, int w) {
-			drawAlphabet(g, x, y, w, getBitmapImage(g));
+			drawAlphabet(g, x, y, w, getStrike(0x00000000, g.getColor().getRGB()));
 		}
 		
 		public void drawAlphabet(Graphics g, int x, int y, int w, int bg, int fg) {
-			drawAlphabet(g, x, y, w, getBitmapImage(bg, fg));
+			drawAlphabet(g, x, y, w, getStrike(bg, fg));
 		}
 		
 		public void drawAlphabet(Graphics g, int x, int y, int w, Color bg, Color fg) {
-			drawAlphabet(g, x, y, w, getBitmapImage(bg, fg));
+			drawAlphabet(g, x, y, w, getStrike(bg.getRGB(), fg.getRGB()));
 		}
 		
 		private void drawAlphabet(Graphics g, int x, int y, int w, Image bmp) {
@@ -485,6 +562,7 @@ public class FontResource extends MacResource {
 		}
 		
 		public int getStringWidth(String s, String te) {
+			int[] widths = getByteWidthTable();
 			int w = 0;
 			byte[] b;
 			try {
@@ -500,8 +578,7 @@ public class FontResource extends MacResource {
 					w += 36;
 					break;
 				default:
-					ch = charValueToIndex(ch);
-					w += width[ch];
+					w += widths[ch];
 					break;
 				}
 			}
@@ -509,6 +586,7 @@ public class FontResource extends MacResource {
 		}
 		
 		public int getStringHeight(String s, String te, int w) {
+			int[] widths = getByteWidthTable();
 			int cx = 0, h = ascent+descent+leading;
 			byte[] b;
 			try {
@@ -530,8 +608,7 @@ public class FontResource extends MacResource {
 					break;
 				default:
 					{
-						ch = charValueToIndex(ch);
-						int wid = width[ch];
+						int wid = widths[ch];
 						if (cx+wid >= w) {
 							cx = 0;
 							h += ascent+descent+leading;
@@ -545,18 +622,19 @@ public class FontResource extends MacResource {
 		}
 		
 		public void drawString(Graphics g, int x, int y, String s, String te, int w) {
-			drawString(g, x, y, s, te, w, getBitmapImage(g));
+			drawString(g, x, y, s, te, w, getStrike(0x00000000, g.getColor().getRGB()));
 		}
 		
 		public void drawString(Graphics g, int x, int y, String s, String te, int w, int bg, int fg) {
-			drawString(g, x, y, s, te, w, getBitmapImage(bg, fg));
+			drawString(g, x, y, s, te, w, getStrike(bg, fg));
 		}
 		
 		public void drawString(Graphics g, int x, int y, String s, String te, int w, Color bg, Color fg) {
-			drawString(g, x, y, s, te, w, getBitmapImage(bg, fg));
+			drawString(g, x, y, s, te, w, getStrike(bg.getRGB(), fg.getRGB()));
 		}
 		
 		private void drawString(Graphics g, int x, int y, String s, String te, int w, Image bmp) {
+			int[] index = getByteIndexTable();
 			int cx = x, cy = y;
 			byte[] b;
 			try {
@@ -578,7 +656,7 @@ public class FontResource extends MacResource {
 					break;
 				default:
 					{
-						ch = charValueToIndex(ch);
+						ch = index[ch];
 						int off = offset[ch];
 						int wid = width[ch];
 						int bx1 = bitmapLoc[ch];
@@ -600,6 +678,106 @@ public class FontResource extends MacResource {
 				}
 			}
 		}
+		
+		public void drawString(BufferedImage img, int x, int y, String s, String te, int w, Color bg, Color fg) {
+			drawString(img, x, y, s, te, w, bg.getRGB(), fg.getRGB());
+		}
+		
+		/**
+		 * Draws a string into an image, using the specified background and foreground colors.
+		 * The result is the same as <code>drawString(Graphics, ...)</code> on the image's graphics
+		 * context, but when the image is of type <code>TYPE_INT_RGB</code> or <code>TYPE_INT_ARGB</code>
+		 * and each color is either fully opaque or fully transparent, the glyph bits are written
+		 * directly into the image's pixel array instead of going through Java2D for each glyph.
+		 * @param img the image to draw into.
+		 * @param x the x coordinate of the start of the baseline.
+		 * @param y the y coordinate of the baseline.
+		 * @param s the string to draw.
+		 * @param te the text encoding of the font.
+		 * @param w the x coordinate at which to wrap lines.
+		 * @param bg the background color as an ARGB value.
+		 * @param fg the foreground color as an ARGB value.
+		 */
+		public void drawString(BufferedImage img, int x, int y, String s, String te, int w, int bg, int fg) {
+			int bga = bg >>> 24, fga = fg >>> 24;
+			if (
+					(img.getType() != BufferedImage.TYPE_INT_RGB && img.getType() != BufferedImage.TYPE_INT_ARGB)
+					|| !(bga == 0 || bga == 0xFF) || !(fga == 0 || fga == 0xFF)
+			) {
+				Graphics g = img.createGraphics();
+				drawString(g, x, y, s, te, w, bg, fg);
+				g.dispose();
+				return;
+			}
+			WritableRaster r = img.getRaster();
+			SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel)r.getSampleModel();
+			DataBufferInt db = (DataBufferInt)r.getDataBuffer();
+			int[] pixels = db.getData();
+			int scan = sm.getScanlineStride();
+			int base = db.getOffset() - r.getSampleModelTranslateY() * scan - r.getSampleModelTranslateX();
+			int iw = img.getWidth(), ih = img.getHeight();
+			int[] index = getByteIndexTable();
+			int cx = x, cy = y;
+			byte[] b;
+			try {
+				b = s.getBytes(te);
+			} catch (UnsupportedEncodingException uee) {
+				b = s.getBytes();
+			}
+			for (int ch : b) {
+				ch = ch & 0xFF;
+				switch (ch) {
+				case '\t':
+					cx -= (cx-x) % 36;
+					cx += 36;
+					break;
+				case '\n':
+				case '\r':
+					cx = x;
+					cy += ascent+descent+leading;
+					break;
+				default:
+					{
+						ch = index[ch];
+						int off = offset[ch];
+						int wid = width[ch];
+						int bx1 = bitmapLoc[ch];
+						int bx2 = bitmapLoc[ch+1];
+						if (cx+wid >= w) {
+							cx = x;
+							cy += ascent+descent+leading;
+						}
+						blitGlyph(pixels, base, scan, iw, ih, cx+off+kerning, cy-ascent, bx1, bx2, bga != 0, bg, fga != 0, fg);
+						cx += wid;
+					}
+					break;
+				}
+			}
+		}
+		
+		private void blitGlyph(int[] pixels, int base, int scan, int iw, int ih, int dx, int dy, int bx1, int bx2, boolean drawBg, int bg, boolean drawFg, int fg) {
+			int sx1 = Math.max(bx1, bx1 - dx), sx2 = Math.min(Math.min(bx2, bx1 - dx + iw), rowBytes*16);
+			int sy1 = Math.max(0, -dy), sy2 = Math.min((int)height, ih - dy);
+			int rb = rowBytes*2;
+			for (int sy = sy1; sy < sy2; sy++) {
+				int src = sy * rb;
+				int dst = base + (dy + sy) * scan + dx - bx1;
+				for (int sx = sx1; sx < sx2; sx++) {
+					if ((bitmap[src + (sx >> 3)] & (0x80 >> (sx & 7))) != 0) {
+						if (drawFg) pixels[dst + sx] = fg;
+					} else {
+						if (drawBg) pixels[dst + sx] = bg;
+					}
+				}
+			}
+		}
+	}
+	
+	// the index and width of each byte value, built and published together
+	// so that FontInfo.flushCaches() cannot leave one without the other
+	private static final class ByteTables {
+		private final int[] index = new int[256];
+		private final int[] width = new int[256];
 	}
 	
 	private static class BitmapImageSource extends MemoryImageSource {
@@ -0,0 +1,291 @@
+/*
+ * Copyright &copy; 2009-2011 Rebecca G. Bettencourt / Kreative Software
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License
+ * Version 1.1 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * <a href="http://www.mozilla.org/MPL/">http://www.mozilla.org/MPL/</a>
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * <p>
+ * Alternatively, the contents of this file may be used under the terms
+ * of the GNU Lesser General Public License (the "LGPL License"), in which
+ * case the provisions of LGPL License are applicable instead of those
+ * above. If you wish to allow use of your version of this file only
+ * under the terms of the LGPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the LGPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the LGPL License.
+ * @since KSFL 1.2
+ * @author Rebecca G. Bettencourt, Kreative Software
+ */
+
+package com.kreative.rsrc;
+
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * The <code>IconFamily</code> class holds every decodable image of an icon suite,
+ * decoded up front with their masks applied, along with a table giving the best
+ * image to draw for any requested size. Use <code>IconSuiteResource.decodeAll()</code>
+ * to create one.
+ * <p>
+ * Each mask is decoded once and shared by all the images of its size. Black-and-white,
+ * 4-bit, and 8-bit images use the 1-bit mask if there is one; 32-bit images use the
+ * 8-bit mask if there is one. When a family has at least <code>PARALLEL_THRESHOLD</code>
+ * images, they are decoded in parallel.
+ * @since KSFL 1.2
+ * @author Rebecca G. Bettencourt, Kreative Software
+ */
+public class IconFamily {
+	/**
+	 * The number of images at or above which images are decoded in parallel.
+	 */
+	public static final int PARALLEL_THRESHOLD = 4;
+	
+	private static ForkJoinPool sharedPool = null;
+	
+	private static synchronized ForkJoinPool getSharedPool() {
+		if (sharedPool == null) sharedPool = new ForkJoinPool();
+		return sharedPool;
+	}
+	
+	private final int[] types;
+	private final int[] widths;
+	private final int[] heights;
+	private final int[] depths;
+	private final BufferedImage[] images;
+	private final int[] best;
+	
+	/**
+	 * Decodes a family of icons, sharing masks between icons of the same size.
+	 * Icons with no image, such as mask-only and JPEG2000 icons, only contribute
+	 * their masks. Each icon must already have its width, height, depth,
+	 * and mask depth set.
+	 * @param icons the members of the icon family.
+	 */
+	public IconFamily(List<IconResource> icons) {
+		this(icons, icons.size() >= PARALLEL_THRESHOLD ? getSharedPool() : null);
+	}
+	
+	/**
+	 * Decodes a family of icons, sharing masks between icons of the same size.
+	 * Icons with no image, such as mask-only and JPEG2000 icons, only contribute
+	 * their masks. Each icon must already have its width, height, depth,
+	 * and mask depth set.
+	 * @param icons the members of the icon family.
+	 * @param pool the pool to decode the images on, or null to decode them on the calling thread.
+	 */
+	public IconFamily(List<IconResource> icons, ForkJoinPool pool) {
+		// Find the masks for each size, and the images to decode, in order of size and depth.
+		Map<Integer,IconResource> masks1 = new HashMap<Integer,IconResource>();
+		Map<Integer,IconResource> masks8 = new HashMap<Integer,IconResource>();
+		List<IconResource> members = new ArrayList<IconResource>();
+		for (IconResource icon : icons) {
+			Integer size = (icon.width << 16) | icon.height;
+			if (icon.maskdepth == 1) masks1.put(size, icon);
+			else if (icon.maskdepth == 8) masks8.put(size, icon);
+			switch (icon.depth) {
+			case 1: case 2: case 4: case 8: case 32:
+				int i = members.size();
+				while (i > 0 && compare(members.get(i-1), icon) > 0) i--;
+				members.add(i, icon);
+				break;
+			}
+		}
+		int n = members.size();
+		types = new int[n];
+		widths = new int[n];
+		heights = new int[n];
+		depths = new int[n];
+		images = new BufferedImage[n];
+		// Decode each mask once.
+		Map<IconResource,int[]> alphaBits = new HashMap<IconResource,int[]>();
+		for (IconResource mask : masks1.values()) alphaBits.put(mask, mask.getMaskAlphaBits());
+		for (IconResource mask : masks8.values()) alphaBits.put(mask, mask.getMaskAlphaBits());
+		// Decode the images.
+		List<DecodeTask> tasks = new ArrayList<DecodeTask>(n);
+		for (int i = 0; i < n; i++) {
+			IconResource icon = members.get(i);
+			Integer size = (icon.width << 16) | icon.height;
+			IconResource mask;
+			if (icon.depth == 32) {
+				mask = masks8.get(size);
+				if (mask == null) mask = masks1.get(size);
+			} else {
+				mask = masks1.get(size);
+				if (mask == null) mask = masks8.get(size);
+			}
+			types[i] = icon.type;
+			widths[i] = icon.width;
+			heights[i] = icon.height;
+			depths[i] = icon.depth;
+			tasks.add(new DecodeTask(icon, (mask == null) ? null : alphaBits.get(mask)));
+		}
+		if (pool == null || n < 2) {
+			for (int i = 0; i < n; i++) images[i] = tasks.get(i).call();
+		} else {
+			List<Future<BufferedImage>> results = pool.invokeAll(tasks);
+			for (int i = 0; i < n; i++) {
+				try {
+					images[i] = results.get(i).get();
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					images[i] = tasks.get(i).call();
+				} catch (ExecutionException ee) {
+					Throwable t = ee.getCause();
+					if (t instanceof RuntimeException) throw (RuntimeException)t;
+					if (t instanceof Error) throw (Error)t;
+					throw new RuntimeException(t);
+				}
+			}
+		}
+		// For each size up to the largest width, the index of the deepest
+		// image of the smallest width at least that large.
+		int max = (n == 0) ? 0 : widths[n-1];
+		best = new int[max+1];
+		for (int s = max, i = n-1; s >= 0; s--) {
+			while (i > 0 && widths[i-1] >= s) i--;
+			int j = i;
+			while (j+1 < n && widths[j+1] == widths[i]) j++;
+			best[s] = j;
+		}
+	}
+	
+	private static int compare(IconResource a, IconResource b) {
+		if (a.width != b.width) return a.width - b.width;
+		if (a.height != b.height) return a.height - b.height;
+		return a.depth - b.depth;
+	}
+	
+	private static class DecodeTask implements Callable<BufferedImage> {
+		private final IconResource icon;
+		private final int[] alphaBits;
+		public DecodeTask(IconResource icon, int[] alphaBits) {
+			this.icon = icon;
+			this.alphaBits = alphaBits;
+		}
+		public BufferedImage call() {
+			return icon.createImageWithMask(alphaBits);
+		}
+	}
+	
+	/**
+	 * Returns the number of images in this icon family.
+	 * @return the number of images in this icon family.
+	 */
+	public int getImageCount() {
+		return images.length;
+	}
+	
+	/**
+	 * Returns the resource type of the icon an image was decoded from.
+	 * Images are ordered by width, then height, then depth.
+	 * @param i the index of the image.
+	 * @return the resource type of the icon the image was decoded from.
+	 */
+	public int getType(int i) { return types[i]; }
+	
+	/**
+	 * Returns the width of an image.
+	 * @param i the index of the image.
+	 * @return the width of the image.
+	 */
+	public int getWidth(int i) { return widths[i]; }
+	
+	/**
+	 * Returns the height of an image.
+	 * @param i the index of the image.
+	 * @return the height of the image.
+	 */
+	public int getHeight(int i) { return heights[i]; }
+	
+	/**
+	 * Returns the depth of the icon an image was decoded from.
+	 * @param i the index of the image.
+	 * @return the depth of the icon the image was decoded from.
+	 */
+	public int getDepth(int i) { return depths[i]; }
+	
+	/**
+	 * Returns an image, with its mask applied.
+	 * The image is shared, so it must not be modified.
+	 * @param i the index of the image.
+	 * @return the image.
+	 */
+	public BufferedImage getImage(int i) { return images[i]; }
+	
+	/**
+	 * Returns the image of the specified width, height, and depth,
+	 * or <code>null</code> if this icon family does not have one.
+	 * @param width the width of the image.
+	 * @param height the height of the image.
+	 * @param depth the depth of the icon the image was decoded from.
+	 * @return the image, or null if there is no such image.
+	 */
+	public BufferedImage getImage(int width, int height, int depth) {
+		for (int i = 0; i < images.length; i++) {
+			if (widths[i] == width && heights[i] == height && depths[i] == depth) {
+				return images[i];
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns the index of the best image to draw at the specified size:
+	 * the deepest image of the smallest width at least as large as the size,
+	 * or the deepest of the largest images if there is none that large.
+	 * If this icon family has no images, this returns -1.
+	 * @param size the size the image will be drawn at.
+	 * @return the index of the best image to draw at that size.
+	 */
+	public int getBestIndex(int size) {
+		if (best.length == 0 || images.length == 0) return -1;
+		if (size < 0) size = 0;
+		if (size >= best.length) return images.length-1;
+		return best[size];
+	}
+	
+	/**
+	 * Returns the best image to draw at the specified size, or <code>null</code>
+	 * if this icon family has no images. See <code>getBestIndex</code>.
+	 * @param size the size the image will be drawn at.
+	 * @return the best image to draw at that size.
+	 */
+	public BufferedImage getBestImage(int size) {
+		int i = getBestIndex(size);
+		return (i < 0) ? null : images[i];
+	}
+	
+	/**
+	 * Draws the best image for the specified size, scaled to that size.
+	 * The height is scaled in proportion to the width.
+	 * @param g the graphics context to draw into.
+	 * @param x the x coordinate of the top left corner.
+	 * @param y the y coordinate of the top left corner.
+	 * @param size the width to draw the icon at.
+	 * @return true if an image was drawn, false if this icon family has no images.
+	 */
+	public boolean drawIcon(Graphics g, int x, int y, int size) {
+		int i = getBestIndex(size);
+		if (i < 0) return false;
+		int h = (widths[i] == size) ? heights[i] : (heights[i] * size + widths[i] / 2) / widths[i];
+		g.drawImage(images[i], x, y, size, h, null);
+		return true;
+	}
+}
@@ -27,6 +27,13 @@
 
 package com.kreative.rsrc;
 
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import com.kreative.ksfl.*;
 
 /**
@@ -237,4 +244,68 @@ public class IconListResource extends MacResource {
 		for (int i = 0; i < icons.length; i++) icons[i] = getIcon(i);
 		return icons;
 	}
+	
+	/**
+	 * The number of icons at or above which <code>decodeAll</code>
+	 * decodes icons in parallel.
+	 */
+	public static final int PARALLEL_THRESHOLD = 64;
+	
+	private static ForkJoinPool sharedPool = null;
+	
+	private static synchronized ForkJoinPool getSharedPool() {
+		if (sharedPool == null) sharedPool = new ForkJoinPool();
+		return sharedPool;
+	}
+	
+	/**
+	 * Decodes all the icons in this icon list as images, in a single pass
+	 * over the icon list, without creating an IconResource for each icon.
+	 * If there are at least <code>PARALLEL_THRESHOLD</code> icons,
+	 * they are decoded in parallel.
+	 * @return the icons of this resource as an array of images.
+	 */
+	public BufferedImage[] decodeAll() {
+		int n = getIconCount();
+		if (n < PARALLEL_THRESHOLD) return decodeRange(0, n);
+		int chunks = Math.min(n / (PARALLEL_THRESHOLD / 2), Runtime.getRuntime().availableProcessors() * 4);
+		List<Callable<BufferedImage[]>> tasks = new ArrayList<Callable<BufferedImage[]>>(chunks);
+		for (int c = 0; c < chunks; c++) {
+			final int start = (int)((long)n * c / chunks);
+			final int end = (int)((long)n * (c+1) / chunks);
+			tasks.add(new Callable<BufferedImage[]>() {
+				public BufferedImage[] call() {
+					return decodeRange(start, end);
+				}
+			});
+		}
+		BufferedImage[] images = new BufferedImage[n];
+		List<Future<BufferedImage[]>> results = getSharedPool().invokeAll(tasks);
+		for (int c = 0, i = 0; c < chunks; c++) {
+			BufferedImage[] chunk;
+			try {
+				chunk = results.get(c).get();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				chunk = decodeRange((int)((long)n * c / chunks), (int)((long)n * (c+1) / chunks));
+			} catch (ExecutionException ee) {
+				Throwable t = ee.getCause();
+				if (t instanceof RuntimeException) throw (RuntimeException)t;
+				if (t instanceof Error) throw (Error)t;
+				throw new RuntimeException(t);
+			}
+			System.arraycopy(chunk, 0, images, i, chunk.length);
+			i += chunk.length;
+		}
+		return images;
+	}
+	
+	private BufferedImage[] decodeRange(int start, int end) {
+		int size = (width*height*depth)/8;
+		BufferedImage[] images = new BufferedImage[end-start];
+		for (int idx = start; idx < end; idx++) {
+			images[idx-start] = IconResource.createIndexedImage(data, idx*size, width, height, depth);
+		}
+		return images;
+	}
 }
@@ -29,6 +29,7 @@ package com.kreative.rsrc;
 
 import java.awt.*;
 import java.awt.image.*;
+import java.util.Arrays;
 import com.kreative.ksfl.KSFLConstants;
 import com.kreative.rsrc.pict.PICTUtilities;
 
@@ -579,74 +580,57 @@ public class IconResource extends MacResource {
 	 * Creates an AWT image of this icon's image.
 	 * If this resource only has a mask, or the depth of the icon image is not one of
 	 * 1, 2, 4, 8, or 32, this returns <code>null</code>.
+	 * If a default <code>MacResourceImageCache</code> is set, the image is cached.
 	 * @return the icon image.
 	 */
 	public Image getImage() {
-		if (depth == 32) {
-			byte[] stuff = new byte[width*height*3];
-			int[] pixels = new int[width*height];
-			int i,j,k;
-			for (i=0, j=0; i<data.length && j<stuff.length; i++) {
-				int run = data[i] & 0xFF;
-				if (run < 128) {
-					for (k=0; k<=run && j<stuff.length; k++) stuff[j++] = data[++i];
-				} else {
-					i++;
-					for (k=0; k<(run-125) && j<stuff.length; k++) stuff[j++] = data[i];
-				}
-			}
-			for (i=0, j=width*height, k=width*height*2; i<pixels.length; i++, j++, k++) {
-				int r = stuff[i] & 0xFF;
-				int g = stuff[j] & 0xFF;
-				int b = stuff[k] & 0xFF;
-				pixels[i] = (0xFF000000 | (r << 16) | (g << 8) | b);
-			}
-			BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-			img.setRGB(0, 0, width, height, pixels, 0, width);
-			return img;
-		} else {
-			int[] pixels = new int[width*height];
-			switch (depth) {
-			case 1:
-				for (int i=0, j=0; i<data.length && j<pixels.length; i++, j+=8) {
-					pixels[j+0] = PICTUtilities.COLORS_1BIT[(data[i] & 0x80) >> 7];
-					pixels[j+1] = PICTUtilities.COLORS_1BIT[(data[i] & 0x40) >> 6];
-					pixels[j+2] = PICTUtilities.COLORS_1BIT[(data[i] & 0x20) >> 5];
-					pixels[j+3] = PICTUtilities.COLORS_1BIT[(data[i] & 0x10) >> 4];
-					pixels[j+4] = PICTUtilities.COLORS_1BIT[(data[i] & 0x08) >> 3];
-					pixels[j+5] = PICTUtilities.COLORS_1BIT[(data[i] & 0x04) >> 2];
-					pixels[j+6] = PICTUtilities.COLORS_1BIT[(data[i] & 0x02) >> 1];
-					pixels[j+7] = PICTUtilities.COLORS_1BIT[(data[i] & 0x01) >> 0];
-				}
-				break;
-			case 2:
-				for (int i=0, j=0; i<data.length && j<pixels.length; i++, j+=4) {
-					pixels[j+0] = PICTUtilities.COLORS_2BIT[(data[i] & 0xC0) >> 6];
-					pixels[j+1] = PICTUtilities.COLORS_2BIT[(data[i] & 0x30) >> 4];
-					pixels[j+2] = PICTUtilities.COLORS_2BIT[(data[i] & 0x0C) >> 2];
-					pixels[j+3] = PICTUtilities.COLORS_2BIT[(data[i] & 0x03) >> 0];
-				}
-				break;
-			case 4:
-				for (int i=0, j=0; i<data.length && j<pixels.length; i++, j+=2) {
-					pixels[j+0] = PICTUtilities.COLORS_4BIT[(data[i] & 0xF0) >> 4];
-					pixels[j+1] = PICTUtilities.COLORS_4BIT[(data[i] & 0x0F) >> 0];
-				}
-				break;
-			case 8:
-				for (int i=0, j=0; i<data.length && j<pixels.length; i++, j++) {
-					pixels[j] = PICTUtilities.COLORS_8BIT[data[i] & 0xFF];
-				}
-				break;
-			default:
-				return null;
+		MacResourceImageCache cache = MacResourceImageCache.getDefaultCache();
+		if (cache == null) return createImage();
+		MacResourceImageCache.Key key = new MacResourceImageCache.Key(type, id, (width << 20) | (height << 8) | depth, data);
+		BufferedImage img = cache.get(key);
+		if (img == null) cache.put(key, img = createImage());
+		return img;
+	}
+	
+	private BufferedImage createImage() {
+		int n = width*height;
+		switch (depth) {
+		case 1: case 2: case 4: case 8:
+			if (data.length < getImageSize()) {
+				// Pixels past the end of the data are transparent,
+				// which an indexed image cannot represent.
+				int[] argb = new int[n];
+				unpack(data, 0, depth, ARGB_COLORS[depthIndex(depth)], argb);
+				return createARGBImage(argb);
 			}
-			BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-			img.setRGB(0, 0, width, height, pixels, 0, width);
-			return img;
+			return createIndexedImage(data, 0, width, height, depth);
+		case 32:
+			int[] rgb = new int[n];
+			Arrays.fill(rgb, 0xFF000000);
+			unpackRLE32(rgb);
+			return createARGBImage(rgb);
+		default:
+			return null;
 		}
 	}
 	
+	/*
+	 * Creates an indexed image from 1, 2, 4, or 8-bit icon data starting at
+	 * the given offset. The icon data is already in the layout of a packed or
+	 * byte-interleaved raster, so it only needs to be copied. Pixels past the
+	 * end of the data are white.
+	 */
+	static BufferedImage createIndexedImage(byte[] data, int offset, int width, int height, int depth) {
+		int stride = (width*depth+7)/8;
+		byte[] pixels = new byte[stride*height];
+		System.arraycopy(data, offset, pixels, 0, Math.max(0, Math.min(pixels.length, data.length-offset)));
+		DataBufferByte db = new DataBufferByte(pixels, pixels.length);
+		WritableRaster r = (depth == 8)
+				? Raster.createInterleavedRaster(db, width, height, stride, 1, new int[]{0}, null)
+				: Raster.createPackedRaster(db, width, height, depth, null);
+		return new BufferedImage(getIndexColorModel(depth), r, false, null);
+	}
+	
 	/**
 	 * Creates an AWT image of this icon's image with a mask.
 	 * If this resource only has a mask, or the depth of the icon image is not one of
@@ -658,74 +642,42 @@ public class IconResource extends MacResource {
 	 */
 	public Image getImageWithMask(IconResource mask) {
 		if (width != mask.width && height != mask.height) return null;
-		int[] alphas = mask.getMaskAlphaValues();
-		if (alphas == null || alphas.length < width*height) return null;
-		if (depth == 32) {
-			byte[] stuff = new byte[width*height*3];
-			int[] pixels = new int[width*height];
-			int i,j,k;
-			for (i=0, j=0; i<data.length && j<stuff.length; i++) {
-				int run = data[i] & 0xFF;
-				if (run < 128) {
-					for (k=0; k<=run && j<stuff.length; k++) stuff[j++] = data[++i];
-				} else {
-					i++;
-					for (k=0; k<(run-125) && j<stuff.length; k++) stuff[j++] = data[i];
-				}
-			}
-			for (i=0, j=width*height, k=width*height*2; i<pixels.length; i++, j++, k++) {
-				int r = stuff[i] & 0xFF;
-				int g = stuff[j] & 0xFF;
-				int b = stuff[k] & 0xFF;
-				pixels[i] = ((alphas[i] << 24) | (r << 16) | (g << 8) | b);
-			}
-			BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-			img.setRGB(0, 0, width, height, pixels, 0, width);
-			return img;
-		} else {
-			int[] pixels = new int[width*height];
-			switch (depth) {
-			case 1:
-				for (int i=0, j=0; i<data.length && j<pixels.length; i++, j+=8) {
-					pixels[j+0] = PICTUtilities.COLORS_1BIT[(data[i] & 0x80) >> 7];
-					pixels[j+1] = PICTUtilities.COLORS_1BIT[(data[i] & 0x40) >> 6];
-					pixels[j+2] = PICTUtilities.COLORS_1BIT[(data[i] & 0x20) >> 5];
-					pixels[j+3] = PICTUtilities.COLORS_1BIT[(data[i] & 0x10) >> 4];
-					pixels[j+4] = PICTUtilities.COLORS_1BIT[(data[i] & 0x08) >> 3];
-					pixels[j+5] = PICTUtilities.COLORS_1BIT[(data[i] & 0x04) >> 2];
-					pixels[j+6] = PICTUtilities.COLORS_1BIT[(data[i] & 0x02) >> 1];
-					pixels[j+7] = PICTUtilities.COLORS_1BIT[(data[i] & 0x01) >> 0];
-				}
-				break;
-			case 2:
-				for (int i=0, j=0; i<data.length && j<pixels.length; i++, j+=4) {
-					pixels[j+0] = PICTUtilities.COLORS_2BIT[(data[i] & 0xC0) >> 6];
-					pixels[j+1] = PICTUtilities.COLORS_2BIT[(data[i] & 0x30) >> 4];
-					pixels[j+2] = PICTUtilities.COLORS_2BIT[(data[i] & 0x0C) >> 2];
-					pixels[j+3] = PICTUtilities.COLORS_2BIT[(data[i] & 0x03) >> 0];
-				}
-				break;
-			case 4:
-				for (int i=0, j=0; i<data.length && j<pixels.length; i++, j+=2) {
-					pixels[j+0] = PICTUtilities.COLORS_4BIT[(data[i] & 0xF0) >> 4];
-					pixels[j+1] = PICTUtilities.COLORS_4BIT[(data[i] & 0x0F) >> 0];
-				}
-				break;
-			case 8:
-				for (int i=0, j=0; i<data.length && j<pixels.length; i++, j++) {
-					pixels[j] = PICTUtilities.COLORS_8BIT[data[i] & 0xFF];
-				}
-				break;
-			default:
-				return null;
-			}
-			for (int i = 0; i < pixels.length; i++) {
-				pixels[i] = ((alphas[i] << 24) | (pixels[i] & 0xFFFFFF));
-			}
-			BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-			img.setRGB(0, 0, width, height, pixels, 0, width);
-			return img;
+		if (mask.maskLookupTable(ALPHA_MASKS) == null || mask.width*mask.height < width*height) return null;
+		return createImageWithMask(mask.getMaskAlphaBits());
+	}
+	
+	/*
+	 * Returns the icon mask as alpha values already shifted into the top
+	 * byte of an ARGB pixel, or null if this resource has no mask.
+	 * This can be shared by several images of the same size.
+	 */
+	int[] getMaskAlphaBits() {
+		int[] lut = maskLookupTable(ALPHA_MASKS);
+		if (lut == null) return null;
+		int[] bits = new int[width*height];
+		unpack(data, getImageSize(), maskdepth, lut, bits);
+		return bits;
+	}
+	
+	/*
+	 * Creates an image of this icon's image, taking the alpha channel from
+	 * the result of getMaskAlphaBits(), or null for an opaque image.
+	 */
+	BufferedImage createImageWithMask(int[] alphaBits) {
+		int[] pixels = new int[width*height];
+		if (alphaBits == null) Arrays.fill(pixels, 0xFF000000);
+		else System.arraycopy(alphaBits, 0, pixels, 0, Math.min(alphaBits.length, pixels.length));
+		switch (depth) {
+		case 1: case 2: case 4: case 8:
+			unpack(data, 0, depth, getRGBLookupTable(depth), pixels);
+			break;
+		case 32:
+			unpackRLE32(pixels);
+			break;
+		default:
+			return null;
 		}
+		return createARGBImage(pixels);
 	}
 	
 	/**
@@ -737,43 +689,10 @@ public class IconResource extends MacResource {
 	 * @return the icon mask as an array of integers.
 	 */
 	public int[] getMaskAlphaValues() {
+		int[] lut = maskLookupTable(ALPHA_VALUES);
+		if (lut == null) return null;
 		int[] alphas = new int[width*height];
-		int o = getImageSize();
-		switch (maskdepth) {
-		case 1:
-			for (int i=o, j=0; i<data.length && j<alphas.length; i++, j+=8) {
-				alphas[j+0] = ((data[i] & 0x80) >> 7) * 255;
-				alphas[j+1] = ((data[i] & 0x40) >> 6) * 255;
-				alphas[j+2] = ((data[i] & 0x20) >> 5) * 255;
-				alphas[j+3] = ((data[i] & 0x10) >> 4) * 255;
-				alphas[j+4] = ((data[i] & 0x08) >> 3) * 255;
-				alphas[j+5] = ((data[i] & 0x04) >> 2) * 255;
-				alphas[j+6] = ((data[i] & 0x02) >> 1) * 255;
-				alphas[j+7] = ((data[i] & 0x01) >> 0) * 255;
-			}
-			break;
-		case 2:
-			for (int i=o, j=0; i<data.length && j<alphas.length; i++, j+=4) {
-				alphas[j+0] = ((data[i] & 0xC0) >> 6) * 85;
-				alphas[j+1] = ((data[i] & 0x30) >> 4) * 85;
-				alphas[j+2] = ((data[i] & 0x0C) >> 2) * 85;
-				alphas[j+3] = ((data[i] & 0x03) >> 0) * 85;
-			}
-			break;
-		case 4:
-			for (int i=o, j=0; i<data.length && j<alphas.length; i++, j+=2) {
-				alphas[j+0] = ((data[i] & 0xF0) >> 4) * 17;
-				alphas[j+1] = ((data[i] & 0x0F) >> 0) * 17;
-			}
-			break;
-		case 8:
-			for (int i=o, j=0; i<data.length && j<alphas.length; i++, j++) {
-				alphas[j] = (data[i] & 0xFF);
-			}
-			break;
-		default:
-			return null;
-		}
+		unpack(data, getImageSize(), maskdepth, lut, alphas);
 		return alphas;
 	}
 	
@@ -784,45 +703,104 @@ public class IconResource extends MacResource {
 	 * @return the icon mask.
 	 */
 	public Image getMask() {
+		int[] lut = maskLookupTable(ALPHA_MASKS);
+		if (lut == null) return null;
 		int[] pixels = new int[width*height];
-		int o = getImageSize();
-		switch (maskdepth) {
-		case 1:
-			for (int i=o, j=0; i<data.length && j<pixels.length; i++, j+=8) {
-				pixels[j+0] = (((data[i] & 0x80) >> 7) * 255) << 24;
-				pixels[j+1] = (((data[i] & 0x40) >> 6) * 255) << 24;
-				pixels[j+2] = (((data[i] & 0x20) >> 5) * 255) << 24;
-				pixels[j+3] = (((data[i] & 0x10) >> 4) * 255) << 24;
-				pixels[j+4] = (((data[i] & 0x08) >> 3) * 255) << 24;
-				pixels[j+5] = (((data[i] & 0x04) >> 2) * 255) << 24;
-				pixels[j+6] = (((data[i] & 0x02) >> 1) * 255) << 24;
-				pixels[j+7] = (((data[i] & 0x01) >> 0) * 255) << 24;
-			}
-			break;
-		case 2:
-			for (int i=o, j=0; i<data.length && j<pixels.length; i++, j+=4) {
-				pixels[j+0] = (((data[i] & 0xC0) >> 6) * 85) << 24;
-				pixels[j+1] = (((data[i] & 0x30) >> 4) * 85) << 24;
-				pixels[j+2] = (((data[i] & 0x0C) >> 2) * 85) << 24;
-				pixels[j+3] = (((data[i] & 0x03) >> 0) * 85) << 24;
-			}
-			break;
-		case 4:
-			for (int i=o, j=0; i<data.length && j<pixels.length; i++, j+=2) {
-				pixels[j+0] = (((data[i] & 0xF0) >> 4) * 17) << 24;
-				pixels[j+1] = (((data[i] & 0x0F) >> 0) * 17) << 24;
+		unpack(data, getImageSize(), maskdepth, lut, pixels);
+		return createARGBImage(pixels);
+	}
+	
+	private static final int[][] ALPHA_VALUES = {
+		{ 0, 255 },
+		{ 0, 85, 170, 255 },
+		{ 0, 17, 34, 51, 68, 85, 102, 119, 136, 153, 170, 187, 204, 221, 238, 255 },
+		null
+	};
+	private static final int[][] ALPHA_MASKS = new int[4][];
+	private static final int[][] ARGB_COLORS = {
+		PICTUtilities.COLORS_1BIT, PICTUtilities.COLORS_2BIT,
+		PICTUtilities.COLORS_4BIT, PICTUtilities.COLORS_8BIT
+	};
+	private static final int[][] RGB_COLORS = new int[4][];
+	private static final IndexColorModel[] INDEX_COLOR_MODELS = new IndexColorModel[4];
+	static {
+		ALPHA_VALUES[3] = new int[256];
+		for (int i = 0; i < 256; i++) ALPHA_VALUES[3][i] = i;
+		for (int d = 0; d < 4; d++) {
+			ALPHA_MASKS[d] = new int[ALPHA_VALUES[d].length];
+			for (int i = 0; i < ALPHA_MASKS[d].length; i++) ALPHA_MASKS[d][i] = ALPHA_VALUES[d][i] << 24;
+		}
+		for (int d = 0; d < 4; d++) {
+			RGB_COLORS[d] = new int[ARGB_COLORS[d].length];
+			for (int i = 0; i < RGB_COLORS[d].length; i++) RGB_COLORS[d][i] = ARGB_COLORS[d][i] & 0xFFFFFF;
+			INDEX_COLOR_MODELS[d] = new IndexColorModel(1 << d, ARGB_COLORS[d].length, ARGB_COLORS[d], 0, false, -1, DataBuffer.TYPE_BYTE);
+		}
+	}
+	
+	private static int depthIndex(int depth) {
+		switch (depth) {
+		case 1: return 0;
+		case 2: return 1;
+		case 4: return 2;
+		case 8: return 3;
+		default: return -1;
+		}
+	}
+	
+	private static IndexColorModel getIndexColorModel(int depth) {
+		return INDEX_COLOR_MODELS[depthIndex(depth)];
+	}
+	
+	private static int[] getRGBLookupTable(int depth) {
+		return RGB_COLORS[depthIndex(depth)];
+	}
+	
+	private int[] maskLookupTable(int[][] tables) {
+		int d = depthIndex(maskdepth);
+		return (d < 0) ? null : tables[d];
+	}
+	
+	/*
+	 * ORs the looked-up value of each packed pixel of the given depth into dst.
+	 * Pixels past the end of src are left unchanged.
+	 */
+	private static void unpack(byte[] src, int offset, int depth, int[] lut, int[] dst) {
+		int m = (1 << depth) - 1;
+		for (int i = offset, j = 0; i < src.length && j < dst.length; i++) {
+			int b = src[i] & 0xFF;
+			for (int s = 8 - depth; s >= 0 && j < dst.length; s -= depth, j++) {
+				dst[j] |= lut[(b >> s) & m];
 			}
-			break;
-		case 8:
-			for (int i=o, j=0; i<data.length && j<pixels.length; i++, j++) {
-				pixels[j] = (data[i] & 0xFF) << 24;
+		}
+	}
+	
+	/*
+	 * Decodes the run-length encoded red, green, and blue planes of a 32-bit
+	 * icon and ORs each component directly into its place in the ARGB pixels.
+	 */
+	private void unpackRLE32(int[] pixels) {
+		int n = width*height, p = 0, shift = 16;
+		for (int i = 0; i < data.length && shift >= 0; i++) {
+			int run = data[i] & 0xFF;
+			if (run < 128) {
+				for (int k = 0; k <= run && shift >= 0 && i+1 < data.length; k++) {
+					pixels[p] |= (data[++i] & 0xFF) << shift;
+					if (++p >= n) { p = 0; shift -= 8; }
+				}
+			} else if (++i < data.length) {
+				int v = data[i] & 0xFF;
+				for (int k = 0; k < (run-125) && shift >= 0; k++) {
+					pixels[p] |= v << shift;
+					if (++p >= n) { p = 0; shift -= 8; }
+				}
 			}
-			break;
-		default:
-			return null;
 		}
-		BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-		img.setRGB(0, 0, width, height, pixels, 0, width);
-		return img;
+	}
+	
+	private BufferedImage createARGBImage(int[] pixels) {
+		DataBufferInt db = new DataBufferInt(pixels, pixels.length);
+		ColorModel cm = ColorModel.getRGBdefault();
+		WritableRaster r = Raster.createPackedRaster(db, width, height, width, ((DirectColorModel)cm).getMasks(), null);
+		return new BufferedImage(cm, r, false, null);
 	}
 }
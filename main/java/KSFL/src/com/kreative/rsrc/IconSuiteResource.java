@@ -27,6 +27,8 @@
 
 package com.kreative.rsrc;
 
+import java.util.ArrayList;
+import java.util.List;
 import com.kreative.ksfl.*;
 import com.kreative.rsrc.MacResource;
 
@@ -203,4 +205,38 @@ public class IconSuiteResource extends MacResource {
 		if (loc == null) return null;
 		return new IconResource(type, id, getAttributes(), name, KSFLUtilities.copy(data, loc[0]+8, loc[1]));
 	}
+	
+	/**
+	 * Retrieves every member of this icon suite whose type is supported by
+	 * <code>IconResource</code>, walking the icon suite only once.
+	 * Each returned IconResource has the same id, attributes, and name
+	 * as this IconSuiteResource.
+	 * @return the members of this icon suite, in the order they appear.
+	 */
+	public List<IconResource> getMembers() {
+		List<IconResource> members = new ArrayList<IconResource>();
+		int p = 8;
+		while (p+8 <= data.length) {
+			int ct = KSFLUtilities.getInt(data, p);
+			int cs = KSFLUtilities.getInt(data, p+4);
+			if (cs < 8) break;
+			if (IconResource.isMyType(ct)) {
+				members.add(new IconResource(ct, id, getAttributes(), name, KSFLUtilities.copy(data, p+8, cs-8)));
+			}
+			p += cs;
+		}
+		return members;
+	}
+	
+	/**
+	 * Decodes every image in this icon suite at once.
+	 * The icon suite is walked once, each mask is decoded once and shared by all
+	 * the images of its size, and if there are many images they are decoded in
+	 * parallel. The returned <code>IconFamily</code> can then give the best
+	 * image for any size without decoding anything further.
+	 * @return the decoded images of this icon suite.
+	 */
+	public IconFamily decodeAll() {
+		return new IconFamily(getMembers());
+	}
 }
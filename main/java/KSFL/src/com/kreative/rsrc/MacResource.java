@@ -523,7 +523,8 @@ public class MacResource {
 	 * Casts this <code>MacResource</code> object to a subclass of <code>MacResource</code>
 	 * by creating a shallow copy of this resource as an instance of that subclass.
 	 * This is done by calling the <code>MacResource(int type, short id, byte attr,
-	 * String name, byte[] data)</code> constructor of the subclass with the type,
+	 * String name, byte[] data)</code> constructor of the subclass, resolved once per
+	 * subclass by <code>MacResourceTypeRegistry</code>, with the type,
 	 * ID, attributes, name, and data of this resource, effectively creating a shallow
 	 * copy but as an instance of a subclass of <code>MacResource</code>.<p>
 	 * If some kind of error happens (the subclass does not have the right constructor,
@@ -544,10 +545,10 @@ public class MacResource {
 	 * @return A shallow copy of this resource, an instance of class <code>resourceSubclass</code>.
 	 */
 	public <R extends MacResource> R shallowRecast(Class<R> resourceSubclass) {
-		Class<?>[] fparam = { int.class, short.class, byte.class, String.class, byte[].class };
-		Object[] aparam = { this.type, this.id, this.getAttributes(), this.name, this.data };
+		MacResourceTypeRegistry.Factory f = MacResourceTypeRegistry.getFactory(resourceSubclass);
+		if (f == null) return null;
 		try {
-			return resourceSubclass.getConstructor(fparam).newInstance(aparam);
+			return resourceSubclass.cast(f.create(this.type, this.id, this.getAttributes(), this.name, this.data));
 		} catch (Exception e) {
 			return null;
 		}
@@ -568,10 +569,10 @@ public class MacResource {
 	 * @return A deep copy of this resource, an instance of class <code>resourceSubclass</code>.
 	 */
 	public <R extends MacResource> R deepRecast(Class<R> resourceSubclass) {
-		Class<?>[] fparam = { int.class, short.class, byte.class, String.class, byte[].class };
-		Object[] aparam = { this.type, this.id, this.getAttributes(), new String(this.name), KSFLUtilities.copy(this.data) };
+		MacResourceTypeRegistry.Factory f = MacResourceTypeRegistry.getFactory(resourceSubclass);
+		if (f == null) return null;
 		try {
-			return resourceSubclass.getConstructor(fparam).newInstance(aparam);
+			return resourceSubclass.cast(f.copy(this));
 		} catch (Exception e) {
 			return null;
 		}
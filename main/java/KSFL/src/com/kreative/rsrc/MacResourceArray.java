@@ -45,6 +45,7 @@ public class MacResourceArray extends MacResourceProvider {
 	private int resMap, typeList, nameList, resData;
 	private int resMapLen, resDataLen;
 	private String textEncoding = "MACROMAN";
+	private long modCount = 0;
 	
 	private String gps(byte[] a, int b) {
 		try {
@@ -332,6 +333,7 @@ public class MacResourceArray extends MacResourceProvider {
 	 */
 	public synchronized void setTextEncoding(String encoding) {
 		textEncoding = encoding;
+		modCount++;
 	}
 	
 	/**
@@ -359,6 +361,11 @@ public class MacResourceArray extends MacResourceProvider {
 		// nothing
 	}
 	
+	@Override
+	public synchronized long getModificationCount() {
+		return modCount;
+	}
+	
 	@Override
 	public synchronized short getResourceMapAttributes() {
 		return KSFLUtilities.getShort(arr, resMap+22);
@@ -371,6 +378,7 @@ public class MacResourceArray extends MacResourceProvider {
 	
 	@Override
 	public synchronized boolean add(MacResource r) throws MacResourceAlreadyExistsException {
+		modCount++;
 		if (locate(r.type,r.id) != null) throw new MacResourceAlreadyExistsException();
 		//type record
 		if (locateType(r.type) == null) {
@@ -491,6 +499,7 @@ public class MacResourceArray extends MacResourceProvider {
 	
 	@Override
 	public synchronized boolean remove(int type, short id) {
+		modCount++;
 		int[] loc = locate(type,id);
 		if (loc != null) {
 			//delete data
@@ -515,6 +524,7 @@ public class MacResourceArray extends MacResourceProvider {
 	}
 	@Override
 	public synchronized boolean remove(int type, String name) {
+		modCount++;
 		int[] loc = locate(type,name);
 		if (loc != null) {
 			short id = KSFLUtilities.getShort(arr, loc[3]);
@@ -557,6 +567,7 @@ public class MacResourceArray extends MacResourceProvider {
 	
 	@Override
 	public synchronized boolean setAttributes(int type, short id, MacResource r) throws MacResourceAlreadyExistsException {
+		modCount++;
 		int[] loc = locate(type,id);
 		if (loc != null) {
 			int[] loce = locate(r.type,r.id);
@@ -627,6 +638,7 @@ public class MacResourceArray extends MacResourceProvider {
 	}
 	@Override
 	public synchronized boolean setAttributes(int type, String name, MacResource r) throws MacResourceAlreadyExistsException {
+		modCount++;
 		int[] loc = locate(type,name);
 		if (loc != null) {
 			int[] loce = locate(r.type,r.id);
@@ -699,6 +711,7 @@ public class MacResourceArray extends MacResourceProvider {
 	
 	@Override
 	public synchronized boolean setData(int type, short id, byte[] data) {
+		modCount++;
 		int[] loc = locate(type,id);
 		if (loc != null) {
 			//delete data
@@ -718,6 +731,7 @@ public class MacResourceArray extends MacResourceProvider {
 	}
 	@Override
 	public synchronized boolean setData(int type, String name, byte[] data) {
+		modCount++;
 		int[] loc = locate(type,name);
 		if (loc != null) {
 			short id = KSFLUtilities.getShort(arr, loc[3]);
@@ -31,6 +31,7 @@ import java.io.File;
 import java.io.RandomAccessFile;
 import java.io.IOException;
 import java.util.ArrayList;
+import com.kreative.ksfl.AtomicFileWriter;
 import com.kreative.ksfl.KSFLUtilities;
 
 /**
@@ -62,6 +63,9 @@ public class MacResourceFile extends MacResourceProvider {
 	private int resMap, typeList, nameList, resData;
 	private int resMapLen, resDataLen;
 	private String textEncoding = "MACROMAN";
+	private long modCount = 0;
+	private AtomicFileWriter working = null;
+	private boolean uncommitted = false;
 	
 	private String gps(int b) {
 		try {
@@ -347,9 +351,47 @@ public class MacResourceFile extends MacResourceProvider {
 	 * @throws IOException if an I/O error occurs.
 	 */
 	public MacResourceFile(File f, String mode, int create) throws IOException {
-		raf = new RandomAccessFile(f, mode);
+		this(f, mode, create, false);
+	}
+	
+	/**
+	 * Creates a <code>MacResourceFile</code> around a file.
+	 * If <code>transactional</code> is true and the file is opened for writing,
+	 * the file itself is never modified in place. Changes are made to a copy
+	 * of the file in the same directory, which replaces the file in a single
+	 * atomic rename when <code>commit</code>, <code>flush</code>, or
+	 * <code>close</code> is called. If the program crashes before then,
+	 * the file is left as it was.
+	 * Since <code>flush</code> and <code>close</code> cannot throw
+	 * <code>IOException</code>, they report a failed commit by throwing a
+	 * <code>RuntimeException</code>; call <code>commit</code> to get the
+	 * <code>IOException</code> itself. If <code>close</code> fails to commit,
+	 * the copy is kept, and its path is given in the exception message.
+	 * This cannot be used on a resource fork accessed through
+	 * <code>..namedfork/rsrc</code>, since a fork cannot be renamed.
+	 * @param f the file object.
+	 * @param mode the access mode, as described by <code>RandomAccessFile(File, String)</code>.
+	 * @param create <code>CREATE_ALWAYS</code> if a new resource structure should be created, <code>CREATE_IF_EMPTY</code> if a new resource should be created if the file is empty, <code>CREATE_NEVER</code> if the file should not be modified.
+	 * @param transactional true if changes should be written to a copy of the file and committed atomically.
+	 * @throws IOException if an I/O error occurs.
+	 * @since KSFL 1.2
+	 */
+	public MacResourceFile(File f, String mode, int create, boolean transactional) throws IOException {
 		readOnly = (mode.equalsIgnoreCase("r"));
+		if (transactional && !readOnly) {
+			working = new AtomicFileWriter(f);
+			try {
+				if (create != CREATE_ALWAYS && f.exists()) working.copyFrom(f);
+			} catch (IOException e) {
+				working.abort();
+				throw e;
+			}
+			raf = working.getRandomAccessFile();
+		} else {
+			raf = new RandomAccessFile(f, mode);
+		}
 		if ((create == CREATE_ALWAYS) || ((create == CREATE_IF_EMPTY) && (raf.length() == 0))) {
+			uncommitted = (working != null);
 			raf.setLength(286);
 			raf.seek(0);
 			raf.writeInt(256);
@@ -403,6 +445,8 @@ public class MacResourceFile extends MacResourceProvider {
 	 */
 	public synchronized void setTextEncoding(String encoding) {
 		textEncoding = encoding;
+		// names now decode differently, but the file itself is unchanged
+		modCount++;
 	}
 	
 	/**
@@ -419,14 +463,80 @@ public class MacResourceFile extends MacResourceProvider {
 		return readOnly;
 	}
 	
+	/**
+	 * Returns true if changes are being made to a copy of the file
+	 * that replaces the file when committed.
+	 * @return true if changes are committed atomically.
+	 * @since KSFL 1.2
+	 */
+	public boolean isTransactional() {
+		return working != null;
+	}
+	
+	/**
+	 * Replaces the file with the copy that changes have been made to,
+	 * if any changes have been made since the last commit. The copy is
+	 * forced to disk and then renamed over the file. Does nothing
+	 * if this <code>MacResourceFile</code> is not transactional.
+	 * Changes continue to be made to a fresh copy of the committed file,
+	 * so each commit takes time proportional to the size of the file,
+	 * not the size of the changes.
+	 * @throws IOException if an I/O error occurs. The file is left as it was.
+	 * @since KSFL 1.2
+	 */
+	public synchronized void commit() throws IOException {
+		if (working != null && uncommitted) {
+			AtomicFileWriter next = working.copy();
+			long fp = raf.getFilePointer();
+			try {
+				working.commit();
+			} catch (IOException e) {
+				working.abort();
+				throw e;
+			} finally {
+				working = next;
+				raf = next.getRandomAccessFile();
+				raf.seek(fp);
+			}
+			uncommitted = false;
+		}
+	}
+	
 	@Override
 	public synchronized void flush() {
-		// nothing
+		try {
+			commit();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
 	}
 	
 	@Override
 	public synchronized void close() {
-		try { raf.close(); } catch (Exception e) {}
+		if (working != null) {
+			if (uncommitted) {
+				try {
+					working.commit();
+				} catch (IOException e) {
+					throw new RuntimeException("Could not commit changes; they were kept in " + working.getTempFile(), e);
+				}
+			} else {
+				working.abort();
+			}
+		} else {
+			try { raf.close(); } catch (Exception e) {}
+		}
+	}
+	
+	// called by each method that changes the file, once it is sure to
+	private void modified() {
+		modCount++;
+		uncommitted = true;
+	}
+	
+	@Override
+	public synchronized long getModificationCount() {
+		return modCount;
 	}
 	
 	@Override
@@ -444,6 +554,7 @@ public class MacResourceFile extends MacResourceProvider {
 		try {
 			raf.seek(resMap+22);
 			raf.writeShort(attr);
+			uncommitted = true;
 		} catch (IOException e) {}
 	}
 	
@@ -451,6 +562,7 @@ public class MacResourceFile extends MacResourceProvider {
 	public synchronized boolean add(MacResource r) throws MacResourceAlreadyExistsException {
 		try {
 			if (locate(r.type,r.id) != null) throw new MacResourceAlreadyExistsException();
+			modified();
 			//type record
 			if (locateType(r.type) == null) {
 				byte[] th = new byte[8];
@@ -612,6 +724,7 @@ public class MacResourceFile extends MacResourceProvider {
 		try {
 			int[] loc = locate(type,id);
 			if (loc != null) {
+				modified();
 				//delete data
 				if (loc[5] > 0) {
 					raf.seek(loc[5]);
@@ -640,6 +753,7 @@ public class MacResourceFile extends MacResourceProvider {
 		try {
 			int[] loc = locate(type,name);
 			if (loc != null) {
+				modified();
 				raf.seek(loc[3]);
 				short id = raf.readShort();
 				//delete data
@@ -698,6 +812,7 @@ public class MacResourceFile extends MacResourceProvider {
 				)) {
 					throw new MacResourceAlreadyExistsException();
 				} else {
+					modified();
 					if (type != r.type) {
 						//the hard part
 						//type record
@@ -780,6 +895,7 @@ public class MacResourceFile extends MacResourceProvider {
 				)) {
 					throw new MacResourceAlreadyExistsException();
 				} else {
+					modified();
 					raf.seek(loc[3]);
 					short id = raf.readShort();
 					if (type != r.type) {
@@ -854,6 +970,7 @@ public class MacResourceFile extends MacResourceProvider {
 		try {
 			int[] loc = locate(type,id);
 			if (loc != null) {
+				modified();
 				//delete data
 				if (loc[5] > 0) {
 					raf.seek(loc[5]);
@@ -876,6 +993,7 @@ public class MacResourceFile extends MacResourceProvider {
 		try {
 			int[] loc = locate(type,name);
 			if (loc != null) {
+				modified();
 				raf.seek(loc[3]);
 				short id = raf.readShort();
 				//delete data
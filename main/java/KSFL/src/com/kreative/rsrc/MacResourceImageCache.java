@@ -0,0 +1,262 @@
+/*
+ * Copyright &copy; 2009-2011 Rebecca G. Bettencourt / Kreative Software
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License
+ * Version 1.1 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * <a href="http://www.mozilla.org/MPL/">http://www.mozilla.org/MPL/</a>
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * <p>
+ * Alternatively, the contents of this file may be used under the terms
+ * of the GNU Lesser General Public License (the "LGPL License"), in which
+ * case the provisions of LGPL License are applicable instead of those
+ * above. If you wish to allow use of your version of this file only
+ * under the terms of the LGPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the LGPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the LGPL License.
+ * @since KSFL 1.2
+ * @author Rebecca G. Bettencourt, Kreative Software
+ */
+
+package com.kreative.rsrc;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.*;
+
+/**
+ * The <code>MacResourceImageCache</code> class is a cache of images decoded from
+ * resources, used by <code>PictureResource.toImage()</code>, <code>IconResource.getImage()</code>,
+ * and <code>ColorIconResource.getComposite()</code> when a default cache has been
+ * installed with <code>setDefaultCache</code>. There is no default cache unless one is set.<p>
+ * Images are keyed by resource type, ID, a variant number chosen by the caller,
+ * and the resource data itself, so changing a resource's data is enough to
+ * make the cache miss. The cache holds strong references to the most recently used
+ * images up to a maximum total number of pixel bytes; images evicted from that set
+ * are kept through soft references and may still be returned until the garbage
+ * collector clears them.<p>
+ * Cached images are shared between callers and must not be modified.
+ * @since KSFL 1.2
+ * @author Rebecca G. Bettencourt, Kreative Software
+ */
+public class MacResourceImageCache {
+	private static MacResourceImageCache defaultCache = null;
+	
+	/**
+	 * Returns the cache used by resource classes, or null if caching is disabled.
+	 * @return the default image cache, or null.
+	 */
+	public static synchronized MacResourceImageCache getDefaultCache() {
+		return defaultCache;
+	}
+	
+	/**
+	 * Sets the cache used by resource classes. Pass null to disable caching.
+	 * @param cache the new default image cache, or null.
+	 */
+	public static synchronized void setDefaultCache(MacResourceImageCache cache) {
+		defaultCache = cache;
+	}
+	
+	/**
+	 * A key identifying a decoded image.
+	 */
+	public static final class Key {
+		private final int type;
+		private final short id;
+		private final int variant;
+		private final byte[] data;
+		private final long hash;
+		
+		/**
+		 * Creates a key for an image decoded from the specified resource data.
+		 * @param type the resource type.
+		 * @param id the resource ID.
+		 * @param variant a number distinguishing different images decoded from the same resource.
+		 * @param data the resource data.
+		 */
+		public Key(int type, short id, int variant, byte[] data) {
+			this.type = type;
+			this.id = id;
+			this.variant = variant;
+			// a copy, so the key can't change once it is in the cache
+			this.data = (data == null) ? null : data.clone();
+			this.hash = hash(data);
+		}
+		
+		private static long hash(byte[] data) {
+			// 64-bit FNV-1a
+			long h = 0xCBF29CE484222325L;
+			if (data != null) {
+				for (byte b : data) {
+					h ^= (b & 0xFF);
+					h *= 0x100000001B3L;
+				}
+			}
+			return h;
+		}
+		
+		public boolean equals(Object o) {
+			if (o instanceof Key) {
+				Key other = (Key)o;
+				return (
+						this.type == other.type &&
+						this.id == other.id &&
+						this.variant == other.variant &&
+						this.hash == other.hash &&
+						Arrays.equals(this.data, other.data)
+				);
+			} else {
+				return false;
+			}
+		}
+		
+		public int hashCode() {
+			return type ^ (id << 16) ^ variant ^ (int)hash ^ (int)(hash >>> 32);
+		}
+	}
+	
+	private static final class SoftEntry extends SoftReference<BufferedImage> {
+		private final Key key;
+		public SoftEntry(Key key, BufferedImage image, ReferenceQueue<BufferedImage> queue) {
+			super(image, queue);
+			this.key = key;
+		}
+	}
+	
+	private long maxBytes;
+	private long bytes;
+	private LinkedHashMap<Key,BufferedImage> strong;
+	private HashMap<Key,SoftEntry> soft;
+	private ReferenceQueue<BufferedImage> queue;
+	private long hits;
+	private long softHits;
+	private long misses;
+	private long evictions;
+	
+	/**
+	 * Creates a new image cache that holds strong references to
+	 * at most the specified number of bytes of pixel data.
+	 * @param maxBytes the maximum number of bytes of pixel data to hold strongly.
+	 */
+	public MacResourceImageCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+		this.bytes = 0;
+		this.strong = new LinkedHashMap<Key,BufferedImage>(16, 0.75f, true);
+		this.soft = new HashMap<Key,SoftEntry>();
+		this.queue = new ReferenceQueue<BufferedImage>();
+	}
+	
+	/**
+	 * Returns the cached image for the specified key, or null if there is none.
+	 * @param key the key of the image.
+	 * @return the cached image, or null.
+	 */
+	public synchronized BufferedImage get(Key key) {
+		expunge();
+		BufferedImage img = strong.get(key);
+		if (img != null) {
+			hits++;
+			return img;
+		}
+		SoftEntry e = soft.remove(key);
+		if (e != null && (img = e.get()) != null) {
+			softHits++;
+			promote(key, img);
+			return img;
+		}
+		misses++;
+		return null;
+	}
+	
+	/**
+	 * Adds an image to the cache, evicting the least recently used images
+	 * to soft references if the cache holds more than its maximum number of bytes.
+	 * @param key the key of the image.
+	 * @param img the image.
+	 */
+	public synchronized void put(Key key, BufferedImage img) {
+		if (img == null) return;
+		expunge();
+		soft.remove(key);
+		BufferedImage old = strong.remove(key);
+		if (old != null) bytes -= sizeOf(old);
+		promote(key, img);
+	}
+	
+	/**
+	 * Removes all images from the cache. Statistics are not reset.
+	 */
+	public synchronized void clear() {
+		strong.clear();
+		soft.clear();
+		bytes = 0;
+		while (queue.poll() != null);
+	}
+	
+	/**
+	 * Resets the hit, miss, and eviction counts to zero.
+	 */
+	public synchronized void resetStatistics() {
+		hits = softHits = misses = evictions = 0;
+	}
+	
+	public synchronized long getMaxBytes() { return maxBytes; }
+	public synchronized long getBytes() { return bytes; }
+	public synchronized int getStrongCount() { return strong.size(); }
+	public synchronized int getSoftCount() { expunge(); return soft.size(); }
+	public synchronized long getHitCount() { return hits + softHits; }
+	public synchronized long getSoftHitCount() { return softHits; }
+	public synchronized long getMissCount() { return misses; }
+	public synchronized long getEvictionCount() { return evictions; }
+	
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		trim();
+	}
+	
+	public synchronized String toString() {
+		return "MacResourceImageCache[bytes=" + bytes + "/" + maxBytes
+				+ ", strong=" + strong.size() + ", soft=" + soft.size()
+				+ ", hits=" + (hits + softHits) + " (" + softHits + " soft)"
+				+ ", misses=" + misses + ", evictions=" + evictions + "]";
+	}
+	
+	private void promote(Key key, BufferedImage img) {
+		strong.put(key, img);
+		bytes += sizeOf(img);
+		trim();
+	}
+	
+	private void trim() {
+		Iterator<Map.Entry<Key,BufferedImage>> i = strong.entrySet().iterator();
+		while (bytes > maxBytes && i.hasNext()) {
+			Map.Entry<Key,BufferedImage> e = i.next();
+			i.remove();
+			bytes -= sizeOf(e.getValue());
+			soft.put(e.getKey(), new SoftEntry(e.getKey(), e.getValue(), queue));
+			evictions++;
+		}
+	}
+	
+	private void expunge() {
+		SoftEntry e;
+		while ((e = (SoftEntry)queue.poll()) != null) {
+			if (soft.get(e.key) == e) soft.remove(e.key);
+		}
+	}
+	
+	private static long sizeOf(BufferedImage img) {
+		DataBuffer db = img.getRaster().getDataBuffer();
+		return (long)db.getSize() * db.getNumBanks() * DataBuffer.getDataTypeSize(db.getDataType()) / 8;
+	}
+}
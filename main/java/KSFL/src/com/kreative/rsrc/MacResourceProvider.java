@@ -79,6 +79,20 @@ public abstract class MacResourceProvider {
 	 */
 	public abstract void close();
 	
+	/**
+	 * Returns a number that changes every time resources are added to, removed from,
+	 * or modified in this <code>MacResourceProvider</code>. Classes such as
+	 * <code>MacResourceSearchPath</code> use this to tell when information
+	 * they have cached about this <code>MacResourceProvider</code> is out of date.
+	 * <p>
+	 * The default implementation returns -1, meaning this
+	 * <code>MacResourceProvider</code> does not keep track of modifications.
+	 * @return the modification count, or -1 if modifications are not tracked.
+	 */
+	public long getModificationCount() {
+		return -1;
+	}
+	
 	/**
 	 * Returns the attributes of the resource map as a short integer.
 	 * @return the attributes of the resource map as a short integer.
@@ -138,6 +152,103 @@ public abstract class MacResourceProvider {
 	 */
 	public abstract MacResource get(int type, String name);
 	
+	/**
+	 * Retrieves a resource from this <code>MacResourceProvider</code>
+	 * as an instance of the subclass of <code>MacResource</code> that handles its type,
+	 * as determined by <code>MacResourceTypeRegistry.getDefault()</code>.
+	 * <br><br>
+	 * This will always return a unique copy of the resource:
+	 * the copy returned by <code>get</code> is converted to the subclass,
+	 * or returned as is if it is already an instance of the subclass.
+	 * Modifying the returned object will not affect other objects
+	 * using this <code>MacResourceProvider</code>.
+	 * @param type the type of the resource to retrieve.
+	 * @param id the ID number of the resource to retrieve.
+	 * @return the requested resource, or null if it does not exist or
+	 * the constructor of the subclass throws an exception.
+	 */
+	public MacResource getTyped(int type, short id) {
+		try {
+			return MacResourceTypeRegistry.getDefault().recast(get(type, id));
+		} catch (RuntimeException e) {
+			return null;
+		}
+	}
+	/**
+	 * Retrieves a resource from this <code>MacResourceProvider</code>
+	 * as an instance of the subclass of <code>MacResource</code> that handles its type,
+	 * as determined by <code>MacResourceTypeRegistry.getDefault()</code>.
+	 * <br><br>
+	 * This will always return a unique copy of the resource:
+	 * the copy returned by <code>get</code> is converted to the subclass,
+	 * or returned as is if it is already an instance of the subclass.
+	 * Modifying the returned object will not affect other objects
+	 * using this <code>MacResourceProvider</code>.
+	 * @param type the type of the resource to retrieve.
+	 * @param name the name of the resource to retrieve.
+	 * @return the requested resource, or null if it does not exist or
+	 * the constructor of the subclass throws an exception.
+	 */
+	public MacResource getTyped(int type, String name) {
+		try {
+			return MacResourceTypeRegistry.getDefault().recast(get(type, name));
+		} catch (RuntimeException e) {
+			return null;
+		}
+	}
+	/**
+	 * Retrieves a resource from this <code>MacResourceProvider</code>
+	 * as an instance of the specified subclass of <code>MacResource</code>.
+	 * <br><br>
+	 * This will always return a unique copy of the resource:
+	 * the copy returned by <code>get</code> is converted to the subclass,
+	 * or returned as is if it is already an instance of the subclass.
+	 * Modifying the returned object will not affect other objects
+	 * using this <code>MacResourceProvider</code>.
+	 * @param type the type of the resource to retrieve.
+	 * @param id the ID number of the resource to retrieve.
+	 * @param resourceSubclass a subclass of <code>MacResource</code>.
+	 * @return the requested resource, or null if it does not exist or
+	 * <code>resourceSubclass</code> does not have the constructor
+	 * <code>MacResource(int type, short id, byte attr, String name, byte[] data)</code>
+	 * or that constructor throws an exception.
+	 */
+	public <R extends MacResource> R getTyped(int type, short id, Class<R> resourceSubclass) {
+		MacResourceTypeRegistry.Factory f = MacResourceTypeRegistry.getFactory(resourceSubclass);
+		if (f == null) return null;
+		try {
+			return resourceSubclass.cast(f.recast(get(type, id)));
+		} catch (RuntimeException e) {
+			return null;
+		}
+	}
+	/**
+	 * Retrieves a resource from this <code>MacResourceProvider</code>
+	 * as an instance of the specified subclass of <code>MacResource</code>.
+	 * <br><br>
+	 * This will always return a unique copy of the resource:
+	 * the copy returned by <code>get</code> is converted to the subclass,
+	 * or returned as is if it is already an instance of the subclass.
+	 * Modifying the returned object will not affect other objects
+	 * using this <code>MacResourceProvider</code>.
+	 * @param type the type of the resource to retrieve.
+	 * @param name the name of the resource to retrieve.
+	 * @param resourceSubclass a subclass of <code>MacResource</code>.
+	 * @return the requested resource, or null if it does not exist or
+	 * <code>resourceSubclass</code> does not have the constructor
+	 * <code>MacResource(int type, short id, byte attr, String name, byte[] data)</code>
+	 * or that constructor throws an exception.
+	 */
+	public <R extends MacResource> R getTyped(int type, String name, Class<R> resourceSubclass) {
+		MacResourceTypeRegistry.Factory f = MacResourceTypeRegistry.getFactory(resourceSubclass);
+		if (f == null) return null;
+		try {
+			return resourceSubclass.cast(f.recast(get(type, name)));
+		} catch (RuntimeException e) {
+			return null;
+		}
+	}
+	
 	/**
 	 * Retrieves the attributes of a resource from this <code>MacResourceProvider</code>.
 	 * <br><br>
@@ -27,7 +27,10 @@
 
 package com.kreative.rsrc;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.Vector;
 import java.util.Set;
 import java.util.TreeSet;
@@ -43,12 +46,22 @@ import java.util.ListIterator;
  * on the current MacResourceProvider. Methods that only read resources by name or ID
  * start by looking at the current MacResourceProvider, then keep looking at later elements
  * in the list until the resource is found or all elements have been searched.
+ * <p>
+ * If every MacResourceProvider in the search path keeps track of modifications
+ * (see <code>getModificationCount</code>), the search path keeps a merged index
+ * of which MacResourceProvider each resource is found in, so finding a resource
+ * does not require searching each MacResourceProvider in turn. The index is
+ * rebuilt whenever the search path or any of its MacResourceProviders changes.
  * @since KSFL 1.0
  * @author Rebecca G. Bettencourt, Kreative Software
  */
 public class MacResourceSearchPath extends MacResourceProvider implements List<MacResourceProvider> {
 	private Vector<MacResourceProvider> list = new Vector<MacResourceProvider>();
 	private int start = 0;
+	private Index index = null;
+	private long modCount = 0;
+	private MacResourceProvider[] seenProviders = null;
+	private long seenCount = 0;
 	
 	/**
 	 * Adds a Provider to this list, in front of the current Provider.
@@ -57,6 +70,7 @@ public class MacResourceSearchPath extends MacResourceProvider implements List<M
 	 */
 	public void pushProvider(MacResourceProvider dp) {
 		list.add(start, dp);
+		invalidateIndex();
 	}
 	
 	/**
@@ -65,7 +79,9 @@ public class MacResourceSearchPath extends MacResourceProvider implements List<M
 	 * @return the old current Provider.
 	 */
 	public MacResourceProvider popProvider() {
-		return list.remove(start);
+		MacResourceProvider dp = list.remove(start);
+		invalidateIndex();
+		return dp;
 	}
 	
 	/**
@@ -92,6 +108,7 @@ public class MacResourceSearchPath extends MacResourceProvider implements List<M
 	 */
 	public void setCurrentProvider(MacResourceProvider dp) {
 		if (contains(dp)) start = indexOf(dp);
+		invalidateIndex();
 	}
 	
 	/**
@@ -101,6 +118,7 @@ public class MacResourceSearchPath extends MacResourceProvider implements List<M
 	 */
 	public void setCurrentProvider(int index) {
 		start = index;
+		invalidateIndex();
 	}
 	
 	/**
@@ -110,6 +128,7 @@ public class MacResourceSearchPath extends MacResourceProvider implements List<M
 	 */
 	public void setCurrentProviderIndex(int index) {
 		start = index;
+		invalidateIndex();
 	}
 	
 	@Override
@@ -142,80 +161,81 @@ public class MacResourceSearchPath extends MacResourceProvider implements List<M
 		return list.get(start).add(r);
 	}
 	
+	/*
+	 * The count is this search path's own, and goes up whenever the Providers
+	 * searched, the current Provider, or the count of any Provider searched has
+	 * changed since it was last asked for, or invalidateIndex has been called.
+	 * Comparing with the list as last seen catches changes made through
+	 * iterators and sublists as well as through the methods of this class.
+	 */
 	@Override
-	public boolean contains(int type, short id) {
-		for (int i = start; i < list.size(); i++) {
-			if (list.get(i).contains(type, id)) {
-				return true;
+	public synchronized long getModificationCount() {
+		synchronized (list) {
+			MacResourceProvider[] providers = new MacResourceProvider[Math.max(0, list.size() - Math.max(0, start))];
+			long count = 0;
+			for (int i = 0; i < providers.length; i++) {
+				providers[i] = list.get(list.size() - providers.length + i);
+				long c = providers[i].getModificationCount();
+				if (c < 0) return -1;
+				count += c;
+			}
+			if (seenProviders == null || count != seenCount || !same(providers, seenProviders)) {
+				modCount++;
+				seenProviders = providers;
+				seenCount = count;
 			}
+			return modCount;
 		}
-		return false;
+	}
+	
+	private static boolean same(MacResourceProvider[] a, MacResourceProvider[] b) {
+		if (a.length != b.length) return false;
+		for (int i = 0; i < a.length; i++) {
+			if (a[i] != b[i]) return false;
+		}
+		return true;
+	}
+	
+	@Override
+	public boolean contains(int type, short id) {
+		return find(type, id) != null;
 	}
 	@Override
 	public boolean contains(int type, String name) {
-		for (int i = start; i < list.size(); i++) {
-			if (list.get(i).contains(type, name)) {
-				return true;
-			}
-		}
-		return false;
+		return find(type, name) != null;
 	}
 	
 	@Override
 	public MacResource get(int type, short id) {
-		for (int i = start; i < list.size(); i++) {
-			if (list.get(i).contains(type, id)) {
-				return list.get(i).get(type, id);
-			}
-		}
-		return null;
+		MacResourceProvider p = find(type, id);
+		return (p == null) ? null : p.get(type, id);
 	}
 	@Override
 	public MacResource get(int type, String name) {
-		for (int i = start; i < list.size(); i++) {
-			if (list.get(i).contains(type, name)) {
-				return list.get(i).get(type, name);
-			}
-		}
-		return null;
+		MacResourceProvider p = find(type, name);
+		return (p == null) ? null : p.get(type, name);
 	}
 	
 	@Override
 	public MacResource getAttributes(int type, short id) {
-		for (int i = start; i < list.size(); i++) {
-			if (list.get(i).contains(type, id)) {
-				return list.get(i).getAttributes(type, id);
-			}
-		}
-		return null;
+		MacResourceProvider p = find(type, id);
+		return (p == null) ? null : p.getAttributes(type, id);
 	}
 	@Override
 	public MacResource getAttributes(int type, String name) {
-		for (int i = start; i < list.size(); i++) {
-			if (list.get(i).contains(type, name)) {
-				return list.get(i).getAttributes(type, name);
-			}
-		}
-		return null;
+		MacResourceProvider p = find(type, name);
+		return (p == null) ? null : p.getAttributes(type, name);
 	}
 	
 	@Override
 	public byte[] getData(int type, short id) {
-		for (int i = start; i < list.size(); i++) {
-			if (list.get(i).contains(type, id)) {
-				return list.get(i).getData(type, id);
-			}
-		}
-		return null;
+		MacResourceProvider p = find(type, id);
+		return (p == null) ? null : p.getData(type, id);
 	}
 	@Override
 	public byte[] getData(int type, String name) {
-		for (int i = start; i < list.size(); i++) {
-			if (list.get(i).contains(type, name)) {
-				return list.get(i).getData(type, name);
-			}
-		}
-		return null;
+		MacResourceProvider p = find(type, name);
+		return (p == null) ? null : p.getData(type, name);
 	}
 	
 	@Override
@@ -256,31 +276,17 @@ public class MacResourceSearchPath extends MacResourceProvider implements List<M
 	
 	@Override
 	public int getTypeCount() {
-		Set<Integer> types = new TreeSet<Integer>();
-		for (int i = start; i < list.size(); i++) {
-			for (int type : list.get(i).getTypes()) {
-				types.add(type);
-			}
-		}
-		return types.size();
+		return getTypes().length;
 	}
 	@Override
 	public int getType(int index) {
-		Set<Integer> types = new TreeSet<Integer>();
-		for (int i = start; i < list.size(); i++) {
-			for (int type : list.get(i).getTypes()) {
-				types.add(type);
-			}
-		}
-		int i = 0;
-		for (Integer type : types) {
-			if (i == index) return type;
-			else i++;
-		}
-		return 0;
+		int[] types = getTypes();
+		return (index >= 0 && index < types.length) ? types[index] : 0;
 	}
 	@Override
 	public int[] getTypes() {
+		Index x = getIndex();
+		if (x != null) return x.types.clone();
 		Set<Integer> types = new TreeSet<Integer>();
 		for (int i = start; i < list.size(); i++) {
 			for (int type : list.get(i).getTypes()) {
@@ -294,31 +300,20 @@ public class MacResourceSearchPath extends MacResourceProvider implements List<M
 	
 	@Override
 	public int getResourceCount(int type) {
-		Set<Short> ids = new TreeSet<Short>();
-		for (int i = start; i < list.size(); i++) {
-			for (short id : list.get(i).getIDs(type)) {
-				ids.add(id);
-			}
-		}
-		return ids.size();
+		return getIDs(type).length;
 	}
 	@Override
 	public short getID(int type, int index) {
-		Set<Short> ids = new TreeSet<Short>();
-		for (int i = start; i < list.size(); i++) {
-			for (short id : list.get(i).getIDs(type)) {
-				ids.add(id);
-			}
-		}
-		int i = 0;
-		for (Short id : ids) {
-			if (i == index) return id;
-			else i++;
-		}
-		return 0;
+		short[] ids = getIDs(type);
+		return (index >= 0 && index < ids.length) ? ids[index] : 0;
 	}
 	@Override
 	public short[] getIDs(int type) {
+		Index x = getIndex();
+		if (x != null) {
+			short[] ids = x.ids.get(type);
+			return (ids == null) ? new short[0] : ids.clone();
+		}
 		Set<Short> ids = new TreeSet<Short>();
 		for (int i = start; i < list.size(); i++) {
 			for (short id : list.get(i).getIDs(type)) {
@@ -331,29 +326,19 @@ public class MacResourceSearchPath extends MacResourceProvider implements List<M
 	}
 	@Override
 	public String getName(int type, int index) {
-		Set<Short> ids = new TreeSet<Short>();
-		for (int i = start; i < list.size(); i++) {
-			for (short id : list.get(i).getIDs(type)) {
-				ids.add(id);
-			}
-		}
-		int i = 0;
-		for (Short id : ids) {
-			if (i == index) return getNameFromID(type, id);
-			else i++;
-		}
-		return "";
+		String[] names = getNames(type);
+		return (index >= 0 && index < names.length) ? names[index] : "";
 	}
 	@Override
 	public String[] getNames(int type) {
-		Set<Short> ids = new TreeSet<Short>();
-		for (int i = start; i < list.size(); i++) {
-			for (short id : list.get(i).getIDs(type)) {
-				ids.add(id);
-			}
+		Index x = getIndex();
+		if (x != null) {
+			String[] names = x.names.get(type);
+			return (names == null) ? new String[0] : names.clone();
 		}
-		String[] names = new String[ids.size()];
-		int i = 0; for (Short id : ids) names[i++] = getNameFromID(type, id);
+		short[] ids = getIDs(type);
+		String[] names = new String[ids.length];
+		for (int i = 0; i < ids.length; i++) names[i] = getNameFromID(type, ids[i]);
 		return names;
 	}
 	
@@ -365,22 +350,138 @@ public class MacResourceSearchPath extends MacResourceProvider implements List<M
 	
 	@Override
 	public String getNameFromID(int type, short id) {
+		MacResourceProvider p = find(type, id);
+		return (p == null) ? "" : p.getNameFromID(type, id);
+	}
+	
+	@Override
+	public short getIDFromName(int type, String name) {
+		MacResourceProvider p = find(type, name);
+		return (p == null) ? 0 : p.getIDFromName(type, name);
+	}
+	
+	/**
+	 * Discards the merged index of the resources in this search path.
+	 * The index is rebuilt the next time it is needed.
+	 * <p>
+	 * This is done automatically when the current Provider changes,
+	 * when Providers are added to or removed from this list,
+	 * or when the modification count of any Provider changes,
+	 * so it is only necessary when a Provider has been modified
+	 * in a way that does not change its modification count.
+	 */
+	public synchronized void invalidateIndex() {
+		index = null;
+		seenProviders = null;
+	}
+	
+	private MacResourceProvider find(int type, short id) {
+		Index x = getIndex();
+		if (x != null) return x.byID.get(Index.key(type, id));
 		for (int i = start; i < list.size(); i++) {
 			if (list.get(i).contains(type, id)) {
-				return list.get(i).getNameFromID(type, id);
+				return list.get(i);
 			}
 		}
-		return "";
+		return null;
 	}
 	
-	@Override
-	public short getIDFromName(int type, String name) {
+	private MacResourceProvider find(int type, String name) {
+		Index x = (name == null || name.length() == 0) ? null : getIndex();
+		if (x != null) {
+			Map<String,MacResourceProvider> byName = x.byName.get(type);
+			return (byName == null) ? null : byName.get(name);
+		}
 		for (int i = start; i < list.size(); i++) {
 			if (list.get(i).contains(type, name)) {
-				return list.get(i).getIDFromName(type, name);
+				return list.get(i);
+			}
+		}
+		return null;
+	}
+	
+	private synchronized Index getIndex() {
+		synchronized (list) {
+			if (index != null && index.isCurrent(list, start)) return index;
+			index = null;
+			if (start < 0) return null;
+			MacResourceProvider[] providers = new MacResourceProvider[Math.max(0, list.size() - start)];
+			long[] modCounts = new long[providers.length];
+			for (int i = 0; i < providers.length; i++) {
+				providers[i] = list.get(start + i);
+				modCounts[i] = providers[i].getModificationCount();
+				if (modCounts[i] < 0) return null;
+			}
+			index = new Index(start, providers, modCounts);
+			return index;
+		}
+	}
+	
+	private static class Index {
+		private final int start;
+		private final MacResourceProvider[] providers;
+		private final long[] modCounts;
+		private final Map<Long,MacResourceProvider> byID = new HashMap<Long,MacResourceProvider>();
+		private final Map<Integer,Map<String,MacResourceProvider>> byName = new HashMap<Integer,Map<String,MacResourceProvider>>();
+		private final Map<Integer,short[]> ids = new HashMap<Integer,short[]>();
+		private final Map<Integer,String[]> names = new HashMap<Integer,String[]>();
+		private final int[] types;
+		
+		private static long key(int type, short id) {
+			return ((long)type << 16) | (id & 0xFFFFL);
+		}
+		
+		public Index(int start, MacResourceProvider[] providers, long[] modCounts) {
+			this.start = start;
+			this.providers = providers;
+			this.modCounts = modCounts;
+			Map<Integer,Map<Short,String>> entries = new TreeMap<Integer,Map<Short,String>>();
+			for (MacResourceProvider p : providers) {
+				for (int type : p.getTypes()) {
+					Map<Short,String> e = entries.get(type);
+					if (e == null) entries.put(type, e = new TreeMap<Short,String>());
+					Map<String,MacResourceProvider> n = byName.get(type);
+					if (n == null) byName.put(type, n = new HashMap<String,MacResourceProvider>());
+					short[] pids = p.getIDs(type);
+					String[] pnames = p.getNames(type);
+					for (int i = 0; i < pids.length; i++) {
+						String name = (i < pnames.length && pnames[i] != null) ? pnames[i] : "";
+						Long k = key(type, pids[i]);
+						if (!byID.containsKey(k)) {
+							byID.put(k, p);
+							e.put(pids[i], name);
+						}
+						if (name.length() > 0 && !n.containsKey(name)) {
+							n.put(name, p);
+						}
+					}
+				}
+			}
+			types = new int[entries.size()];
+			int t = 0;
+			for (Map.Entry<Integer,Map<Short,String>> te : entries.entrySet()) {
+				types[t++] = te.getKey();
+				short[] tids = new short[te.getValue().size()];
+				String[] tnames = new String[tids.length];
+				int i = 0;
+				for (Map.Entry<Short,String> ie : te.getValue().entrySet()) {
+					tids[i] = ie.getKey();
+					tnames[i] = ie.getValue();
+					i++;
+				}
+				ids.put(te.getKey(), tids);
+				names.put(te.getKey(), tnames);
+			}
+		}
+		
+		public boolean isCurrent(List<MacResourceProvider> list, int start) {
+			if (start != this.start || list.size() - start != providers.length) return false;
+			for (int i = 0; i < providers.length; i++) {
+				if (list.get(start + i) != providers[i]) return false;
+				if (providers[i].getModificationCount() != modCounts[i]) return false;
 			}
+			return true;
 		}
-		return 0;
 	}
 	
 	public boolean add(MacResourceProvider o) {
@@ -0,0 +1,304 @@
+/*
+ * Copyright &copy; 2009-2011 Rebecca G. Bettencourt / Kreative Software
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License
+ * Version 1.1 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * <a href="http://www.mozilla.org/MPL/">http://www.mozilla.org/MPL/</a>
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * <p>
+ * Alternatively, the contents of this file may be used under the terms
+ * of the GNU Lesser General Public License (the "LGPL License"), in which
+ * case the provisions of LGPL License are applicable instead of those
+ * above. If you wish to allow use of your version of this file only
+ * under the terms of the LGPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the LGPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the LGPL License.
+ * @since KSFL 1.2
+ * @author Rebecca G. Bettencourt, Kreative Software
+ */
+
+package com.kreative.rsrc;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import com.kreative.ksfl.KSFLUtilities;
+
+/**
+ * The <code>MacResourceTypeRegistry</code> class maps resource types to the
+ * subclasses of <code>MacResource</code> that handle them. The constructor of
+ * each registered subclass is resolved once, when the subclass is registered,
+ * so creating a resource of the right subclass does not involve reflection.
+ * Which subclass handles a resource type is determined by the
+ * <code>isMyType</code> method of each registered subclass, in the order
+ * the subclasses were registered, and remembered for each resource type.
+ * @since KSFL 1.2
+ * @author Rebecca G. Bettencourt, Kreative Software
+ */
+public class MacResourceTypeRegistry {
+	private static final MethodType CONSTRUCTOR_TYPE = MethodType.methodType(void.class, int.class, short.class, byte.class, String.class, byte[].class);
+	private static final MethodType FACTORY_TYPE = MethodType.methodType(MacResource.class, int.class, short.class, byte.class, String.class, byte[].class);
+	private static final MethodType PREDICATE_TYPE = MethodType.methodType(boolean.class, int.class);
+	
+	/**
+	 * A pre-resolved constructor for a subclass of <code>MacResource</code>.
+	 */
+	public static final class Factory {
+		private final Class<? extends MacResource> resourceClass;
+		private final MethodHandle constructor;
+		
+		private Factory(Class<? extends MacResource> resourceClass, MethodHandle constructor) {
+			this.resourceClass = resourceClass;
+			this.constructor = constructor;
+		}
+		
+		/**
+		 * Returns the subclass of <code>MacResource</code> this factory creates.
+		 * @return the subclass of <code>MacResource</code> this factory creates.
+		 */
+		public Class<? extends MacResource> getResourceClass() {
+			return resourceClass;
+		}
+		
+		/**
+		 * Creates a new resource by calling the <code>MacResource(int type, short id,
+		 * byte attr, String name, byte[] data)</code> constructor of the subclass.
+		 * @param type The resource type as an integer.
+		 * @param id The resource ID.
+		 * @param attr The resource attributes as a byte.
+		 * @param name The resource name.
+		 * @param data The resource data.
+		 * @return a new resource, an instance of the subclass this factory creates.
+		 */
+		public MacResource create(int type, short id, byte attr, String name, byte[] data) {
+			try {
+				return (MacResource)constructor.invokeExact(type, id, attr, name, data);
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Error e) {
+				throw e;
+			} catch (Throwable t) {
+				throw new RuntimeException(t);
+			}
+		}
+		
+		/**
+		 * Returns the specified resource as an instance of the subclass this factory creates.
+		 * If the resource is already an instance of that subclass, it is returned as is.
+		 * Otherwise, a shallow copy of the resource is created as an instance of that subclass.
+		 * @param r a resource.
+		 * @return the resource as an instance of the subclass this factory creates.
+		 */
+		public MacResource recast(MacResource r) {
+			if (r == null || resourceClass.isInstance(r)) return r;
+			return create(r.type, r.id, r.getAttributes(), r.name, r.data);
+		}
+		
+		/**
+		 * Creates a deep copy of the specified resource
+		 * as an instance of the subclass this factory creates.
+		 * @param r a resource.
+		 * @return a deep copy of the resource as an instance of the subclass this factory creates.
+		 */
+		public MacResource copy(MacResource r) {
+			if (r == null) return null;
+			return create(r.type, r.id, r.getAttributes(), new String(r.name), KSFLUtilities.copy(r.data));
+		}
+	}
+	
+	private static final ClassValue<Factory> factories = new ClassValue<Factory>() {
+		protected Factory computeValue(Class<?> cls) {
+			if (!MacResource.class.isAssignableFrom(cls)) return null;
+			try {
+				MethodHandle ctor = MethodHandles.publicLookup().findConstructor(cls, CONSTRUCTOR_TYPE);
+				return new Factory(cls.asSubclass(MacResource.class), ctor.asType(FACTORY_TYPE));
+			} catch (NoSuchMethodException e) {
+				return null;
+			} catch (IllegalAccessException e) {
+				return null;
+			}
+		}
+	};
+	
+	/**
+	 * Returns the factory for the specified subclass of <code>MacResource</code>.
+	 * The constructor of the subclass is resolved only the first time this is called
+	 * for that subclass. If the subclass does not have a public <code>MacResource(int type,
+	 * short id, byte attr, String name, byte[] data)</code> constructor, this returns null.
+	 * @param resourceClass a subclass of <code>MacResource</code>.
+	 * @return the factory for that subclass, or null if it cannot be created.
+	 */
+	public static Factory getFactory(Class<? extends MacResource> resourceClass) {
+		return factories.get(resourceClass);
+	}
+	
+	private static MacResourceTypeRegistry defaultRegistry = null;
+	
+	/**
+	 * Returns the registry of all the subclasses of <code>MacResource</code>
+	 * in the <code>com.kreative.rsrc</code> package.
+	 * @return the default registry.
+	 */
+	public static synchronized MacResourceTypeRegistry getDefault() {
+		if (defaultRegistry == null) {
+			MacResourceTypeRegistry r = new MacResourceTypeRegistry();
+			r.register(ColorCursorResource.class);
+			r.register(ColorIconResource.class);
+			r.register(ColorLookUpTableResource.class);
+			r.register(ColorPaletteResource.class);
+			r.register(CursorResource.class);
+			r.register(FontResource.class);
+			r.register(IconResource.class);
+			r.register(IconListResource.class);
+			r.register(IconSuiteResource.class);
+			r.register(MenuResource.class);
+			r.register(PatternResource.class);
+			r.register(PatternListResource.class);
+			r.register(PictureResource.class);
+			r.register(PixelPatternResource.class);
+			r.register(PixelPatternListResource.class);
+			r.register(RegionResource.class);
+			r.register(ScaleableFontResource.class);
+			r.register(SoundResource.class);
+			r.register(StringResource.class);
+			r.register(StringListResource.class);
+			r.register(TextResource.class);
+			r.register(UnicodeTextResource.class);
+			r.register(WideStringResource.class);
+			defaultRegistry = r;
+		}
+		return defaultRegistry;
+	}
+	
+	private final Factory fallback = getFactory(MacResource.class);
+	private final List<MethodHandle> predicates = new ArrayList<MethodHandle>();
+	private final List<Factory> candidates = new ArrayList<Factory>();
+	private final Map<Integer,Factory> explicit = new HashMap<Integer,Factory>();
+	private final Map<Integer,Factory> resolved = new ConcurrentHashMap<Integer,Factory>();
+	
+	/**
+	 * Constructs a new, empty registry. Until subclasses are registered,
+	 * all resource types are handled by <code>MacResource</code> itself.
+	 */
+	public MacResourceTypeRegistry() {}
+	
+	/**
+	 * Registers a subclass of <code>MacResource</code> for all the resource types
+	 * its <code>isMyType</code> method accepts. Subclasses registered earlier
+	 * take precedence over subclasses registered later.
+	 * @param resourceClass a subclass of <code>MacResource</code>.
+	 * @throws IllegalArgumentException if the subclass does not have a public
+	 * <code>isMyType(int)</code> method or a public <code>MacResource(int type,
+	 * short id, byte attr, String name, byte[] data)</code> constructor.
+	 */
+	public synchronized void register(Class<? extends MacResource> resourceClass) {
+		Factory f = getFactory(resourceClass);
+		if (f == null) throw new IllegalArgumentException(resourceClass.getName() + " has no suitable constructor");
+		MethodHandle p;
+		try {
+			p = MethodHandles.publicLookup().findStatic(resourceClass, "isMyType", PREDICATE_TYPE);
+		} catch (NoSuchMethodException e) {
+			throw new IllegalArgumentException(resourceClass.getName() + " has no isMyType method");
+		} catch (IllegalAccessException e) {
+			throw new IllegalArgumentException(resourceClass.getName() + " has no isMyType method");
+		}
+		predicates.add(p);
+		candidates.add(f);
+		resolved.clear();
+	}
+	
+	/**
+	 * Registers a subclass of <code>MacResource</code> for the specified resource type,
+	 * regardless of its <code>isMyType</code> method. A subclass registered this way
+	 * takes precedence over subclasses registered for all the types they accept.
+	 * @param type the resource type.
+	 * @param resourceClass a subclass of <code>MacResource</code>.
+	 * @throws IllegalArgumentException if the subclass does not have a public
+	 * <code>MacResource(int type, short id, byte attr, String name, byte[] data)</code> constructor.
+	 */
+	public synchronized void register(int type, Class<? extends MacResource> resourceClass) {
+		Factory f = getFactory(resourceClass);
+		if (f == null) throw new IllegalArgumentException(resourceClass.getName() + " has no suitable constructor");
+		explicit.put(type, f);
+		resolved.clear();
+	}
+	
+	/**
+	 * Returns the factory for the subclass of <code>MacResource</code>
+	 * that handles the specified resource type. If no registered subclass
+	 * handles the resource type, this returns the factory for <code>MacResource</code>.
+	 * @param type the resource type.
+	 * @return the factory for the subclass that handles that resource type.
+	 */
+	public Factory getFactory(int type) {
+		Factory f = resolved.get(type);
+		if (f == null) {
+			f = resolve(type);
+			resolved.put(type, f);
+		}
+		return f;
+	}
+	
+	private synchronized Factory resolve(int type) {
+		Factory f = explicit.get(type);
+		if (f != null) return f;
+		for (int i = 0; i < predicates.size(); i++) {
+			boolean mine;
+			try {
+				mine = (boolean)predicates.get(i).invokeExact(type);
+			} catch (Throwable t) {
+				mine = false;
+			}
+			if (mine) return candidates.get(i);
+		}
+		return fallback;
+	}
+	
+	/**
+	 * Returns the subclass of <code>MacResource</code> that handles the specified resource type.
+	 * @param type the resource type.
+	 * @return the subclass of <code>MacResource</code> that handles that resource type.
+	 */
+	public Class<? extends MacResource> getResourceClass(int type) {
+		return getFactory(type).getResourceClass();
+	}
+	
+	/**
+	 * Creates a new resource as an instance of the subclass of <code>MacResource</code>
+	 * that handles the specified resource type.
+	 * @param type The resource type as an integer.
+	 * @param id The resource ID.
+	 * @param attr The resource attributes as a byte.
+	 * @param name The resource name.
+	 * @param data The resource data.
+	 * @return a new resource of the appropriate subclass.
+	 */
+	public MacResource create(int type, short id, byte attr, String name, byte[] data) {
+		return getFactory(type).create(type, id, attr, name, data);
+	}
+	
+	/**
+	 * Returns the specified resource as an instance of the subclass of <code>MacResource</code>
+	 * that handles its resource type. If the resource is already an instance of that subclass,
+	 * it is returned as is. Otherwise, a shallow copy of the resource is created.
+	 * @param r a resource.
+	 * @return the resource as an instance of the appropriate subclass.
+	 */
+	public MacResource recast(MacResource r) {
+		if (r == null) return null;
+		return getFactory(r.type).recast(r);
+	}
+}
@@ -406,13 +406,13 @@ public class MenuResource extends MacResource {
 		
 		private Image getIcon(MacResourceProvider rp) {
 			if (iconID == 0 || rp == null) return null;
-			ColorIconResource ci = rp.get(ColorIconResource.RESOURCE_TYPE, iconID).shallowRecast(ColorIconResource.class);
+			ColorIconResource ci = rp.getTyped(ColorIconResource.RESOURCE_TYPE, iconID, ColorIconResource.class);
 			if (ci != null) {
 				try {
 					return ci.getImage();
 				} catch (Exception e) {}
 			}
-			IconResource i = rp.get(IconResource.RESOURCE_TYPE, iconID).shallowRecast(IconResource.class);
+			IconResource i = rp.getTyped(IconResource.RESOURCE_TYPE, iconID, IconResource.class);
 			if (i != null) {
 				try {
 					return i.getImage();
@@ -440,7 +440,7 @@ public class MenuResource extends MacResource {
 		
 		private Image getSmallIcon(MacResourceProvider rp) {
 			if (iconID == 0 || rp == null) return null;
-			IconListResource i = rp.get(IconListResource.RESOURCE_TYPE, iconID).shallowRecast(IconListResource.class);
+			IconListResource i = rp.getTyped(IconListResource.RESOURCE_TYPE, iconID, IconListResource.class);
 			if (i != null) {
 				try {
 					return i.getIcon(0).getImage();
@@ -525,7 +525,7 @@ public class MenuResource extends MacResource {
 		
 		public java.awt.MenuItem makeMenuItem(MacResourceProvider rp) {
 			if (commandChar == COMMANDCHAR_SUBMENU) {
-				Menu m = rp.get(MenuResource.RESOURCE_TYPE, submenuID).shallowRecast(MenuResource.class).makeMenu(rp);
+				Menu m = rp.getTyped(MenuResource.RESOURCE_TYPE, submenuID, MenuResource.class).makeMenu(rp);
 				m.setEnabled(enabled);
 				m.setLabel(menuItemName);
 				m.setFont(new Font(getAttributes(m.getFont())));
@@ -552,7 +552,7 @@ public class MenuResource extends MacResource {
 		
 		public JMenuItem makeJMenuItem(MacResourceProvider rp) {
 			if (commandChar == COMMANDCHAR_SUBMENU) {
-				JMenu m = rp.get(MenuResource.RESOURCE_TYPE, submenuID).shallowRecast(MenuResource.class).makeJMenu(rp);
+				JMenu m = rp.getTyped(MenuResource.RESOURCE_TYPE, submenuID, MenuResource.class).makeJMenu(rp);
 				m.setEnabled(enabled);
 				m.setText(menuItemName);
 				if (iconID != 0) {
@@ -0,0 +1,322 @@
+/*
+ * Copyright &copy; 2009-2011 Rebecca G. Bettencourt / Kreative Software
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License
+ * Version 1.1 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * <a href="http://www.mozilla.org/MPL/">http://www.mozilla.org/MPL/</a>
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * <p>
+ * Alternatively, the contents of this file may be used under the terms
+ * of the GNU Lesser General Public License (the "LGPL License"), in which
+ * case the provisions of LGPL License are applicable instead of those
+ * above. If you wish to allow use of your version of this file only
+ * under the terms of the LGPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the LGPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the LGPL License.
+ * @since KSFL 1.2
+ * @author Rebecca G. Bettencourt, Kreative Software
+ */
+
+package com.kreative.rsrc;
+
+import java.util.Arrays;
+
+/**
+ * The <code>NearestColorIndex</code> class maps arbitrary RGB colors to the nearest
+ * color in a fixed table of colors, such as a <code>clut</code> or <code>pltt</code>,
+ * by squared Euclidean distance in RGB space. Lookups go through a k-d tree built once
+ * from the table, or optionally through a 32768-entry table indexed by the top five bits
+ * of each component, which is faster but only finds the nearest color to one color in
+ * each RGB555 cell: the one whose components are the five-bit values with their top three
+ * bits repeated below them, so that 0 maps to 0 and 31 maps to 255. Alpha is ignored.
+ * <p>
+ * When two colors in the table are equally near, the one that comes first wins,
+ * just as with a linear search.
+ * @since KSFL 1.2
+ * @author Rebecca G. Bettencourt, Kreative Software
+ */
+public class NearestColorIndex {
+	private final int[] colors;
+	private final int[] indices;
+	// k-d tree, stored implicitly: the node for the range [lo,hi) is at (lo+hi)/2,
+	// its children are the ranges [lo,mid) and [mid+1,hi), and its split axis is axis[mid].
+	private final int[] tree;
+	private final int[] tr, tg, tb;
+	private final byte[] axis;
+	private short[] rgb555 = null;
+	
+	/**
+	 * Creates a nearest color index that maps each color to its position in the array.
+	 * @param colors the colors as RGB values; the alpha channel is ignored.
+	 */
+	public NearestColorIndex(int[] colors) {
+		this(colors, null);
+	}
+	
+	/**
+	 * Creates a nearest color index that maps each color to the corresponding value
+	 * in the specified array of indices, such as pixel values.
+	 * @param colors the colors as RGB values; the alpha channel is ignored.
+	 * @param indices the value to map each color to, or null to use its position in the array.
+	 */
+	public NearestColorIndex(int[] colors, int[] indices) {
+		int n = colors.length;
+		this.colors = colors.clone();
+		if (indices == null) {
+			this.indices = new int[n];
+			for (int i = 0; i < n; i++) this.indices[i] = i;
+		} else {
+			if (indices.length < n) throw new IllegalArgumentException("fewer indices than colors");
+			this.indices = indices.clone();
+		}
+		this.tree = new int[n];
+		this.tr = new int[n];
+		this.tg = new int[n];
+		this.tb = new int[n];
+		this.axis = new byte[n];
+		for (int i = 0; i < n; i++) tree[i] = i;
+		build(0, n);
+		for (int i = 0; i < n; i++) {
+			int c = this.colors[tree[i]];
+			tr[i] = (c >> 16) & 0xFF;
+			tg[i] = (c >> 8) & 0xFF;
+			tb[i] = c & 0xFF;
+		}
+	}
+	
+	private void build(int lo, int hi) {
+		if (hi - lo < 1) return;
+		// Split on the axis with the greatest spread.
+		int[] min = { 255, 255, 255 }, max = { 0, 0, 0 };
+		for (int i = lo; i < hi; i++) {
+			for (int a = 0; a < 3; a++) {
+				int v = component(colors[tree[i]], a);
+				if (v < min[a]) min[a] = v;
+				if (v > max[a]) max[a] = v;
+			}
+		}
+		int a = 0;
+		if (max[1]-min[1] > max[a]-min[a]) a = 1;
+		if (max[2]-min[2] > max[a]-min[a]) a = 2;
+		// Sort the range on that axis, keeping table order among equal values,
+		// then put the node at the middle.
+		for (int i = lo+1; i < hi; i++) {
+			int t = tree[i], v = component(colors[t], a), j = i;
+			while (j > lo && compare(tree[j-1], t, v, a) > 0) { tree[j] = tree[j-1]; j--; }
+			tree[j] = t;
+		}
+		int mid = (lo + hi) >>> 1;
+		axis[mid] = (byte)a;
+		build(lo, mid);
+		build(mid+1, hi);
+	}
+	
+	private int compare(int i, int j, int jv, int a) {
+		int iv = component(colors[i], a);
+		return (iv != jv) ? (iv - jv) : (i - j);
+	}
+	
+	private static int component(int rgb, int a) {
+		return (rgb >> (16 - 8*a)) & 0xFF;
+	}
+	
+	/**
+	 * Returns the number of colors in the table.
+	 * @return the number of colors in the table.
+	 */
+	public int getColorCount() {
+		return colors.length;
+	}
+	
+	/**
+	 * Returns a color in the table.
+	 * @param i the position of the color in the table.
+	 * @return the color as an RGB value.
+	 */
+	public int getColor(int i) {
+		return colors[i];
+	}
+	
+	/**
+	 * Returns the value a color in the table is mapped to.
+	 * @param i the position of the color in the table.
+	 * @return the value that color is mapped to.
+	 */
+	public int getIndex(int i) {
+		return indices[i];
+	}
+	
+	/**
+	 * Turns the RGB555 direct lookup table on or off. Building the table
+	 * takes 32768 k-d tree searches, so this only pays for itself on
+	 * large images. While it is on, <code>map</code> and <code>dither</code>
+	 * use it instead of the k-d tree.
+	 * @param use true to build and use the RGB555 table, false to discard it.
+	 */
+	public synchronized void setUseRGB555Table(boolean use) {
+		if (!use) {
+			rgb555 = null;
+		} else if (rgb555 == null && colors.length > 0) {
+			short[] t = new short[32768];
+			for (int i = 0; i < 32768; i++) {
+				int r = (i >> 10) & 0x1F, g = (i >> 5) & 0x1F, b = i & 0x1F;
+				r = (r << 3) | (r >> 2); g = (g << 3) | (g >> 2); b = (b << 3) | (b >> 2);
+				t[i] = (short)search(r, g, b);
+			}
+			rgb555 = t;
+		}
+	}
+	
+	/**
+	 * Returns true if the RGB555 direct lookup table is in use.
+	 * @return true if the RGB555 direct lookup table is in use.
+	 */
+	public boolean getUseRGB555Table() {
+		return rgb555 != null;
+	}
+	
+	/**
+	 * Finds the position in the table of the color nearest the specified color,
+	 * always using the k-d tree. If the table is empty, this returns -1.
+	 * @param rgb the color as an RGB value; the alpha channel is ignored.
+	 * @return the position of the nearest color in the table.
+	 */
+	public int findNearest(int rgb) {
+		if (colors.length == 0) return -1;
+		return search((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF);
+	}
+	
+	/**
+	 * Returns the value mapped to the color nearest the specified color.
+	 * If the table is empty, this returns -1.
+	 * @param rgb the color as an RGB value; the alpha channel is ignored.
+	 * @return the value mapped to the nearest color.
+	 */
+	public int map(int rgb) {
+		if (colors.length == 0) return -1;
+		short[] t = rgb555;
+		if (t != null) return indices[t[((rgb >> 9) & 0x7C00) | ((rgb >> 6) & 0x3E0) | ((rgb >> 3) & 0x1F)]];
+		return indices[search((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF)];
+	}
+	
+	/**
+	 * Maps an array of colors to the values mapped to their nearest colors,
+	 * truncated to bytes.
+	 * @param argb the colors as ARGB values; the alpha channel is ignored.
+	 * @return the mapped values.
+	 */
+	public byte[] map(int[] argb) {
+		byte[] out = new byte[argb.length];
+		map(argb, 0, out, 0, argb.length);
+		return out;
+	}
+	
+	/**
+	 * Maps a range of an array of colors to the values mapped to their nearest colors,
+	 * truncated to bytes. Consecutive equal colors are only looked up once.
+	 * @param argb the colors as ARGB values; the alpha channel is ignored.
+	 * @param argbOffset the position of the first color in the array.
+	 * @param out the array to write the mapped values to.
+	 * @param outOffset the position in that array to write the first value.
+	 * @param length the number of colors to map.
+	 */
+	public void map(int[] argb, int argbOffset, byte[] out, int outOffset, int length) {
+		if (length <= 0) return;
+		if (colors.length == 0) throw new IllegalStateException("empty color table");
+		int last = ~argb[argbOffset];
+		byte lastIndex = 0;
+		for (int i = 0; i < length; i++) {
+			int c = argb[argbOffset + i] & 0xFFFFFF;
+			if (c != last) {
+				last = c;
+				lastIndex = (byte)map(c);
+			}
+			out[outOffset + i] = lastIndex;
+		}
+	}
+	
+	/**
+	 * Maps an image to the values mapped to the nearest colors using
+	 * Floyd-Steinberg error diffusion, truncated to bytes.
+	 * @param argb the pixels of the image as ARGB values; the alpha channel is ignored.
+	 * @param width the width of the image.
+	 * @param height the height of the image.
+	 * @return the mapped values.
+	 */
+	public byte[] dither(int[] argb, int width, int height) {
+		if (colors.length == 0) throw new IllegalStateException("empty color table");
+		byte[] out = new byte[width*height];
+		// Errors are in sixteenths, for the current and next rows, with a column of padding on each side.
+		int[] curr = new int[(width+2)*3];
+		int[] next = new int[(width+2)*3];
+		for (int y = 0, p = 0; y < height; y++) {
+			for (int x = 0; x < width; x++, p++) {
+				int c = argb[p];
+				int e = (x+1)*3;
+				int r = clamp(((c >> 16) & 0xFF) + ((curr[e+0] + 8) >> 4));
+				int g = clamp(((c >> 8) & 0xFF) + ((curr[e+1] + 8) >> 4));
+				int b = clamp((c & 0xFF) + ((curr[e+2] + 8) >> 4));
+				int i = nearest(r, g, b);
+				out[p] = (byte)indices[i];
+				int m = colors[i];
+				int er = r - ((m >> 16) & 0xFF);
+				int eg = g - ((m >> 8) & 0xFF);
+				int eb = b - (m & 0xFF);
+				curr[e+3] += er*7; curr[e+4] += eg*7; curr[e+5] += eb*7;
+				next[e-3] += er*3; next[e-2] += eg*3; next[e-1] += eb*3;
+				next[e+0] += er*5; next[e+1] += eg*5; next[e+2] += eb*5;
+				next[e+3] += er;   next[e+4] += eg;   next[e+5] += eb;
+			}
+			int[] t = curr; curr = next; next = t;
+			Arrays.fill(next, 0);
+		}
+		return out;
+	}
+	
+	private static int clamp(int v) {
+		return (v < 0) ? 0 : (v > 255) ? 255 : v;
+	}
+	
+	private int nearest(int r, int g, int b) {
+		short[] t = rgb555;
+		if (t != null) return t[((r << 7) & 0x7C00) | ((g << 2) & 0x3E0) | (b >> 3)];
+		return search(r, g, b);
+	}
+	
+	private int search(int r, int g, int b) {
+		long best = search(0, colors.length, r, g, b, Long.MAX_VALUE);
+		return (int)(best & 0xFFFFFFFFL);
+	}
+	
+	// Returns the best squared distance in the high 32 bits and the
+	// table position in the low 32 bits, so that ties go to the lower position.
+	private long search(int lo, int hi, int r, int g, int b, long best) {
+		if (hi - lo < 1) return best;
+		int mid = (lo + hi) >>> 1;
+		int dr = r - tr[mid], dg = g - tg[mid], db = b - tb[mid];
+		long d = ((long)(dr*dr + dg*dg + db*db) << 32) | tree[mid];
+		if (d < best) best = d;
+		int diff;
+		switch (axis[mid]) {
+		case 0: diff = dr; break;
+		case 1: diff = dg; break;
+		default: diff = db; break;
+		}
+		if (diff < 0) {
+			best = search(lo, mid, r, g, b, best);
+			if ((long)diff*diff <= (best >>> 32)) best = search(mid+1, hi, r, g, b, best);
+		} else {
+			best = search(mid+1, hi, r, g, b, best);
+			if ((long)diff*diff <= (best >>> 32)) best = search(lo, mid, r, g, b, best);
+		}
+		return best;
+	}
+}
@@ -31,6 +31,7 @@ import java.awt.*;
 import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
 import java.io.*;
+import java.util.concurrent.ForkJoinPool;
 import com.kreative.ksfl.*;
 import com.kreative.rsrc.pict.*;
 
@@ -195,9 +196,19 @@ public class PictureResource extends MacResource {
 	/**
 	 * Converts this picture resource to an AWT image and returns the converted image.
 	 * If the picture data is improperly formed, returns null.
+	 * If a default <code>MacResourceImageCache</code> is set, the image is cached.
 	 * @return the converted image.
 	 */
 	public Image toImage() {
+		MacResourceImageCache cache = MacResourceImageCache.getDefaultCache();
+		if (cache == null) return createImage();
+		MacResourceImageCache.Key key = new MacResourceImageCache.Key(type, id, 0, data);
+		BufferedImage img = cache.get(key);
+		if (img == null) cache.put(key, img = createImage());
+		return img;
+	}
+	
+	private BufferedImage createImage() {
 		try {
 			PICTInputStream in = new PICTInputStream(new ByteArrayInputStream(data));
 			in.readUnsignedShort();
@@ -218,4 +229,23 @@ public class PictureResource extends MacResource {
 			return null;
 		}
 	}
+	
+	/**
+	 * Converts this picture resource to an AWT image, rendering it in horizontal bands
+	 * in parallel on the specified fork/join pool, and returns the converted image.
+	 * The result is identical to that of <code>toImage()</code>; this is only worthwhile
+	 * for very large pictures. If the picture data is improperly formed, returns null.
+	 * @param pool the fork/join pool to render on.
+	 * @return the converted image.
+	 */
+	public Image toImage(ForkJoinPool pool) {
+		try {
+			PICTInputStream in = new PICTInputStream(new ByteArrayInputStream(data));
+			PICTBandRenderer r = new PICTBandRenderer(in);
+			in.close();
+			return r.render(pool);
+		} catch (IOException ioe) {
+			return null;
+		}
+	}
 }
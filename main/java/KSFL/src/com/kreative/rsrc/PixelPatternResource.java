@@ -30,6 +30,7 @@ package com.kreative.rsrc;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.*;
+import java.util.Arrays;
 import com.kreative.ksfl.KSFLConstants;
 import com.kreative.rsrc.misc.PatternPaint;
 import com.kreative.rsrc.pict.*;
@@ -148,15 +149,23 @@ public class PixelPatternResource extends MacResource {
 		super(type, id, attr, name, data);
 	}
 	
+	private PixelPattern decoded = null;
+	private byte[] decodedData = null;
+	
 	/**
 	 * Creates a paint for drawing with this pattern.
+	 * The decoded pattern is kept until the data of this resource changes.
 	 * @param fg the foreground paint.
 	 * @param bg the background paint.
 	 * @return a <code>PatternPaint</code> for drawing with this pattern.
 	 */
-	public Paint toPaint(Paint fg, Paint bg) {
+	public synchronized Paint toPaint(Paint fg, Paint bg) {
 		try {
-			return PixelPattern.read(data).toPaint(fg, bg);
+			if (decoded == null || !Arrays.equals(decodedData, data)) {
+				decoded = PixelPattern.read(data);
+				decodedData = data.clone();
+			}
+			return decoded.toPaint(fg, bg);
 		} catch (IOException ioe) {
 			return null;
 		}
@@ -219,10 +228,19 @@ public class PixelPatternResource extends MacResource {
 			return pp;
 		}
 		
+		private BufferedImage tile = null;
+		private int tileFG, tileBG;
+		
 		public Paint toPaint(Paint fg, Paint bg) {
 			if (pixMap != null) {
-				BufferedImage bi = PICTUtilities.pixmapToImage(pixMap, colorTable, pixData, paintToRGB(bg), paintToRGB(fg), true, false);
-				return new TexturePaint(bi, new Rectangle(0, 0, bi.getWidth(), bi.getHeight()));
+				int fgRGB = paintToRGB(fg);
+				int bgRGB = paintToRGB(bg);
+				if (tile == null || tileFG != fgRGB || tileBG != bgRGB) {
+					tile = PICTUtilities.pixmapToImage(pixMap, colorTable, pixData, bgRGB, fgRGB, true, false);
+					tileFG = fgRGB;
+					tileBG = bgRGB;
+				}
+				return new TexturePaint(tile, new Rectangle(0, 0, tile.getWidth(), tile.getHeight()));
 			} else if (rgb != null) {
 				return rgb.toColor();
 			} else {
@@ -28,8 +28,12 @@
 package com.kreative.rsrc;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
 import com.kreative.ksfl.*;
-import com.kreative.rsrc.misc.MACEDecoder;
+import com.kreative.rsrc.misc.MACEAudioInputStream;
 
 /**
  * The <code>SoundResource</code> class represents a Mac OS sound resource.
@@ -430,198 +434,150 @@ public class SoundResource extends MacResource {
 	 * @return WAV data.
 	 */
 	public byte[] toWav() {
-		if (getFormat() < 1 || getFormat() > 2) return null;
-		for (int i = 0; i < getCommandCount(); i++) {
-			int cmd = getCommand(i) & ~DATAOFFSETFLAG;
-			if (!(cmd == NULLCMD || cmd == SOUNDCMD || cmd == BUFFERCMD)) return null;
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			if (!writeWav(out)) return null;
+			out.close();
+			return out.toByteArray();
+		} catch (IOException ioe) {
+			return null;
 		}
+	}
+	
+	/**
+	 * Writes this sound resource in the WAV format, if possible, to an output stream.
+	 * See <code>writeWav(WritableByteChannel)</code>.
+	 * @param out the output stream to write to.
+	 * @return true if the sound was written, false if the sound cannot be converted.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	public boolean writeWav(OutputStream out) throws IOException {
+		return writeWav(Channels.newChannel(out));
+	}
+	
+	/**
+	 * Writes this sound resource in the WAV format, if possible, to a channel.
+	 * The header is written first and then the sample data is streamed directly
+	 * from the resource data. Uncompressed 8-bit samples are written without being copied;
+	 * other samples are converted through a small fixed-size buffer. MACE-compressed
+	 * sounds are decoded incrementally to 16-bit samples.
+	 * If the sound cannot be converted, nothing is written and this returns false.
+	 * @param out the channel to write to.
+	 * @return true if the sound was written, false if the sound cannot be converted.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	public boolean writeWav(WritableByteChannel out) throws IOException {
+		if (!isSampledSound()) return false;
 		int o = getSoundDataOffset();
 		int numBytes = KSFLUtilities.getInt(data, o+4);
-		int padding = 0; while (((numBytes+padding)&3)!=0) padding++;
 		int sampleRate = KSFLUtilities.getInt(data, o+8);
 		int loopStart = KSFLUtilities.getInt(data, o+12);
 		int loopEnd = KSFLUtilities.getInt(data, o+16);
 		int encoding = data[o+20];
 		int baseFrequency = data[o+21];
+		int channels;
+		int sampleSize;
+		int dataOffset;
+		int dataLength;
+		int mace = 0;
 		if (encoding == -2) {
 			// compressed
 			int numFrames = KSFLUtilities.getInt(data, o+22);
 			int format = KSFLUtilities.getInt(data, o+40);
 			short compressionID = KSFLUtilities.getShort(data, o+56);
-			short sampleSize = KSFLUtilities.getShort(data, o+62);
-			int sampleBytes = (sampleSize + 7) / 8;
-			byte[] newdata = KSFLUtilities.copy(data, o+22, numBytes * numFrames * sampleBytes);
+			channels = numBytes;
+			sampleSize = KSFLUtilities.getShort(data, o+62);
+			dataOffset = o+64;
 			switch (compressionID) {
-			case COMPID_NONE:
-				// nothin' doin'
-				break;
-			case COMPID_MACE_3TO1:
-				newdata = MACEDecoder.decompressMACE3(newdata, numBytes);
-				break;
-			case COMPID_MACE_6TO1:
-				newdata = MACEDecoder.decompressMACE6(newdata, numBytes);
-				break;
+			case COMPID_NONE: break;
+			case COMPID_MACE_3TO1: mace = MACEAudioInputStream.MACE3; break;
+			case COMPID_MACE_6TO1: mace = MACEAudioInputStream.MACE6; break;
 			case COMPID_USE_FORMAT:
 				switch (format) {
-				case FORMAT_NONE:
-					// nothin' doin'
-					break;
-				case FORMAT_MACE_3TO1:
-					newdata = MACEDecoder.decompressMACE3(newdata, numBytes);
-					break;
-				case FORMAT_MACE_6TO1:
-					newdata = MACEDecoder.decompressMACE6(newdata, numBytes);
-					break;
-				default:
-					return null;
+				case FORMAT_NONE: break;
+				case FORMAT_MACE_3TO1: mace = MACEAudioInputStream.MACE3; break;
+				case FORMAT_MACE_6TO1: mace = MACEAudioInputStream.MACE6; break;
+				default: return false;
 				}
 				break;
 			default:
-				return null;
+				return false;
 			}
-			int flength = newdata.length;
-			int fpadding = 0; while (((flength+fpadding)&3)!=0) fpadding++;
-			try {
-				ByteArrayOutputStream out = new ByteArrayOutputStream();
-				DataOutputStream out2 = new DataOutputStream(out);
-				// RIFF header
-				out2.writeInt(RIFF);
-				out2.writeInt(Integer.reverseBytes(56 + flength + fpadding)); // length of following data
-				out2.writeInt(WAVE); // WAVE format
-				// FORMAT chunk, 24 bytes total
-				out2.writeInt(FMT );
-				out2.writeInt(0x10000000); // length of following data, little-endian
-				out2.writeShort(0x0100); // codec; 1 = PCM
-				out2.writeShort(Short.reverseBytes((short)numBytes)); // number of channels
-				out2.writeInt(Integer.reverseBytes(sampleRate >>> 16)); // sample rate in Hz
-				out2.writeInt(Integer.reverseBytes(numBytes * (sampleRate >>> 16) * sampleBytes)); // bytes per second
-				out2.writeShort(Short.reverseBytes((short)(numBytes * sampleBytes))); // bytes per sample
-				out2.writeShort(Short.reverseBytes((short)sampleSize)); // bits per sample
-				// DATA chunk, (8 + numBytes + padding) bytes total
-				out2.writeInt(DATA);
-				out2.writeInt(Integer.reverseBytes(flength + fpadding)); // number of bytes to follow
-				if (sampleBytes == 1) {
-					for (int i = 0; i < newdata.length; i++) newdata[i] ^= 0x80;
-					out2.write(newdata);
-					for (int i = 0; i < fpadding; i++) out2.writeByte(0x80);
-				} else {
-					for (int i = 0; i < newdata.length; i += sampleBytes) {
-						for (int j = 0, k = sampleBytes-1; j < sampleBytes/2; j++, k--) {
-							byte t = newdata[i+j];
-							newdata[i+j] = newdata[i+k];
-							newdata[i+k] = t;
-						}
-					}
-					out2.write(newdata);
-					for (int i = 0; i < fpadding; i++) out2.writeByte(0);
-				}
-				// CYNTH chunk, 20 bytes total
-				out2.writeInt(CYNH);
-				out2.writeInt(0x0C000000); // length of following data, little-endian
-				out2.writeInt(Integer.reverseBytes(loopStart)); // loop start, little-endian
-				out2.writeInt(Integer.reverseBytes(loopEnd)); // loop end, little-endian
-				out2.writeInt(Integer.reverseBytes(baseFrequency)); // base frequency, little-endian
-				// done
-				out2.close();
-				out.close();
-				return out.toByteArray();
-			} catch (IOException ioe) {
-				return null;
+			if (mace != 0) {
+				dataLength = numFrames * MACEAudioInputStream.getPacketSize(mace, channels);
+				sampleSize = 16;
+			} else {
+				dataLength = numBytes * numFrames * ((sampleSize + 7) / 8);
 			}
 		} else if (encoding == -1) {
 			// extended
 			int numFrames = KSFLUtilities.getInt(data, o+22);
-			short sampleSize = KSFLUtilities.getShort(data, o+48);
-			int sampleBytes = (sampleSize + 7) / 8;
-			byte[] newdata = KSFLUtilities.copy(data, o+64, numBytes * numFrames * sampleBytes);
-			int flength = newdata.length;
-			int fpadding = 0; while (((flength+fpadding)&3)!=0) fpadding++;
-			try {
-				ByteArrayOutputStream out = new ByteArrayOutputStream();
-				DataOutputStream out2 = new DataOutputStream(out);
-				// RIFF header
-				out2.writeInt(RIFF);
-				out2.writeInt(Integer.reverseBytes(56 + flength + fpadding)); // length of following data
-				out2.writeInt(WAVE); // WAVE format
-				// FORMAT chunk, 24 bytes total
-				out2.writeInt(FMT );
-				out2.writeInt(0x10000000); // length of following data, little-endian
-				out2.writeShort(0x0100); // codec; 1 = PCM
-				out2.writeShort(Short.reverseBytes((short)numBytes)); // number of channels
-				out2.writeInt(Integer.reverseBytes(sampleRate >>> 16)); // sample rate in Hz
-				out2.writeInt(Integer.reverseBytes(numBytes * (sampleRate >>> 16) * sampleBytes)); // bytes per second
-				out2.writeShort(Short.reverseBytes((short)(numBytes * sampleBytes))); // bytes per sample
-				out2.writeShort(Short.reverseBytes((short)sampleSize)); // bits per sample
-				// DATA chunk, (8 + numBytes + padding) bytes total
-				out2.writeInt(DATA);
-				out2.writeInt(Integer.reverseBytes(flength + fpadding)); // number of bytes to follow
-				if (sampleBytes == 1) {
-					for (int i = 0; i < newdata.length; i++) newdata[i] ^= 0x80;
-					out2.write(newdata);
-					for (int i = 0; i < fpadding; i++) out2.writeByte(0x80);
-				} else {
-					for (int i = 0; i < newdata.length; i += sampleBytes) {
-						for (int j = 0, k = sampleBytes-1; j < sampleBytes/2; j++, k--) {
-							byte t = newdata[i+j];
-							newdata[i+j] = newdata[i+k];
-							newdata[i+k] = t;
-						}
-					}
-					out2.write(newdata);
-					for (int i = 0; i < fpadding; i++) out2.writeByte(0);
-				}
-				// CYNTH chunk, 20 bytes total
-				out2.writeInt(CYNH);
-				out2.writeInt(0x0C000000); // length of following data, little-endian
-				out2.writeInt(Integer.reverseBytes(loopStart)); // loop start, little-endian
-				out2.writeInt(Integer.reverseBytes(loopEnd)); // loop end, little-endian
-				out2.writeInt(Integer.reverseBytes(baseFrequency)); // base frequency, little-endian
-				// done
-				out2.close();
-				out.close();
-				return out.toByteArray();
-			} catch (IOException ioe) {
-				return null;
-			}
+			channels = numBytes;
+			sampleSize = KSFLUtilities.getShort(data, o+48);
+			dataOffset = o+64;
+			dataLength = numBytes * numFrames * ((sampleSize + 7) / 8);
 		} else if (encoding == 0) {
 			// uncompressed
-			try {
-				ByteArrayOutputStream out = new ByteArrayOutputStream();
-				DataOutputStream out2 = new DataOutputStream(out);
-				// RIFF header
-				out2.writeInt(RIFF);
-				out2.writeInt(Integer.reverseBytes(56 + numBytes + padding)); // length of following data
-				out2.writeInt(WAVE); // WAVE format
-				// FORMAT chunk, 24 bytes total
-				out2.writeInt(FMT );
-				out2.writeInt(0x10000000); // length of following data, little-endian
-				out2.writeShort(0x0100); // codec; 1 = PCM
-				out2.writeShort(0x0100); // number of channels; 1 = mono
-				out2.writeInt(Integer.reverseBytes(sampleRate >>> 16)); // sample rate in Hz
-				out2.writeInt(Integer.reverseBytes(sampleRate >>> 16)); // bytes per second
-				out2.writeShort(0x0100); // bytes per sample; 1 = 8-bit mono
-				out2.writeShort(0x0800); // bits per sample; 8 = 8-bit mono
-				// DATA chunk, (8 + numBytes + padding) bytes total
-				out2.writeInt(DATA);
-				out2.writeInt(Integer.reverseBytes(numBytes + padding)); // number of bytes to follow
-				out2.write(data, o+22, numBytes);
-				for (int i = 0; i < padding; i++) out2.writeByte(0x80);
-				// CYNTH chunk, 20 bytes total
-				out2.writeInt(CYNH);
-				out2.writeInt(0x0C000000); // length of following data, little-endian
-				out2.writeInt(Integer.reverseBytes(loopStart)); // loop start, little-endian
-				out2.writeInt(Integer.reverseBytes(loopEnd)); // loop end, little-endian
-				out2.writeInt(Integer.reverseBytes(baseFrequency)); // base frequency, little-endian
-				// done
-				out2.close();
-				out.close();
-				return out.toByteArray();
-			} catch (IOException ioe) {
-				return null;
+			channels = 1;
+			sampleSize = 8;
+			dataOffset = o+22;
+			dataLength = numBytes;
+		} else {
+			return false;
+		}
+		int sampleBytes = (sampleSize + 7) / 8;
+		int flength = (mace != 0) ? (int)MACEAudioInputStream.getFrameLength(mace, channels, dataLength) * channels * sampleBytes : dataLength;
+		int fpadding = 0; while (((flength+fpadding)&3)!=0) fpadding++;
+		ByteBuffer header = ByteBuffer.allocate(44);
+		// RIFF header
+		header.putInt(RIFF);
+		header.putInt(Integer.reverseBytes(56 + flength + fpadding)); // length of following data
+		header.putInt(WAVE); // WAVE format
+		// FORMAT chunk, 24 bytes total
+		header.putInt(FMT );
+		header.putInt(0x10000000); // length of following data, little-endian
+		header.putShort((short)0x0100); // codec; 1 = PCM
+		header.putShort(Short.reverseBytes((short)channels)); // number of channels
+		header.putInt(Integer.reverseBytes(sampleRate >>> 16)); // sample rate in Hz
+		header.putInt(Integer.reverseBytes(channels * (sampleRate >>> 16) * sampleBytes)); // bytes per second
+		header.putShort(Short.reverseBytes((short)(channels * sampleBytes))); // bytes per sample
+		header.putShort(Short.reverseBytes((short)sampleSize)); // bits per sample
+		// DATA chunk, (8 + numBytes + padding) bytes total
+		header.putInt(DATA);
+		header.putInt(Integer.reverseBytes(flength + fpadding)); // number of bytes to follow
+		header.flip();
+		writeFully(out, header);
+		if (mace != 0) {
+			int available = Math.max(0, Math.min(dataLength, data.length - dataOffset));
+			InputStream in = new MACEAudioInputStream(
+					new ByteArrayInputStream(data, dataOffset, available),
+					mace, channels, sampleRate >>> 16, false, available
+			);
+			ByteBuffer buf = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+			int written = 0, n;
+			while (written < flength && (n = in.read(buf.array(), 0, Math.min(buf.capacity(), flength - written))) > 0) {
+				buf.position(0); buf.limit(n);
+				writeFully(out, buf);
+				written += n;
 			}
+			in.close();
+			writeFill(out, (byte)0, flength - written);
+		} else if (encoding == 0) {
+			writeSamples(out, dataOffset, dataLength, 1, false, false);
 		} else {
-			return null;
+			writeSamples(out, dataOffset, dataLength, sampleBytes, sampleBytes == 1, sampleBytes > 1);
 		}
+		writeFill(out, (byte)((sampleBytes == 1) ? 0x80 : 0), fpadding);
+		ByteBuffer trailer = ByteBuffer.allocate(20);
+		// CYNTH chunk, 20 bytes total
+		trailer.putInt(CYNH);
+		trailer.putInt(0x0C000000); // length of following data, little-endian
+		trailer.putInt(Integer.reverseBytes(loopStart)); // loop start, little-endian
+		trailer.putInt(Integer.reverseBytes(loopEnd)); // loop end, little-endian
+		trailer.putInt(Integer.reverseBytes(baseFrequency)); // base frequency, little-endian
+		trailer.flip();
+		writeFully(out, trailer);
+		return true;
 	}
 	
 	/**
@@ -630,190 +586,220 @@ public class SoundResource extends MacResource {
 	 * @return AIFF data.
 	 */
 	public byte[] toAiff() {
-		if (getFormat() < 1 || getFormat() > 2) return null;
-		for (int i = 0; i < getCommandCount(); i++) {
-			int cmd = getCommand(i) & ~DATAOFFSETFLAG;
-			if (!(cmd == NULLCMD || cmd == SOUNDCMD || cmd == BUFFERCMD)) return null;
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			if (!writeAiff(out)) return null;
+			out.close();
+			return out.toByteArray();
+		} catch (IOException ioe) {
+			return null;
 		}
+	}
+	
+	/**
+	 * Writes this sound resource in the AIFF format, if possible, to a channel.
+	 * See <code>writeAiff(OutputStream)</code>.
+	 * @param out the channel to write to.
+	 * @return true if the sound was written, false if the sound cannot be converted.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	public boolean writeAiff(WritableByteChannel out) throws IOException {
+		return writeAiff(Channels.newOutputStream(out));
+	}
+	
+	/**
+	 * Writes this sound resource in the AIFF format, if possible, to an output stream.
+	 * The header is written first and then the sample data is written directly
+	 * from the resource data. Compressed sample data is written as is, in an AIFF-C
+	 * container, so only uncompressed 8-bit samples need to be converted, which is
+	 * done through a small fixed-size buffer.
+	 * If the sound cannot be converted, nothing is written and this returns false.
+	 * @param out the output stream to write to.
+	 * @return true if the sound was written, false if the sound cannot be converted.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	public boolean writeAiff(OutputStream out) throws IOException {
+		if (!isSampledSound()) return false;
 		int o = getSoundDataOffset();
 		int numBytes = KSFLUtilities.getInt(data, o+4);
-		int padding = 0; while (((numBytes+padding)&1)!=0) padding++;
 		int sampleRate = KSFLUtilities.getInt(data, o+8);
 		int loopStart = KSFLUtilities.getInt(data, o+12);
 		int loopEnd = KSFLUtilities.getInt(data, o+16);
 		int encoding = data[o+20];
 		int baseFrequency = data[o+21];
+		int channels;
+		int numFrames;
+		short sampleSize;
+		short aiffSampleRateExponent;
+		long aiffSampleRateMantissa;
+		int compressionType;
+		byte[] compressionName;
+		int dataOffset;
+		int flength;
 		if (encoding == -2) {
 			// compressed
-			int numFrames = KSFLUtilities.getInt(data, o+22);
-			short aiffSampleRateExponent = KSFLUtilities.getShort(data, o+26);
-			long aiffSampleRateMantissa = KSFLUtilities.getLong(data, o+28);
+			numFrames = KSFLUtilities.getInt(data, o+22);
+			aiffSampleRateExponent = KSFLUtilities.getShort(data, o+26);
+			aiffSampleRateMantissa = KSFLUtilities.getLong(data, o+28);
 			int format = KSFLUtilities.getInt(data, o+40);
 			short compressionID = KSFLUtilities.getShort(data, o+56);
-			short sampleSize = KSFLUtilities.getShort(data, o+62);
-			int sampleBytes = (sampleSize + 7) / 8;
-			int flength = numBytes * numFrames * sampleBytes;
-			int fpadding = 0; while (((flength+fpadding)&1)!=0) fpadding++;
-			try {
-				ByteArrayOutputStream out = new ByteArrayOutputStream();
-				DataOutputStream out2 = new DataOutputStream(out);
-				// form chunk
-				out2.writeInt(FORM);
-				out2.writeInt(98 + flength + fpadding);
-				out2.writeInt(AIFC);
-				// format version chunk
-				out2.writeInt(FVER);
-				out2.writeInt(4);
-				out2.writeInt(0xA2805140);
-				// common chunk
-				out2.writeInt(COMM);
-				out2.writeInt(38);
-				out2.writeShort(numBytes); // number of channels
-				out2.writeInt(numFrames); // number of frames
-				out2.writeShort(sampleSize); // bits per sample
-				out2.writeShort(aiffSampleRateExponent);
-				out2.writeLong(aiffSampleRateMantissa);
-				switch (compressionID) {
-				case COMPID_NONE: out2.writeInt(FORMAT_NONE); out2.write(COMPNAME_NONE); break;
-				case COMPID_ACE_2TO1: out2.writeInt(FORMAT_ACE_2TO1); out2.write(COMPNAME_ACE_2TO1); break;
-				case COMPID_ACE_8TO3: out2.writeInt(FORMAT_ACE_8TO3); out2.write(COMPNAME_ACE_8TO3); break;
-				case COMPID_MACE_3TO1: out2.writeInt(FORMAT_MACE_3TO1); out2.write(COMPNAME_MACE_3TO1); break;
-				case COMPID_MACE_6TO1: out2.writeInt(FORMAT_MACE_6TO1); out2.write(COMPNAME_MACE_6TO1); break;
-				case COMPID_USE_FORMAT:
-					switch (format) {
-					case FORMAT_NONE: out2.writeInt(FORMAT_NONE); out2.write(COMPNAME_NONE); break;
-					case FORMAT_ACE_2TO1: out2.writeInt(FORMAT_ACE_2TO1); out2.write(COMPNAME_ACE_2TO1); break;
-					case FORMAT_ACE_8TO3: out2.writeInt(FORMAT_ACE_8TO3); out2.write(COMPNAME_ACE_8TO3); break;
-					case FORMAT_MACE_3TO1: out2.writeInt(FORMAT_MACE_3TO1); out2.write(COMPNAME_MACE_3TO1); break;
-					case FORMAT_MACE_6TO1: out2.writeInt(FORMAT_MACE_6TO1); out2.write(COMPNAME_MACE_6TO1); break;
-					default: out2.writeInt(format); out2.write(new byte[16]); break;
-					}
-					break;
-				default: return null;
+			sampleSize = KSFLUtilities.getShort(data, o+62);
+			switch (compressionID) {
+			case COMPID_NONE: compressionType = FORMAT_NONE; compressionName = COMPNAME_NONE; break;
+			case COMPID_ACE_2TO1: compressionType = FORMAT_ACE_2TO1; compressionName = COMPNAME_ACE_2TO1; break;
+			case COMPID_ACE_8TO3: compressionType = FORMAT_ACE_8TO3; compressionName = COMPNAME_ACE_8TO3; break;
+			case COMPID_MACE_3TO1: compressionType = FORMAT_MACE_3TO1; compressionName = COMPNAME_MACE_3TO1; break;
+			case COMPID_MACE_6TO1: compressionType = FORMAT_MACE_6TO1; compressionName = COMPNAME_MACE_6TO1; break;
+			case COMPID_USE_FORMAT:
+				switch (format) {
+				case FORMAT_NONE: compressionType = FORMAT_NONE; compressionName = COMPNAME_NONE; break;
+				case FORMAT_ACE_2TO1: compressionType = FORMAT_ACE_2TO1; compressionName = COMPNAME_ACE_2TO1; break;
+				case FORMAT_ACE_8TO3: compressionType = FORMAT_ACE_8TO3; compressionName = COMPNAME_ACE_8TO3; break;
+				case FORMAT_MACE_3TO1: compressionType = FORMAT_MACE_3TO1; compressionName = COMPNAME_MACE_3TO1; break;
+				case FORMAT_MACE_6TO1: compressionType = FORMAT_MACE_6TO1; compressionName = COMPNAME_MACE_6TO1; break;
+				default: compressionType = format; compressionName = new byte[16]; break;
 				}
-				// cynth chunk
-				out2.writeInt(CYNH);
-				out2.writeInt(12);
-				out2.writeInt(loopStart);
-				out2.writeInt(loopEnd);
-				out2.writeInt(baseFrequency);
-				// sound data chunk
-				out2.writeInt(SSND);
-				out2.writeInt(8 + flength);
-				out2.writeInt(0); // offset
-				out2.writeInt(0); // block size
-				out2.write(data, o+64, flength);
-				for (int i = 0; i < fpadding; i++) out2.writeByte(0);
-				// done
-				out2.close();
-				out.close();
-				return out.toByteArray();
-			} catch (IOException ioe) {
-				return null;
+				break;
+			default: return false;
+			}
+			channels = numBytes;
+			dataOffset = o+64;
+			if (compressionType == FORMAT_MACE_3TO1) {
+				flength = numFrames * MACEAudioInputStream.getPacketSize(MACEAudioInputStream.MACE3, channels);
+			} else {
+				flength = numBytes * numFrames * ((sampleSize + 7) / 8);
 			}
 		} else if (encoding == -1) {
 			// extended
-			int numFrames = KSFLUtilities.getInt(data, o+22);
-			short aiffSampleRateExponent = KSFLUtilities.getShort(data, o+26);
-			long aiffSampleRateMantissa = KSFLUtilities.getLong(data, o+28);
-			short sampleSize = KSFLUtilities.getShort(data, o+48);
-			int sampleBytes = (sampleSize + 7) / 8;
-			int flength = numBytes * numFrames * sampleBytes;
-			int fpadding = 0; while (((flength+fpadding)&1)!=0) fpadding++;
-			try {
-				ByteArrayOutputStream out = new ByteArrayOutputStream();
-				DataOutputStream out2 = new DataOutputStream(out);
-				// form chunk
-				out2.writeInt(FORM);
-				out2.writeInt(98 + flength + fpadding);
-				out2.writeInt(AIFC);
-				// format version chunk
-				out2.writeInt(FVER);
-				out2.writeInt(4);
-				out2.writeInt(0xA2805140);
-				// common chunk
-				out2.writeInt(COMM);
-				out2.writeInt(38);
-				out2.writeShort(numBytes); // number of channels
-				out2.writeInt(numFrames); // number of frames
-				out2.writeShort(sampleSize); // bits per sample
-				out2.writeShort(aiffSampleRateExponent);
-				out2.writeLong(aiffSampleRateMantissa);
-				out2.writeInt(FORMAT_NONE);
-				out2.write(COMPNAME_NONE);
-				// cynth chunk
-				out2.writeInt(CYNH);
-				out2.writeInt(12);
-				out2.writeInt(loopStart);
-				out2.writeInt(loopEnd);
-				out2.writeInt(baseFrequency);
-				// sound data chunk
-				out2.writeInt(SSND);
-				out2.writeInt(8 + flength);
-				out2.writeInt(0); // offset
-				out2.writeInt(0); // block size
-				out2.write(data, o+64, flength);
-				for (int i = 0; i < fpadding; i++) out2.writeByte(0);
-				// done
-				out2.close();
-				out.close();
-				return out.toByteArray();
-			} catch (IOException ioe) {
-				return null;
-			}
+			numFrames = KSFLUtilities.getInt(data, o+22);
+			aiffSampleRateExponent = KSFLUtilities.getShort(data, o+26);
+			aiffSampleRateMantissa = KSFLUtilities.getLong(data, o+28);
+			sampleSize = KSFLUtilities.getShort(data, o+48);
+			compressionType = FORMAT_NONE;
+			compressionName = COMPNAME_NONE;
+			channels = numBytes;
+			dataOffset = o+64;
+			flength = numBytes * numFrames * ((sampleSize + 7) / 8);
 		} else if (encoding == 0) {
 			// uncompressed
-			try {
-				ByteArrayOutputStream out = new ByteArrayOutputStream();
-				DataOutputStream out2 = new DataOutputStream(out);
-				// form chunk
-				out2.writeInt(FORM);
-				out2.writeInt(98 + numBytes + padding);
-				out2.writeInt(AIFC);
-				// format version chunk
-				out2.writeInt(FVER);
-				out2.writeInt(4);
-				out2.writeInt(0xA2805140);
-				// common chunk
-				out2.writeInt(COMM);
-				out2.writeInt(38);
-				out2.writeShort(1); // number of channels
-				out2.writeInt(numBytes); // number of frames
-				out2.writeShort(8); // bits per sample
-				switch (sampleRate) {
-				case RATE_44KHZ   : out2.writeShort(EXPONENT_44KHZ   ); out2.writeLong(MANTISSA_44KHZ   ); break;
-				case RATE_22KHZ   : out2.writeShort(EXPONENT_22KHZ   ); out2.writeLong(MANTISSA_22KHZ   ); break;
-				case RATE_22050KHZ: out2.writeShort(EXPONENT_22050KHZ); out2.writeLong(MANTISSA_22050KHZ); break;
-				case RATE_11KHZ   : out2.writeShort(EXPONENT_11KHZ   ); out2.writeLong(MANTISSA_11KHZ   ); break;
-				case RATE_11025KHZ: out2.writeShort(EXPONENT_11025KHZ); out2.writeLong(MANTISSA_11025KHZ); break;
-				default: return null;
-				}
-				out2.writeInt(FORMAT_NONE); // compression type
-				out2.write(COMPNAME_NONE); // compression name
-				// cynth chunk
-				out2.writeInt(CYNH);
-				out2.writeInt(12);
-				out2.writeInt(loopStart);
-				out2.writeInt(loopEnd);
-				out2.writeInt(baseFrequency);
-				// sound data chunk
-				out2.writeInt(SSND);
-				out2.writeInt(8 + numBytes);
-				out2.writeInt(0); // offset
-				out2.writeInt(0); // block size
-				byte[] newdata = KSFLUtilities.copy(data, o+22, numBytes);
-				for (int i = 0; i < newdata.length; i++) newdata[i] ^= 0x80;
-				out2.write(newdata);
-				for (int i = 0; i < padding; i++) out2.writeByte(0);
-				// done
-				out2.close();
-				out.close();
-				return out.toByteArray();
-			} catch (IOException ioe) {
-				return null;
+			numFrames = numBytes;
+			sampleSize = 8;
+			switch (sampleRate) {
+			case RATE_44KHZ   : aiffSampleRateExponent = EXPONENT_44KHZ   ; aiffSampleRateMantissa = MANTISSA_44KHZ   ; break;
+			case RATE_22KHZ   : aiffSampleRateExponent = EXPONENT_22KHZ   ; aiffSampleRateMantissa = MANTISSA_22KHZ   ; break;
+			case RATE_22050KHZ: aiffSampleRateExponent = EXPONENT_22050KHZ; aiffSampleRateMantissa = MANTISSA_22050KHZ; break;
+			case RATE_11KHZ   : aiffSampleRateExponent = EXPONENT_11KHZ   ; aiffSampleRateMantissa = MANTISSA_11KHZ   ; break;
+			case RATE_11025KHZ: aiffSampleRateExponent = EXPONENT_11025KHZ; aiffSampleRateMantissa = MANTISSA_11025KHZ; break;
+			default: return false;
 			}
+			compressionType = FORMAT_NONE;
+			compressionName = COMPNAME_NONE;
+			channels = 1;
+			dataOffset = o+22;
+			flength = numBytes;
 		} else {
-			return null;
+			return false;
+		}
+		int fpadding = 0; while (((flength+fpadding)&1)!=0) fpadding++;
+		DataOutputStream out2 = new DataOutputStream(new BufferedOutputStream(out, STREAM_BUFFER_SIZE));
+		// form chunk
+		out2.writeInt(FORM);
+		out2.writeInt(98 + flength + fpadding);
+		out2.writeInt(AIFC);
+		// format version chunk
+		out2.writeInt(FVER);
+		out2.writeInt(4);
+		out2.writeInt(0xA2805140);
+		// common chunk
+		out2.writeInt(COMM);
+		out2.writeInt(38);
+		out2.writeShort(channels); // number of channels
+		out2.writeInt(numFrames); // number of frames
+		out2.writeShort(sampleSize); // bits per sample
+		out2.writeShort(aiffSampleRateExponent);
+		out2.writeLong(aiffSampleRateMantissa);
+		out2.writeInt(compressionType); // compression type
+		out2.write(compressionName); // compression name
+		// cynth chunk
+		out2.writeInt(CYNH);
+		out2.writeInt(12);
+		out2.writeInt(loopStart);
+		out2.writeInt(loopEnd);
+		out2.writeInt(baseFrequency);
+		// sound data chunk
+		out2.writeInt(SSND);
+		out2.writeInt(8 + flength);
+		out2.writeInt(0); // offset
+		out2.writeInt(0); // block size
+		int available = Math.max(0, Math.min(flength, data.length - dataOffset));
+		if (encoding == 0) {
+			byte[] buf = new byte[Math.min(STREAM_BUFFER_SIZE, Math.max(available, 1))];
+			for (int i = 0; i < available; i += buf.length) {
+				int n = Math.min(buf.length, available - i);
+				for (int j = 0; j < n; j++) buf[j] = (byte)(data[dataOffset+i+j] ^ 0x80);
+				out2.write(buf, 0, n);
+			}
+		} else {
+			out2.write(data, dataOffset, available);
+		}
+		for (int i = available; i < flength; i++) out2.writeByte(0);
+		for (int i = 0; i < fpadding; i++) out2.writeByte(0);
+		// done
+		out2.flush();
+		return true;
+	}
+	
+	private static final int STREAM_BUFFER_SIZE = 8192;
+	
+	private boolean isSampledSound() {
+		if (getFormat() < 1 || getFormat() > 2) return false;
+		for (int i = 0; i < getCommandCount(); i++) {
+			int cmd = getCommand(i) & ~DATAOFFSETFLAG;
+			if (!(cmd == NULLCMD || cmd == SOUNDCMD || cmd == BUFFERCMD)) return false;
+		}
+		return true;
+	}
+	
+	private static void writeFully(WritableByteChannel out, ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) out.write(buf);
+	}
+	
+	private static void writeFill(WritableByteChannel out, byte value, int length) throws IOException {
+		if (length <= 0) return;
+		byte[] fill = new byte[Math.min(length, STREAM_BUFFER_SIZE)];
+		if (value != 0) Arrays.fill(fill, value);
+		while (length > 0) {
+			int n = Math.min(length, fill.length);
+			writeFully(out, ByteBuffer.wrap(fill, 0, n));
+			length -= n;
+		}
+	}
+	
+	private void writeSamples(WritableByteChannel out, int offset, int length, int sampleBytes, boolean flip, boolean swap) throws IOException {
+		int available = Math.max(0, Math.min(length, data.length - offset));
+		if (!flip && !swap) {
+			writeFully(out, ByteBuffer.wrap(data, offset, available));
+		} else {
+			int chunk = Math.max(sampleBytes, STREAM_BUFFER_SIZE - (STREAM_BUFFER_SIZE % sampleBytes));
+			byte[] buf = new byte[Math.min(chunk, Math.max(available, 1))];
+			for (int i = 0; i < available; i += buf.length) {
+				int n = Math.min(buf.length, available - i);
+				System.arraycopy(data, offset+i, buf, 0, n);
+				if (flip) {
+					for (int j = 0; j < n; j++) buf[j] ^= 0x80;
+				}
+				if (swap) {
+					for (int j = 0; j + sampleBytes <= n; j += sampleBytes) {
+						for (int k = 0, m = sampleBytes-1; k < sampleBytes/2; k++, m--) {
+							byte t = buf[j+k];
+							buf[j+k] = buf[j+m];
+							buf[j+m] = t;
+						}
+					}
+				}
+				writeFully(out, ByteBuffer.wrap(buf, 0, n));
+			}
 		}
+		writeFill(out, (byte)0, length - available);
 	}
 }
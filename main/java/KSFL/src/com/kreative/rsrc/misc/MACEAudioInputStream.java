@@ -0,0 +1,168 @@
+/*
+ * Copyright &copy; 2009-2011 Rebecca G. Bettencourt / Kreative Software
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License
+ * Version 1.1 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * <a href="http://www.mozilla.org/MPL/">http://www.mozilla.org/MPL/</a>
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * <p>
+ * Alternatively, the contents of this file may be used under the terms
+ * of the GNU Lesser General Public License (the "LGPL License"), in which
+ * case the provisions of LGPL License are applicable instead of those
+ * above. If you wish to allow use of your version of this file only
+ * under the terms of the LGPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the LGPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the LGPL License.
+ * @since KSFL 1.2
+ * @author Rebecca G. Bettencourt, Kreative Software
+ */
+
+package com.kreative.rsrc.misc;
+
+import java.io.*;
+import javax.sound.sampled.*;
+
+public class MACEAudioInputStream extends AudioInputStream {
+	public static final int MACE3 = 3;
+	public static final int MACE6 = 6;
+	
+	public static int getPacketSize(int compression, int channels) {
+		return (compression == MACE6) ? channels : (channels * 2);
+	}
+	
+	public static long getFrameLength(int compression, int channels, long compressedLength) {
+		if (compressedLength < 0) return AudioSystem.NOT_SPECIFIED;
+		return (compressedLength / getPacketSize(compression, channels)) * 6;
+	}
+	
+	/**
+	 * Creates a stream of 16-bit signed PCM decoded from MACE-compressed data.
+	 * @param in the MACE-compressed data.
+	 * @param compression either <code>MACE3</code> or <code>MACE6</code>.
+	 * @param channels the number of channels.
+	 * @param sampleRate the sample rate.
+	 * @param bigEndian true for big-endian samples, false for little-endian.
+	 * @param compressedLength the length of the compressed data, or -1 if unknown.
+	 */
+	public MACEAudioInputStream(InputStream in, int compression, int channels, float sampleRate, boolean bigEndian, long compressedLength) {
+		this(in, compression, channels, sampleRate, 16, bigEndian, compressedLength);
+	}
+	
+	/**
+	 * Creates a stream of 8-bit or 16-bit signed PCM decoded from MACE-compressed data.
+	 * @param in the MACE-compressed data.
+	 * @param compression either <code>MACE3</code> or <code>MACE6</code>.
+	 * @param channels the number of channels.
+	 * @param sampleRate the sample rate.
+	 * @param sampleSize the sample size in bits, either 8 or 16.
+	 * @param bigEndian true for big-endian samples, false for little-endian.
+	 * @param compressedLength the length of the compressed data, or -1 if unknown.
+	 */
+	public MACEAudioInputStream(InputStream in, int compression, int channels, float sampleRate, int sampleSize, boolean bigEndian, long compressedLength) {
+		super(
+				new Decoder(in, compression, channels, sampleSize, bigEndian),
+				new AudioFormat(sampleRate, sampleSize, channels, true, bigEndian),
+				getFrameLength(compression, channels, compressedLength)
+		);
+	}
+	
+	private static class Decoder extends InputStream {
+		private InputStream in;
+		private int compression;
+		private int channels;
+		private int sampleSize;
+		private boolean bigEndian;
+		private MACEDecoder.MACEState[] states;
+		private byte[] packet;
+		private short[] samples;
+		private byte[] buf;
+		private int bufPos;
+		private int bufLen;
+		private boolean eof;
+		
+		public Decoder(InputStream in, int compression, int channels, int sampleSize, boolean bigEndian) {
+			if (compression != MACE3 && compression != MACE6) throw new IllegalArgumentException("compression");
+			if (sampleSize != 8 && sampleSize != 16) throw new IllegalArgumentException("sampleSize");
+			this.in = in;
+			this.compression = compression;
+			this.channels = channels;
+			this.sampleSize = sampleSize;
+			this.bigEndian = bigEndian;
+			this.states = new MACEDecoder.MACEState[channels];
+			for (int i = 0; i < channels; i++) states[i] = new MACEDecoder.MACEState();
+			this.packet = new byte[getPacketSize(compression, channels)];
+			this.samples = new short[channels * 6];
+			this.buf = new byte[samples.length * sampleSize / 8];
+			this.bufPos = 0;
+			this.bufLen = 0;
+			this.eof = false;
+		}
+		
+		private boolean fill() throws IOException {
+			if (eof) return false;
+			int n = 0;
+			while (n < packet.length) {
+				int r = in.read(packet, n, packet.length - n);
+				if (r < 0) { eof = true; return false; }
+				n += r;
+			}
+			if (compression == MACE6) {
+				MACEDecoder.decompressPacket6(states, packet, samples, channels);
+			} else {
+				MACEDecoder.decompressPacket3(states, packet, samples, channels);
+			}
+			if (sampleSize == 8) {
+				for (int i = 0; i < samples.length; i++) {
+					buf[i] = (byte)(samples[i] >> 8);
+				}
+			} else if (bigEndian) {
+				for (int i = 0, j = 0; i < samples.length; i++) {
+					buf[j++] = (byte)(samples[i] >> 8);
+					buf[j++] = (byte)samples[i];
+				}
+			} else {
+				for (int i = 0, j = 0; i < samples.length; i++) {
+					buf[j++] = (byte)samples[i];
+					buf[j++] = (byte)(samples[i] >> 8);
+				}
+			}
+			bufPos = 0;
+			bufLen = buf.length;
+			return true;
+		}
+		
+		public int read() throws IOException {
+			if (bufPos >= bufLen && !fill()) return -1;
+			return buf[bufPos++] & 0xFF;
+		}
+		
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) return 0;
+			int total = 0;
+			while (total < len) {
+				if (bufPos >= bufLen && !fill()) break;
+				int n = Math.min(len - total, bufLen - bufPos);
+				System.arraycopy(buf, bufPos, b, off + total, n);
+				bufPos += n;
+				total += n;
+			}
+			return (total > 0) ? total : -1;
+		}
+		
+		public int available() throws IOException {
+			return bufLen - bufPos;
+		}
+		
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
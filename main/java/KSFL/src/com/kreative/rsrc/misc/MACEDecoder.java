@@ -298,7 +298,7 @@ public class MACEDecoder {
 		{ 16615, 32767, -32768, -16616 },
 	};
 	
-	private static class MACEState {
+	static class MACEState {
 		int index; int factor;
 		int prev2; int prev1; int level;
 		int inOffset; int outOffset;
@@ -339,6 +339,32 @@ public class MACEDecoder {
 		if (state.index < 0) state.index = 0;
 	}
 	
+	static void decompressPacket3(MACEState[] states, byte[] in, short[] out, int channels) {
+		for (int channel = 0; channel < channels; channel++) {
+			MACEState state = states[channel];
+			state.outOffset = channel;
+			int b = in[channel * 2];
+			decompressBits3(state, (b >> 0) & 7, out, MAJOR_INDEX_DELTA, MAJOR_LEVEL_DELTA, channels);
+			decompressBits3(state, (b >> 3) & 3, out, MINOR_INDEX_DELTA, MINOR_LEVEL_DELTA, channels);
+			decompressBits3(state, (b >> 5) & 7, out, MAJOR_INDEX_DELTA, MAJOR_LEVEL_DELTA, channels);
+			b = in[channel * 2 + 1];
+			decompressBits3(state, (b >> 0) & 7, out, MAJOR_INDEX_DELTA, MAJOR_LEVEL_DELTA, channels);
+			decompressBits3(state, (b >> 3) & 3, out, MINOR_INDEX_DELTA, MINOR_LEVEL_DELTA, channels);
+			decompressBits3(state, (b >> 5) & 7, out, MAJOR_INDEX_DELTA, MAJOR_LEVEL_DELTA, channels);
+		}
+	}
+	
+	static void decompressPacket6(MACEState[] states, byte[] in, short[] out, int channels) {
+		for (int channel = 0; channel < channels; channel++) {
+			MACEState state = states[channel];
+			state.outOffset = channel;
+			int b = in[channel];
+			decompressBits6(state, (b >> 5) & 7, out, MAJOR_INDEX_DELTA, MAJOR_LEVEL_DELTA, channels);
+			decompressBits6(state, (b >> 3) & 3, out, MINOR_INDEX_DELTA, MINOR_LEVEL_DELTA, channels);
+			decompressBits6(state, (b >> 0) & 7, out, MAJOR_INDEX_DELTA, MAJOR_LEVEL_DELTA, channels);
+		}
+	}
+	
 	private static void decompressStream3(byte[] in, short[] out, int channels) {
 		MACEState state = new MACEState();
 		for (int channel = 0; channel < channels; channel++) {
@@ -56,11 +56,28 @@ public class PatternPaint implements Paint {
 	}
 
 	public PaintContext createContext(ColorModel cm, Rectangle deviceBounds, Rectangle2D userBounds, AffineTransform xform, RenderingHints hints) {
+		if (forePaint instanceof Color && backPaint instanceof Color && isIntegerTranslation(xform)) {
+			// The pattern is aligned to device space, so anchor the tile to device (0,0).
+			// Bit 0 of pattern is the top-left pixel, the reverse of QuickDraw order.
+			int tx = (xform == null) ? 0 : (int)xform.getTranslateX();
+			int ty = (xform == null) ? 0 : (int)xform.getTranslateY();
+			int fg = ((Color)forePaint).getRGB();
+			int bg = ((Color)backPaint).getRGB();
+			TexturePaint tp = PatternTileCache.getTexturePaint(Long.reverse(pattern), fg, bg, -tx, -ty);
+			return tp.createContext(cm, deviceBounds, userBounds, xform, hints);
+		}
 		PaintContext fore = forePaint.createContext(cm, deviceBounds, userBounds, xform, hints);
 		PaintContext back = backPaint.createContext(cm, deviceBounds, userBounds, xform, hints);
 		return new PatternPaintContext(fore, back, pattern);
 	}
 	
+	private static boolean isIntegerTranslation(AffineTransform xform) {
+		if (xform == null) return true;
+		if ((xform.getType() & ~AffineTransform.TYPE_TRANSLATION) != 0) return false;
+		return xform.getTranslateX() == Math.rint(xform.getTranslateX())
+			&& xform.getTranslateY() == Math.rint(xform.getTranslateY());
+	}
+	
 	public int getTransparency() {
 		int fore = forePaint.getTransparency();
 		int back = backPaint.getTransparency();
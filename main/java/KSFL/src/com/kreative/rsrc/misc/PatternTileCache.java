@@ -0,0 +1,148 @@
+/*
+ * Copyright &copy; 2009-2011 Rebecca G. Bettencourt / Kreative Software
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License
+ * Version 1.1 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * <a href="http://www.mozilla.org/MPL/">http://www.mozilla.org/MPL/</a>
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * <p>
+ * Alternatively, the contents of this file may be used under the terms
+ * of the GNU Lesser General Public License (the "LGPL License"), in which
+ * case the provisions of LGPL License are applicable instead of those
+ * above. If you wish to allow use of your version of this file only
+ * under the terms of the LGPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the LGPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the LGPL License.
+ * @since KSFL 1.2
+ * @author Rebecca G. Bettencourt, Kreative Software
+ */
+
+package com.kreative.rsrc.misc;
+
+import java.awt.Rectangle;
+import java.awt.TexturePaint;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A shared cache of 8x8 tiles for two-color QuickDraw patterns.
+ * Patterns are in QuickDraw order: the most significant byte is the top row,
+ * and the most significant bit of each byte is the leftmost pixel.
+ * The tiles returned are shared and must not be modified.
+ * @since KSFL 1.2
+ * @author Rebecca G. Bettencourt, Kreative Software
+ */
+public class PatternTileCache {
+	/**
+	 * The maximum number of tiles kept in the cache.
+	 * The least recently used tiles are discarded first.
+	 */
+	public static final int MAX_CACHED_TILES = 256;
+	
+	private static final Map<Key,TexturePaint> tiles = new LinkedHashMap<Key,TexturePaint>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		protected boolean removeEldestEntry(Map.Entry<Key,TexturePaint> eldest) {
+			return size() > MAX_CACHED_TILES;
+		}
+	};
+	
+	private PatternTileCache() {}
+	
+	/**
+	 * Returns a texture for the specified pattern and colors,
+	 * with the pattern anchored at (0,0).
+	 * @param pattern the pattern.
+	 * @param fg the ARGB color for set bits.
+	 * @param bg the ARGB color for clear bits.
+	 * @return a texture for the specified pattern and colors.
+	 */
+	public static TexturePaint getTexturePaint(long pattern, int fg, int bg) {
+		Key k = new Key(pattern, fg, bg);
+		synchronized (tiles) {
+			TexturePaint p = tiles.get(k);
+			if (p == null) {
+				p = new TexturePaint(makeTile(pattern, fg, bg), new Rectangle(0, 0, 8, 8));
+				tiles.put(k, p);
+			}
+			return p;
+		}
+	}
+	
+	/**
+	 * Returns a texture for the specified pattern and colors,
+	 * with the pattern anchored at the specified point.
+	 * @param pattern the pattern.
+	 * @param fg the ARGB color for set bits.
+	 * @param bg the ARGB color for clear bits.
+	 * @param x the x coordinate of the top-left corner of a tile.
+	 * @param y the y coordinate of the top-left corner of a tile.
+	 * @return a texture for the specified pattern and colors.
+	 */
+	public static TexturePaint getTexturePaint(long pattern, int fg, int bg, int x, int y) {
+		TexturePaint p = getTexturePaint(pattern, fg, bg);
+		if (((x | y) & 7) == 0) return p;
+		return new TexturePaint(p.getImage(), new Rectangle(x, y, 8, 8));
+	}
+	
+	/**
+	 * Returns an 8x8 image of the specified pattern and colors.
+	 * @param pattern the pattern.
+	 * @param fg the ARGB color for set bits.
+	 * @param bg the ARGB color for clear bits.
+	 * @return an image of the specified pattern and colors.
+	 */
+	public static BufferedImage getTile(long pattern, int fg, int bg) {
+		return getTexturePaint(pattern, fg, bg).getImage();
+	}
+	
+	/**
+	 * Removes all tiles from the cache.
+	 */
+	public static void flush() {
+		synchronized (tiles) {
+			tiles.clear();
+		}
+	}
+	
+	private static BufferedImage makeTile(long pattern, int fg, int bg) {
+		boolean opaque = ((fg >>> 24) == 0xFF && (bg >>> 24) == 0xFF);
+		BufferedImage bi = new BufferedImage(8, 8, opaque ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+		int[] pixels = ((DataBufferInt)bi.getRaster().getDataBuffer()).getData();
+		for (int i = 0; i < 64; i++) {
+			pixels[i] = (pattern < 0) ? fg : bg;
+			pattern <<= 1;
+		}
+		return bi;
+	}
+	
+	private static final class Key {
+		private final long pattern;
+		private final int fg;
+		private final int bg;
+		public Key(long pattern, int fg, int bg) {
+			this.pattern = pattern;
+			this.fg = fg;
+			this.bg = bg;
+		}
+		public boolean equals(Object o) {
+			if (o instanceof Key) {
+				Key other = (Key)o;
+				return pattern == other.pattern && fg == other.fg && bg == other.bg;
+			}
+			return false;
+		}
+		public int hashCode() {
+			return (int)(pattern ^ (pattern >>> 32)) * 31 * 31 + fg * 31 + bg;
+		}
+	}
+}
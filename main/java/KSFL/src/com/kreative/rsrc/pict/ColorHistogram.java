@@ -0,0 +1,293 @@
+/*
+ * Copyright &copy; 2009-2011 Rebecca G. Bettencourt / Kreative Software
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License
+ * Version 1.1 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * <a href="http://www.mozilla.org/MPL/">http://www.mozilla.org/MPL/</a>
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * <p>
+ * Alternatively, the contents of this file may be used under the terms
+ * of the GNU Lesser General Public License (the "LGPL License"), in which
+ * case the provisions of LGPL License are applicable instead of those
+ * above. If you wish to allow use of your version of this file only
+ * under the terms of the LGPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the LGPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the LGPL License.
+ * @since KSFL 1.2
+ * @author Rebecca G. Bettencourt, Kreative Software
+ */
+
+package com.kreative.rsrc.pict;
+
+/**
+ * A histogram of ARGB colors, kept in a primitive open-addressing hash table,
+ * that can also map each color to a value such as a palette index.
+ * Used by <code>PICTUtilities</code> to build indexed pixel maps.
+ * @since KSFL 1.2
+ * @author Rebecca G. Bettencourt, Kreative Software
+ */
+public class ColorHistogram {
+	// Zero marks an empty slot, so the color zero is kept separately.
+	private int[] keys;
+	private int[] counts;
+	private int[] values;
+	private int size;
+	private int zeroCount;
+	private int zeroValue;
+	
+	public ColorHistogram() {
+		this(256);
+	}
+	
+	public ColorHistogram(int expectedColors) {
+		int cap = 16;
+		while (cap < expectedColors * 2) cap <<= 1;
+		keys = new int[cap];
+		counts = new int[cap];
+		values = new int[cap];
+		size = 0;
+		zeroCount = 0;
+		zeroValue = -1;
+	}
+	
+	private static int hash(int color) {
+		int h = color * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+	
+	private int slot(int color) {
+		int mask = keys.length - 1;
+		int i = hash(color) & mask;
+		while (keys[i] != 0 && keys[i] != color) i = (i + 1) & mask;
+		return i;
+	}
+	
+	public void add(int color) {
+		add(color, 1);
+	}
+	
+	public void add(int color, int count) {
+		if (color == 0) {
+			if (zeroCount == 0) size++;
+			zeroCount += count;
+			return;
+		}
+		int i = slot(color);
+		if (keys[i] == 0) {
+			keys[i] = color;
+			values[i] = -1;
+			if (++size * 2 > keys.length) {
+				rehash();
+				i = slot(color);
+			}
+		}
+		counts[i] += count;
+	}
+	
+	public void addAll(int[] colors, int offset, int length) {
+		int last = 0, run = 0;
+		for (int i = offset, n = offset + length; i < n; i++) {
+			int c = colors[i];
+			if (c == last && run > 0) {
+				run++;
+			} else {
+				if (run > 0) add(last, run);
+				last = c;
+				run = 1;
+			}
+		}
+		if (run > 0) add(last, run);
+	}
+	
+	private void rehash() {
+		int[] ok = keys, oc = counts, ov = values;
+		keys = new int[ok.length * 2];
+		counts = new int[ok.length * 2];
+		values = new int[ok.length * 2];
+		for (int j = 0; j < ok.length; j++) {
+			if (ok[j] != 0) {
+				int i = slot(ok[j]);
+				keys[i] = ok[j];
+				counts[i] = oc[j];
+				values[i] = ov[j];
+			}
+		}
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public boolean contains(int color) {
+		if (color == 0) return zeroCount > 0;
+		return keys[slot(color)] != 0;
+	}
+	
+	public int getCount(int color) {
+		if (color == 0) return zeroCount;
+		int i = slot(color);
+		return (keys[i] != 0) ? counts[i] : 0;
+	}
+	
+	public int getValue(int color) {
+		if (color == 0) return zeroValue;
+		int i = slot(color);
+		return (keys[i] != 0) ? values[i] : -1;
+	}
+	
+	public void setValue(int color, int value) {
+		if (color == 0) {
+			if (zeroCount > 0) zeroValue = value;
+			return;
+		}
+		int i = slot(color);
+		if (keys[i] != 0) values[i] = value;
+	}
+	
+	public int[] getColors() {
+		int[] colors = new int[size];
+		int n = 0;
+		if (zeroCount > 0) colors[n++] = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != 0) colors[n++] = keys[i];
+		}
+		return colors;
+	}
+	
+	/**
+	 * Maps each color to a byte of the value it is mapped to.
+	 * Every color must have been given a value.
+	 */
+	public byte[] mapAll(int[] colors, int offset, int length) {
+		byte[] out = new byte[length];
+		int last = 0;
+		byte lastValue = (byte)zeroValue;
+		for (int i = 0; i < length; i++) {
+			int c = colors[offset + i];
+			if (c != last) {
+				last = c;
+				lastValue = (byte)getValue(c);
+			}
+			out[i] = lastValue;
+		}
+		return out;
+	}
+	
+	/**
+	 * Reduces the colors in this histogram to at most the specified number
+	 * using median cut, weighted by the number of pixels of each color.
+	 * Each color is mapped to the index of its box in the returned palette,
+	 * whose colors are the weighted averages of the colors in each box.
+	 * The alpha channel is taken from the first color seen in each box.
+	 */
+	public int[] quantize(int maxColors) {
+		int[] colors = getColors();
+		int n = colors.length;
+		int[] weights = new int[n];
+		for (int i = 0; i < n; i++) weights[i] = getCount(colors[i]);
+		if (n == 0) return new int[0];
+		int[] boxLo = new int[maxColors];
+		int[] boxHi = new int[maxColors];
+		int[] boxAxis = new int[maxColors];
+		int[] boxRange = new int[maxColors];
+		int boxes = 1;
+		boxLo[0] = 0;
+		boxHi[0] = n;
+		measure(colors, 0, n, boxAxis, boxRange, 0);
+		while (boxes < maxColors) {
+			// Split the box with the widest range on any axis.
+			int best = -1, bestRange = 0;
+			for (int b = 0; b < boxes; b++) {
+				if (boxRange[b] > bestRange) {
+					best = b;
+					bestRange = boxRange[b];
+				}
+			}
+			if (best < 0) break;
+			int bestAxis = boxAxis[best];
+			int lo = boxLo[best], hi = boxHi[best];
+			sortByComponent(colors, weights, lo, hi, bestAxis);
+			// Split at the weighted median, leaving at least one color on each side.
+			long total = 0;
+			for (int i = lo; i < hi; i++) total += weights[i];
+			long acc = 0;
+			int mid = lo + 1;
+			for (int i = lo; i < hi - 1; i++) {
+				acc += weights[i];
+				mid = i + 1;
+				if (acc * 2 >= total) break;
+			}
+			boxHi[best] = mid;
+			boxLo[boxes] = mid;
+			boxHi[boxes] = hi;
+			measure(colors, lo, mid, boxAxis, boxRange, best);
+			measure(colors, mid, hi, boxAxis, boxRange, boxes);
+			boxes++;
+		}
+		int[] palette = new int[boxes];
+		for (int b = 0; b < boxes; b++) {
+			long r = 0, g = 0, bl = 0, w = 0;
+			for (int i = boxLo[b]; i < boxHi[b]; i++) {
+				long wi = weights[i];
+				r += ((colors[i] >> 16) & 0xFF) * wi;
+				g += ((colors[i] >> 8) & 0xFF) * wi;
+				bl += (colors[i] & 0xFF) * wi;
+				w += wi;
+				setValue(colors[i], b);
+			}
+			if (w == 0) w = 1;
+			palette[b] = (colors[boxLo[b]] & 0xFF000000)
+					| (int)((r + w/2) / w) << 16
+					| (int)((g + w/2) / w) << 8
+					| (int)((bl + w/2) / w);
+		}
+		return palette;
+	}
+	
+	private static void measure(int[] colors, int lo, int hi, int[] boxAxis, int[] boxRange, int b) {
+		int[] min = { 255, 255, 255 }, max = { 0, 0, 0 };
+		for (int i = lo; i < hi; i++) {
+			for (int a = 0; a < 3; a++) {
+				int v = component(colors[i], a);
+				if (v < min[a]) min[a] = v;
+				if (v > max[a]) max[a] = v;
+			}
+		}
+		boxAxis[b] = 0;
+		boxRange[b] = 0;
+		if (hi - lo < 2) return;
+		for (int a = 0; a < 3; a++) {
+			if (max[a] - min[a] > boxRange[b]) {
+				boxAxis[b] = a;
+				boxRange[b] = max[a] - min[a];
+			}
+		}
+	}
+	
+	private static int component(int color, int axis) {
+		return (color >> (16 - 8*axis)) & 0xFF;
+	}
+	
+	private static void sortByComponent(int[] colors, int[] weights, int lo, int hi, int axis) {
+		// Counting sort on one 8-bit component.
+		int[] start = new int[257];
+		for (int i = lo; i < hi; i++) start[component(colors[i], axis) + 1]++;
+		for (int v = 0; v < 256; v++) start[v + 1] += start[v];
+		int[] c = new int[hi - lo], w = new int[hi - lo];
+		for (int i = lo; i < hi; i++) {
+			int p = start[component(colors[i], axis)]++;
+			c[p] = colors[i];
+			w[p] = weights[i];
+		}
+		System.arraycopy(c, 0, colors, lo, c.length);
+		System.arraycopy(w, 0, weights, lo, w.length);
+	}
+}
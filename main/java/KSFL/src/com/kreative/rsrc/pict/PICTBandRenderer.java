@@ -0,0 +1,177 @@
+/*
+ * Copyright &copy; 2009-2011 Rebecca G. Bettencourt / Kreative Software
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License
+ * Version 1.1 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * <a href="http://www.mozilla.org/MPL/">http://www.mozilla.org/MPL/</a>
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * <p>
+ * Alternatively, the contents of this file may be used under the terms
+ * of the GNU Lesser General Public License (the "LGPL License"), in which
+ * case the provisions of LGPL License are applicable instead of those
+ * above. If you wish to allow use of your version of this file only
+ * under the terms of the LGPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the LGPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the LGPL License.
+ * @since KSFL 1.2
+ * @author Rebecca G. Bettencourt, Kreative Software
+ */
+
+package com.kreative.rsrc.pict;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Renders a parsed picture in horizontal bands on a fork/join pool.
+ * The instruction list is read once and then replayed in full for each band,
+ * each band drawing through its own <code>PICTGraphics</code> into the shared
+ * output image with a band clip. Every band draws in the same device space as
+ * a sequential render, so the output is identical to <code>toImage()</code>.
+ * Bitmaps are decoded once and shared between bands, and each band skips
+ * bitmaps that fall outside it.
+ * Pictures containing curved shapes are not split, since Java2D does not
+ * rasterize curves identically under different clips.
+ * @author Rebecca G. Bettencourt, Kreative Software
+ */
+public class PICTBandRenderer {
+	public static final int MIN_BAND_HEIGHT = 64;
+	
+	private static ForkJoinPool sharedPool = null;
+	
+	private static synchronized ForkJoinPool getSharedPool() {
+		if (sharedPool == null) sharedPool = new ForkJoinPool();
+		return sharedPool;
+	}
+	
+	private Rect bounds;
+	private List<PICTInstruction> instructions;
+	private boolean bandable;
+	
+	public PICTBandRenderer(PICTInputStream in) throws IOException {
+		in.readUnsignedShort();
+		bounds = in.readRect();
+		instructions = new ArrayList<PICTInstruction>();
+		while (true) {
+			PICTInstruction inst = in.readInstruction();
+			instructions.add(inst);
+			if (inst instanceof PICTInstruction.OpEndPic) break;
+		}
+		bandable = isBandable(instructions);
+	}
+	
+	public PICTBandRenderer(Rect bounds, List<PICTInstruction> instructions) {
+		this.bounds = bounds;
+		this.instructions = instructions;
+		this.bandable = isBandable(instructions);
+	}
+	
+	private static boolean isBandable(List<PICTInstruction> instructions) {
+		// Java2D flattens curves differently depending on the clip,
+		// so round rects, ovals, and arcs come out slightly different
+		// when drawn in bands. Pictures containing them are drawn whole.
+		for (PICTInstruction inst : instructions) {
+			if (inst.opcode >= PICTInstruction.FrameRRect.OPCODE && inst.opcode <= PICTInstruction.FillSameArc.OPCODE) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	public Rect getBounds() {
+		return bounds;
+	}
+	
+	public List<PICTInstruction> getInstructions() {
+		return Collections.unmodifiableList(instructions);
+	}
+	
+	public boolean isBandable() {
+		return bandable;
+	}
+	
+	public BufferedImage render() {
+		return render(getSharedPool());
+	}
+	
+	public BufferedImage render(ForkJoinPool pool) {
+		int height = bounds.bottom-bounds.top;
+		int bands = pool.getParallelism() * 4;
+		return render(pool, Math.max(MIN_BAND_HEIGHT, (height+bands-1)/bands));
+	}
+	
+	public BufferedImage render(ForkJoinPool pool, int bandHeight) {
+		int width = bounds.right-bounds.left;
+		int height = bounds.bottom-bounds.top;
+		BufferedImage bi = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		if (width > 0 && height > 0) {
+			if (!bandable || bandHeight >= height) {
+				renderBand(bi, 0, height);
+			} else {
+				Map<PICTGraphics.BitmapKey,BufferedImage> cache = new ConcurrentHashMap<PICTGraphics.BitmapKey,BufferedImage>();
+				pool.invoke(new BandTask(bi, 0, height, Math.max(1, bandHeight), cache));
+			}
+		}
+		return bi;
+	}
+	
+	public void renderBand(BufferedImage bi, int y, int h) {
+		renderBand(bi, y, h, null);
+	}
+	
+	private void renderBand(BufferedImage bi, int y, int h, Map<PICTGraphics.BitmapKey,BufferedImage> bitmapCache) {
+		Graphics2D bg = bi.createGraphics();
+		bg.translate(-bounds.left, -bounds.top);
+		PICTGraphics pg = new PICTGraphics(bg);
+		pg.bandClip = new Rectangle(bounds.left, bounds.top+y, bi.getWidth(), h);
+		pg.bitmapCache = bitmapCache;
+		for (PICTInstruction inst : instructions) {
+			pg.executeInstruction(inst);
+		}
+		bg.dispose();
+	}
+	
+	private class BandTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private BufferedImage bi;
+		private int y;
+		private int h;
+		private int bandHeight;
+		private Map<PICTGraphics.BitmapKey,BufferedImage> bitmapCache;
+		
+		public BandTask(BufferedImage bi, int y, int h, int bandHeight, Map<PICTGraphics.BitmapKey,BufferedImage> bitmapCache) {
+			this.bi = bi;
+			this.y = y;
+			this.h = h;
+			this.bandHeight = bandHeight;
+			this.bitmapCache = bitmapCache;
+		}
+		
+		protected void compute() {
+			if (h <= bandHeight) {
+				renderBand(bi, y, h, bitmapCache);
+			} else {
+				int bands = (h+bandHeight-1)/bandHeight;
+				int split = (bands/2)*bandHeight;
+				invokeAll(
+						new BandTask(bi, y, split, bandHeight, bitmapCache),
+						new BandTask(bi, y+split, h-split, bandHeight, bitmapCache)
+				);
+			}
+		}
+	}
+}
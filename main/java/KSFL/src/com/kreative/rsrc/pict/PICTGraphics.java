@@ -30,10 +30,18 @@ package com.kreative.rsrc.pict;
 import java.awt.*;
 import java.awt.geom.Area;
 import java.awt.image.BufferedImage;
+import java.util.Map;
+import com.kreative.rsrc.misc.PatternTileCache;
 
 public class PICTGraphics {
 	public Graphics2D graphics = null;
 	public Area clip = null;
+	public Shape bandClip = null;
+	// bitmaps decoded by the Bits, PackBits, and DirectBits opcodes, shared by
+	// every PICTGraphics drawing the same instructions (such as the bands of a
+	// PICTBandRenderer) so that each bitmap is decoded once; if null, bitmaps
+	// are decoded every time they are drawn
+	public Map<BitmapKey,BufferedImage> bitmapCache = null;
 	public int fgColor = 0xFF000000;
 	public int bgColor = 0xFFFFFFFF;
 	public boolean hiliteMode = false;
@@ -84,17 +92,7 @@ public class PICTGraphics {
 		else if (bgPPat != null) return bgPPat;
 		else if (bgPat == 0L) return new Color(bgColor);
 		else if (bgPat == -1L) return new Color(fgColor);
-		else {
-			BufferedImage bi = new BufferedImage(8, 8, BufferedImage.TYPE_INT_RGB);
-			long m = 0x8000000000000000L;
-			for (int y = 0; y < 8; y++) {
-				for (int x = 0; x < 8; x++) {
-					bi.setRGB(x, y, ((bgPat & m) == 0) ? bgColor : fgColor);
-					m >>>= 1L;
-				}
-			}
-			return new TexturePaint(bi, new Rectangle(0, 0, 8, 8));
-		}
+		else return PatternTileCache.getTexturePaint(bgPat, fgColor | 0xFF000000, bgColor | 0xFF000000);
 	}
 	
 	public Paint getPenPaint() {
@@ -102,17 +100,7 @@ public class PICTGraphics {
 		else if (penPPat != null) return penPPat;
 		else if (penPat == 0L) return new Color(bgColor);
 		else if (penPat == -1L) return new Color(fgColor);
-		else {
-			BufferedImage bi = new BufferedImage(8, 8, BufferedImage.TYPE_INT_RGB);
-			long m = 0x8000000000000000L;
-			for (int y = 0; y < 8; y++) {
-				for (int x = 0; x < 8; x++) {
-					bi.setRGB(x, y, ((penPat & m) == 0) ? bgColor : fgColor);
-					m >>>= 1L;
-				}
-			}
-			return new TexturePaint(bi, new Rectangle(0, 0, 8, 8));
-		}
+		else return PatternTileCache.getTexturePaint(penPat, fgColor | 0xFF000000, bgColor | 0xFF000000);
 	}
 	
 	public Paint getFillPaint() {
@@ -120,17 +108,7 @@ public class PICTGraphics {
 		else if (fillPPat != null) return fillPPat;
 		else if (fillPat == 0L) return new Color(bgColor);
 		else if (fillPat == -1L) return new Color(fgColor);
-		else {
-			BufferedImage bi = new BufferedImage(8, 8, BufferedImage.TYPE_INT_RGB);
-			long m = 0x8000000000000000L;
-			for (int y = 0; y < 8; y++) {
-				for (int x = 0; x < 8; x++) {
-					bi.setRGB(x, y, ((fillPat & m) == 0) ? bgColor : fgColor);
-					m >>>= 1L;
-				}
-			}
-			return new TexturePaint(bi, new Rectangle(0, 0, 8, 8));
-		}
+		else return PatternTileCache.getTexturePaint(fillPat, fgColor | 0xFF000000, bgColor | 0xFF000000);
 	}
 	
 	public Stroke getStroke() {
@@ -147,9 +125,60 @@ public class PICTGraphics {
 		}
 	}
 	
-	public void setBackgroundPaint(Graphics2D graphics, boolean fillMode) {
+	public static final class BitmapKey {
+		private final PICTInstruction inst;
+		private final int bg;
+		private final int fg;
+		public BitmapKey(PICTInstruction inst, int bg, int fg) {
+			this.inst = inst;
+			this.bg = bg;
+			this.fg = fg;
+		}
+		public boolean equals(Object o) {
+			if (o instanceof BitmapKey) {
+				BitmapKey k = (BitmapKey)o;
+				return inst == k.inst && bg == k.bg && fg == k.fg;
+			}
+			return false;
+		}
+		public int hashCode() {
+			return (System.identityHashCode(inst) * 31 + bg) * 31 + fg;
+		}
+	}
+	
+	// the image returned may be shared, so it must not be modified
+	private BufferedImage bitmapImage(PICTInstruction inst, PixMap pm, ColorTable ct, byte[] data) {
+		if (bitmapCache == null) return PICTUtilities.pixmapToImage(pm, ct, data, bgColor, fgColor, false, true);
+		BitmapKey k = new BitmapKey(inst, bgColor, fgColor);
+		// bands reaching the same bitmap at once wait for one decode
+		synchronized (inst) {
+			BufferedImage bi = bitmapCache.get(k);
+			if (bi == null) {
+				bi = PICTUtilities.pixmapToImage(pm, ct, data, bgColor, fgColor, false, true);
+				bitmapCache.put(k, bi);
+			}
+			return bi;
+		}
+	}
+	
+	// true if a bitmap drawn to dst would fall entirely outside the band being drawn
+	private boolean outsideBand(Rect dst) {
+		if (bandClip == null) return false;
+		int x = Math.min(dst.left, dst.right);
+		int y = Math.min(dst.top, dst.bottom);
+		return !bandClip.intersects(x, y, Math.abs(dst.right - dst.left), Math.abs(dst.bottom - dst.top));
+	}
+	
+	public void setClip(Graphics2D graphics) {
 		if (graphics != null) {
 			graphics.setClip(clip);
+			if (bandClip != null) graphics.clip(bandClip);
+		}
+	}
+	
+	public void setBackgroundPaint(Graphics2D graphics, boolean fillMode) {
+		if (graphics != null) {
+			setClip(graphics);
 			graphics.setPaintMode();
 			graphics.setPaint(getBackgroundPaint());
 			graphics.setStroke(fillMode ? new BasicStroke(0) : getStroke());
@@ -159,7 +188,7 @@ public class PICTGraphics {
 	
 	public void setPenPaint(Graphics2D graphics, boolean fillMode) {
 		if (graphics != null) {
-			graphics.setClip(clip);
+			setClip(graphics);
 			graphics.setPaintMode();
 			graphics.setPaint(getPenPaint());
 			graphics.setStroke(fillMode ? new BasicStroke(0) : getStroke());
@@ -169,7 +198,7 @@ public class PICTGraphics {
 	
 	public void setFillPaint(Graphics2D graphics, boolean fillMode) {
 		if (graphics != null) {
-			graphics.setClip(clip);
+			setClip(graphics);
 			graphics.setPaintMode();
 			graphics.setPaint(getFillPaint());
 			graphics.setStroke(fillMode ? new BasicStroke(0) : getStroke());
@@ -179,7 +208,7 @@ public class PICTGraphics {
 	
 	public void setInvertPaint(Graphics2D graphics, boolean fillMode) {
 		if (graphics != null) {
-			graphics.setClip(clip);
+			setClip(graphics);
 			graphics.setPaint(Color.white);
 			graphics.setXORMode(Color.black);
 			graphics.setStroke(fillMode ? new BasicStroke(0) : getStroke());
@@ -679,9 +708,10 @@ public class PICTGraphics {
 			if (graphics != null) {
 				setFillPaint(graphics, true);
 				PICTInstruction.BitsRect binst = (PICTInstruction.BitsRect)inst;
+				if (outsideBand(binst.dstRect)) break;
 				int bx = binst.pixMap.bounds.left;
 				int by = binst.pixMap.bounds.top;
-				BufferedImage bimg = PICTUtilities.pixmapToImage(binst.pixMap, binst.colorTable, binst.pixData, bgColor, fgColor, false, true);
+				BufferedImage bimg = bitmapImage(binst, binst.pixMap, binst.colorTable, binst.pixData);
 				graphics.drawImage(
 						bimg,
 						binst.dstRect.left, binst.dstRect.top,
@@ -696,10 +726,11 @@ public class PICTGraphics {
 			if (graphics != null) {
 				setFillPaint(graphics, true);
 				PICTInstruction.BitsRgn binst = (PICTInstruction.BitsRgn)inst;
+				if (outsideBand(binst.dstRect)) break;
 				graphics.clip(binst.maskRgn.toArea());
 				int bx = binst.pixMap.bounds.left;
 				int by = binst.pixMap.bounds.top;
-				BufferedImage bimg = PICTUtilities.pixmapToImage(binst.pixMap, binst.colorTable, binst.pixData, bgColor, fgColor, false, true);
+				BufferedImage bimg = bitmapImage(binst, binst.pixMap, binst.colorTable, binst.pixData);
 				graphics.drawImage(
 						bimg,
 						binst.dstRect.left, binst.dstRect.top,
@@ -714,9 +745,10 @@ public class PICTGraphics {
 			if (graphics != null) {
 				setFillPaint(graphics, true);
 				PICTInstruction.PackBitsRect binst = (PICTInstruction.PackBitsRect)inst;
+				if (outsideBand(binst.dstRect)) break;
 				int bx = binst.pixMap.bounds.left;
 				int by = binst.pixMap.bounds.top;
-				BufferedImage bimg = PICTUtilities.pixmapToImage(binst.pixMap, binst.colorTable, binst.pixData, bgColor, fgColor, false, true);
+				BufferedImage bimg = bitmapImage(binst, binst.pixMap, binst.colorTable, binst.pixData);
 				graphics.drawImage(
 						bimg,
 						binst.dstRect.left, binst.dstRect.top,
@@ -731,10 +763,11 @@ public class PICTGraphics {
 			if (graphics != null) {
 				setFillPaint(graphics, true);
 				PICTInstruction.PackBitsRgn binst = (PICTInstruction.PackBitsRgn)inst;
+				if (outsideBand(binst.dstRect)) break;
 				graphics.clip(binst.maskRgn.toArea());
 				int bx = binst.pixMap.bounds.left;
 				int by = binst.pixMap.bounds.top;
-				BufferedImage bimg = PICTUtilities.pixmapToImage(binst.pixMap, binst.colorTable, binst.pixData, bgColor, fgColor, false, true);
+				BufferedImage bimg = bitmapImage(binst, binst.pixMap, binst.colorTable, binst.pixData);
 				graphics.drawImage(
 						bimg,
 						binst.dstRect.left, binst.dstRect.top,
@@ -749,9 +782,10 @@ public class PICTGraphics {
 			if (graphics != null) {
 				setFillPaint(graphics, true);
 				PICTInstruction.DirectBitsRect binst = (PICTInstruction.DirectBitsRect)inst;
+				if (outsideBand(binst.dstRect)) break;
 				int bx = binst.pixMap.bounds.left;
 				int by = binst.pixMap.bounds.top;
-				BufferedImage bimg = PICTUtilities.pixmapToImage(binst.pixMap, null, binst.pixData, bgColor, fgColor, false, true);
+				BufferedImage bimg = bitmapImage(binst, binst.pixMap, null, binst.pixData);
 				graphics.drawImage(
 						bimg,
 						binst.dstRect.left, binst.dstRect.top,
@@ -766,10 +800,11 @@ public class PICTGraphics {
 			if (graphics != null) {
 				setFillPaint(graphics, true);
 				PICTInstruction.DirectBitsRgn binst = (PICTInstruction.DirectBitsRgn)inst;
+				if (outsideBand(binst.dstRect)) break;
 				graphics.clip(binst.maskRgn.toArea());
 				int bx = binst.pixMap.bounds.left;
 				int by = binst.pixMap.bounds.top;
-				BufferedImage bimg = PICTUtilities.pixmapToImage(binst.pixMap, null, binst.pixData, bgColor, fgColor, false, true);
+				BufferedImage bimg = bitmapImage(binst, binst.pixMap, null, binst.pixData);
 				graphics.drawImage(
 						bimg,
 						binst.dstRect.left, binst.dstRect.top,
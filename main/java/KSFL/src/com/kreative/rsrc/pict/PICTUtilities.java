@@ -170,158 +170,25 @@ public class PICTUtilities {
 	}
 	
 	public static PICTInstruction makeBitsRect(int x, int y, BufferedImage img, int matte, float hRes, float vRes) {
+		return makeBitsRect(x, y, img, matte, hRes, vRes, false);
+	}
+	
+	public static PICTInstruction makeBitsRect(int x, int y, BufferedImage img, int matte, float hRes, float vRes, boolean quantize) {
 		int w = img.getWidth();
 		int h = img.getHeight();
-		int[] pixels = new int[w*h];
-		img.getRGB(0, 0, w, h, pixels, 0, w);
-		Set<Integer> colors = new HashSet<Integer>();
-		for (int i = 0; i < pixels.length; i++) {
-			if (pixels[i] >= 0) {
-				pixels[i] = matte | 0xFF000000;
-			} else {
-				pixels[i] |= 0xFF000000;
-			}
-			colors.add(pixels[i] | 0xFF000000);
-		}
-		if (colors.size() <= 256) {
+		int[] pixels = getMattedPixels(img, matte);
+		ColorHistogram hist = new ColorHistogram();
+		hist.addAll(pixels, 0, pixels.length);
+		ColorTable ct = makeColorTable(hist, quantize);
+		if (ct != null) {
 			// indexed
-			PixMap pm = new PixMap();
-			pm.baseAddr = 0;
-			pm.rowBytes = w | 0x8000; while ((pm.rowBytes & 3) != 0) pm.rowBytes++;
-			pm.bounds = new Rect(x, y, w, h);
-			pm.pmVersion = 0;
-			pm.packType = PixMap.PACK_TYPE_PACKBITS;
-			pm.packSize = 0;
-			pm.hRes = hRes;
-			pm.vRes = vRes;
-			pm.pixelType = PixMap.PIXEL_TYPE_INDEXED;
-			pm.pixelSize = PixMap.PIXEL_SIZE_8BIT;
-			pm.cmpCount = PixMap.COMPONENT_COUNT_INDEXED;
-			pm.cmpSize = PixMap.COMPONENT_SIZE_8BIT;
-			pm.planeBytes = 0;
-			pm.pmTable = 0;
-			pm.pmReserved = 0;
-			ColorTable ct = new ColorTable();
-			ct.ctSeed = 0;
-			ct.ctFlags = 0;
-			ct.ctSize = colors.size()-1;
-			Integer[] ca = colors.toArray(new Integer[0]);
-			Arrays.sort(ca, new Comparator<Integer>() {
-				public int compare(Integer o1, Integer o2) {
-					return o2.compareTo(o1);
-				}
-			});
-			for (int c : ca) {
-				ct.ctTable.add(new ColorSpec(c));
-			}
-			BufferedImage pdi = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_INDEXED, ct.toIndexColorModel(8));
-			pdi.setRGB(0, 0, w, h, pixels, 0, w);
-			byte[] pddata = ((DataBufferByte)pdi.getData().getDataBuffer()).getData();
-			ByteArrayOutputStream pdb = new ByteArrayOutputStream();
-			DataOutputStream pdd = new DataOutputStream(pdb);
-			try {
-				byte[] pdscanline = new byte[(pm.rowBytes & 0x7FFF)];
-				if ((pm.rowBytes & 0x7FFF) < 8) {
-					for (int ly = 0, pddy = 0; ly < h; ly++, pddy += w) {
-						for (int lx = 0, pddx = pddy; lx < w; lx++, pddx++) {
-							pdscanline[lx] = pddata[pddx];
-						}
-						pdd.write(pdscanline);
-					}
-				} else if ((pm.rowBytes & 0x7FFF) > 250) {
-					for (int ly = 0, pddy = 0; ly < h; ly++, pddy += w) {
-						for (int lx = 0, pddx = pddy; lx < w; lx++, pddx++) {
-							pdscanline[lx] = pddata[pddx];
-						}
-						byte[] csl = packBits(pdscanline);
-						pdd.writeShort(csl.length);
-						pdd.write(csl);
-					}
-				} else {
-					for (int ly = 0, pddy = 0; ly < h; ly++, pddy += w) {
-						for (int lx = 0, pddx = pddy; lx < w; lx++, pddx++) {
-							pdscanline[lx] = pddata[pddx];
-						}
-						byte[] csl = packBits(pdscanline);
-						pdd.writeByte(csl.length);
-						pdd.write(csl);
-					}
-				}
-				pdd.close();
-				pdb.close();
-			} catch (IOException ex) {}
-			byte[] pd = pdb.toByteArray();
+			PixMap pm = makeIndexedPixMap(x, y, w, h, hRes, vRes);
+			byte[] pd = packIndexed(hist.mapAll(pixels, 0, pixels.length), w, h, pm.rowBytes & 0x7FFF);
 			return new PICTInstruction.PackBitsRect(pm, ct, pm.bounds, pm.bounds, PICTInstruction.ModeConstants.SRC_COPY, pd);
 		} else {
 			// rgb
-			PixMap pm = new PixMap();
-			pm.baseAddr = 0;
-			pm.rowBytes = (w*4) | 0x8000;
-			pm.bounds = new Rect(x, y, w, h);
-			pm.pmVersion = 0;
-			pm.packType = PixMap.PACK_TYPE_BY_COMPONENT;
-			pm.packSize = 0;
-			pm.hRes = hRes;
-			pm.vRes = vRes;
-			pm.pixelType = PixMap.PIXEL_TYPE_RGBDIRECT;
-			pm.pixelSize = PixMap.PIXEL_SIZE_32BIT;
-			pm.cmpCount = PixMap.COMPONENT_COUNT_RGB;
-			pm.cmpSize = PixMap.COMPONENT_SIZE_32BIT;
-			pm.planeBytes = 0;
-			pm.pmTable = 0;
-			pm.pmReserved = 0;
-			ByteArrayOutputStream pdb = new ByteArrayOutputStream();
-			DataOutputStream pdd = new DataOutputStream(pdb);
-			try {
-				byte[] pdscanline = new byte[w*3];
-				if ((pm.rowBytes & 0x7FFF) < 8) {
-					for (int ly = 0, pddy = 0; ly < h; ly++, pddy += w) {
-						for (int lx = 0, pddx = pddy; lx < w; lx++, pddx++) {
-							pdscanline[lx] = (byte)((pixels[pddx] >>> 16) & 0xFF);
-						}
-						for (int lx = 0, pddx = pddy; lx < w; lx++, pddx++) {
-							pdscanline[lx+w] = (byte)((pixels[pddx] >>> 8) & 0xFF);
-						}
-						for (int lx = 0, pddx = pddy; lx < w; lx++, pddx++) {
-							pdscanline[lx+w+w] = (byte)((pixels[pddx] >>> 0) & 0xFF);
-						}
-						pdd.write(pdscanline);
-					}
-				} else if ((pm.rowBytes & 0x7FFF) > 250) {
-					for (int ly = 0, pddy = 0; ly < h; ly++, pddy += w) {
-						for (int lx = 0, pddx = pddy; lx < w; lx++, pddx++) {
-							pdscanline[lx] = (byte)((pixels[pddx] >>> 16) & 0xFF);
-						}
-						for (int lx = 0, pddx = pddy; lx < w; lx++, pddx++) {
-							pdscanline[lx+w] = (byte)((pixels[pddx] >>> 8) & 0xFF);
-						}
-						for (int lx = 0, pddx = pddy; lx < w; lx++, pddx++) {
-							pdscanline[lx+w+w] = (byte)((pixels[pddx] >>> 0) & 0xFF);
-						}
-						byte[] csl = packBits(pdscanline);
-						pdd.writeShort(csl.length);
-						pdd.write(csl);
-					}
-				} else {
-					for (int ly = 0, pddy = 0; ly < h; ly++, pddy += w) {
-						for (int lx = 0, pddx = pddy; lx < w; lx++, pddx++) {
-							pdscanline[lx] = (byte)((pixels[pddx] >>> 16) & 0xFF);
-						}
-						for (int lx = 0, pddx = pddy; lx < w; lx++, pddx++) {
-							pdscanline[lx+w] = (byte)((pixels[pddx] >>> 8) & 0xFF);
-						}
-						for (int lx = 0, pddx = pddy; lx < w; lx++, pddx++) {
-							pdscanline[lx+w+w] = (byte)((pixels[pddx] >>> 0) & 0xFF);
-						}
-						byte[] csl = packBits(pdscanline);
-						pdd.writeByte(csl.length);
-						pdd.write(csl);
-					}
-				}
-				pdd.close();
-				pdb.close();
-			} catch (IOException ex) {}
-			byte[] pd = pdb.toByteArray();
+			PixMap pm = makeDirectPixMap(x, y, w, h, hRes, vRes);
+			byte[] pd = packDirect(pixels, w, h, pm.rowBytes & 0x7FFF);
 			pm.packSize = pd.length;
 			return new PICTInstruction.DirectBitsRect(pm, pm.bounds, pm.bounds, PICTInstruction.ModeConstants.SRC_COPY, pd);
 		}
@@ -333,6 +200,47 @@ public class PICTUtilities {
 		int[] pixels = new int[w*h];
 		img.getRGB(0, 0, w, h, pixels, 0, w);
 		Region rgn = Region.fromAlpha(x, y, w, h, pixels, 0, w);
+		matte(pixels, matte);
+		PixMap pm = makeDirectPixMap(x, y, w, h, hRes, vRes);
+		byte[] pd = packDirect(pixels, w, h, pm.rowBytes & 0x7FFF);
+		pm.packSize = pd.length;
+		return new PICTInstruction.DirectBitsRgn(pm, pm.bounds, pm.bounds, PICTInstruction.ModeConstants.SRC_COPY, rgn, pd);
+	}
+	
+	public static PICTInstruction makeBitsRgn(int x, int y, BufferedImage img, int matte, float hRes, float vRes, boolean quantize) {
+		int w = img.getWidth();
+		int h = img.getHeight();
+		int[] pixels = new int[w*h];
+		img.getRGB(0, 0, w, h, pixels, 0, w);
+		Region rgn = Region.fromAlpha(x, y, w, h, pixels, 0, w);
+		matte(pixels, matte);
+		ColorHistogram hist = new ColorHistogram();
+		hist.addAll(pixels, 0, pixels.length);
+		ColorTable ct = makeColorTable(hist, quantize);
+		if (ct != null) {
+			// indexed
+			PixMap pm = makeIndexedPixMap(x, y, w, h, hRes, vRes);
+			byte[] pd = packIndexed(hist.mapAll(pixels, 0, pixels.length), w, h, pm.rowBytes & 0x7FFF);
+			return new PICTInstruction.PackBitsRgn(pm, ct, pm.bounds, pm.bounds, PICTInstruction.ModeConstants.SRC_COPY, rgn, pd);
+		} else {
+			// rgb
+			PixMap pm = makeDirectPixMap(x, y, w, h, hRes, vRes);
+			byte[] pd = packDirect(pixels, w, h, pm.rowBytes & 0x7FFF);
+			pm.packSize = pd.length;
+			return new PICTInstruction.DirectBitsRgn(pm, pm.bounds, pm.bounds, PICTInstruction.ModeConstants.SRC_COPY, rgn, pd);
+		}
+	}
+	
+	private static int[] getMattedPixels(BufferedImage img, int matte) {
+		int w = img.getWidth();
+		int h = img.getHeight();
+		int[] pixels = new int[w*h];
+		img.getRGB(0, 0, w, h, pixels, 0, w);
+		matte(pixels, matte);
+		return pixels;
+	}
+	
+	private static void matte(int[] pixels, int matte) {
 		for (int i = 0; i < pixels.length; i++) {
 			if (pixels[i] >= 0) {
 				pixels[i] = matte | 0xFF000000;
@@ -340,6 +248,57 @@ public class PICTUtilities {
 				pixels[i] |= 0xFF000000;
 			}
 		}
+	}
+	
+	// Returns the color table for an indexed pixel map and sets the value of each
+	// color in the histogram to its index, or returns null if there are more than
+	// 256 colors and quantize is false.
+	private static ColorTable makeColorTable(ColorHistogram hist, boolean quantize) {
+		int[] ca;
+		if (hist.size() <= 256) {
+			ca = hist.getColors();
+			// sort in descending order
+			Arrays.sort(ca);
+			for (int i = 0, j = ca.length-1; i < j; i++, j--) {
+				int t = ca[i]; ca[i] = ca[j]; ca[j] = t;
+			}
+			for (int i = 0; i < ca.length; i++) hist.setValue(ca[i], i);
+		} else if (quantize) {
+			ca = hist.quantize(256);
+		} else {
+			return null;
+		}
+		ColorTable ct = new ColorTable();
+		ct.ctSeed = 0;
+		ct.ctFlags = 0;
+		ct.ctSize = ca.length-1;
+		for (int c : ca) {
+			ct.ctTable.add(new ColorSpec(c));
+		}
+		return ct;
+	}
+	
+	private static PixMap makeIndexedPixMap(int x, int y, int w, int h, float hRes, float vRes) {
+		PixMap pm = new PixMap();
+		pm.baseAddr = 0;
+		pm.rowBytes = w | 0x8000; while ((pm.rowBytes & 3) != 0) pm.rowBytes++;
+		pm.bounds = new Rect(x, y, w, h);
+		pm.pmVersion = 0;
+		pm.packType = PixMap.PACK_TYPE_PACKBITS;
+		pm.packSize = 0;
+		pm.hRes = hRes;
+		pm.vRes = vRes;
+		pm.pixelType = PixMap.PIXEL_TYPE_INDEXED;
+		pm.pixelSize = PixMap.PIXEL_SIZE_8BIT;
+		pm.cmpCount = PixMap.COMPONENT_COUNT_INDEXED;
+		pm.cmpSize = PixMap.COMPONENT_SIZE_8BIT;
+		pm.planeBytes = 0;
+		pm.pmTable = 0;
+		pm.pmReserved = 0;
+		return pm;
+	}
+	
+	private static PixMap makeDirectPixMap(int x, int y, int w, int h, float hRes, float vRes) {
 		PixMap pm = new PixMap();
 		pm.baseAddr = 0;
 		pm.rowBytes = (w*4) | 0x8000;
@@ -356,60 +315,55 @@ public class PICTUtilities {
 		pm.planeBytes = 0;
 		pm.pmTable = 0;
 		pm.pmReserved = 0;
+		return pm;
+	}
+	
+	private static byte[] packIndexed(byte[] pddata, int w, int h, int rowBytes) {
 		ByteArrayOutputStream pdb = new ByteArrayOutputStream();
 		DataOutputStream pdd = new DataOutputStream(pdb);
 		try {
-			byte[] pdscanline = new byte[w*3];
-			if ((pm.rowBytes & 0x7FFF) < 8) {
-				for (int ly = 0, pddy = 0; ly < h; ly++, pddy += w) {
-					for (int lx = 0, pddx = pddy; lx < w; lx++, pddx++) {
-						pdscanline[lx] = (byte)((pixels[pddx] >>> 16) & 0xFF);
-					}
-					for (int lx = 0, pddx = pddy; lx < w; lx++, pddx++) {
-						pdscanline[lx+w] = (byte)((pixels[pddx] >>> 8) & 0xFF);
-					}
-					for (int lx = 0, pddx = pddy; lx < w; lx++, pddx++) {
-						pdscanline[lx+w+w] = (byte)((pixels[pddx] >>> 0) & 0xFF);
-					}
+			byte[] pdscanline = new byte[rowBytes];
+			for (int ly = 0, pddy = 0; ly < h; ly++, pddy += w) {
+				System.arraycopy(pddata, pddy, pdscanline, 0, w);
+				if (rowBytes < 8) {
 					pdd.write(pdscanline);
-				}
-			} else if ((pm.rowBytes & 0x7FFF) > 250) {
-				for (int ly = 0, pddy = 0; ly < h; ly++, pddy += w) {
-					for (int lx = 0, pddx = pddy; lx < w; lx++, pddx++) {
-						pdscanline[lx] = (byte)((pixels[pddx] >>> 16) & 0xFF);
-					}
-					for (int lx = 0, pddx = pddy; lx < w; lx++, pddx++) {
-						pdscanline[lx+w] = (byte)((pixels[pddx] >>> 8) & 0xFF);
-					}
-					for (int lx = 0, pddx = pddy; lx < w; lx++, pddx++) {
-						pdscanline[lx+w+w] = (byte)((pixels[pddx] >>> 0) & 0xFF);
-					}
+				} else {
 					byte[] csl = packBits(pdscanline);
-					pdd.writeShort(csl.length);
+					if (rowBytes > 250) pdd.writeShort(csl.length);
+					else pdd.writeByte(csl.length);
 					pdd.write(csl);
 				}
-			} else {
-				for (int ly = 0, pddy = 0; ly < h; ly++, pddy += w) {
-					for (int lx = 0, pddx = pddy; lx < w; lx++, pddx++) {
-						pdscanline[lx] = (byte)((pixels[pddx] >>> 16) & 0xFF);
-					}
-					for (int lx = 0, pddx = pddy; lx < w; lx++, pddx++) {
-						pdscanline[lx+w] = (byte)((pixels[pddx] >>> 8) & 0xFF);
-					}
-					for (int lx = 0, pddx = pddy; lx < w; lx++, pddx++) {
-						pdscanline[lx+w+w] = (byte)((pixels[pddx] >>> 0) & 0xFF);
-					}
+			}
+			pdd.close();
+			pdb.close();
+		} catch (IOException ex) {}
+		return pdb.toByteArray();
+	}
+	
+	private static byte[] packDirect(int[] pixels, int w, int h, int rowBytes) {
+		ByteArrayOutputStream pdb = new ByteArrayOutputStream();
+		DataOutputStream pdd = new DataOutputStream(pdb);
+		try {
+			byte[] pdscanline = new byte[w*3];
+			for (int ly = 0, pddy = 0; ly < h; ly++, pddy += w) {
+				for (int lx = 0, pddx = pddy; lx < w; lx++, pddx++) {
+					pdscanline[lx] = (byte)((pixels[pddx] >>> 16) & 0xFF);
+					pdscanline[lx+w] = (byte)((pixels[pddx] >>> 8) & 0xFF);
+					pdscanline[lx+w+w] = (byte)((pixels[pddx] >>> 0) & 0xFF);
+				}
+				if (rowBytes < 8) {
+					pdd.write(pdscanline);
+				} else {
 					byte[] csl = packBits(pdscanline);
-					pdd.writeByte(csl.length);
+					if (rowBytes > 250) pdd.writeShort(csl.length);
+					else pdd.writeByte(csl.length);
 					pdd.write(csl);
 				}
 			}
 			pdd.close();
 			pdb.close();
 		} catch (IOException ex) {}
-		byte[] pd = pdb.toByteArray();
-		pm.packSize = pd.length;
-		return new PICTInstruction.DirectBitsRgn(pm, pm.bounds, pm.bounds, PICTInstruction.ModeConstants.SRC_COPY, rgn, pd);
+		return pdb.toByteArray();
 	}
 	
 	public static BufferedImage pixmapToImage(PixMap pm, ColorTable ct, byte[] data, int bg, int fg, boolean pixpat, boolean packed) {
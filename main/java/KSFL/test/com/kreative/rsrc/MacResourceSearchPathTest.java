@@ -0,0 +1,102 @@
+/*
+ * Copyright &copy; 2009-2011 Rebecca G. Bettencourt / Kreative Software
+ * <p>
+ * The contents of this file are subject to the Mozilla Public License
+ * Version 1.1 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * <a href="http://www.mozilla.org/MPL/">http://www.mozilla.org/MPL/</a>
+ * <p>
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * <p>
+ * Alternatively, the contents of this file may be used under the terms
+ * of the GNU Lesser General Public License (the "LGPL License"), in which
+ * case the provisions of LGPL License are applicable instead of those
+ * above. If you wish to allow use of your version of this file only
+ * under the terms of the LGPL License and not to allow others to use
+ * your version of this file under the MPL, indicate your decision by
+ * deleting the provisions above and replace them with the notice and
+ * other provisions required by the LGPL License. If you do not delete
+ * the provisions above, a recipient may use your version of this file
+ * under either the MPL or the LGPL License.
+ * @since KSFL 1.2
+ * @author Rebecca G. Bettencourt, Kreative Software
+ */
+
+package com.kreative.rsrc;
+
+import java.util.Iterator;
+
+/**
+ * Checks that a search path inside another search path keeps the outer
+ * search path's merged index current. Run with <code>make test</code>.
+ * @since KSFL 1.2
+ * @author Rebecca G. Bettencourt, Kreative Software
+ */
+public class MacResourceSearchPathTest {
+	private static final int TYPE = 0x54455354;
+	private static int failures = 0;
+	
+	public static void main(String[] args) throws Exception {
+		MacResourceArray a = new MacResourceArray();
+		a.add(new MacResource(TYPE, (short)128, "a", new byte[]{1}));
+		MacResourceArray bs = new MacResourceArray();
+		bs.add(new MacResource(TYPE, (short)129, "b", new byte[]{2}));
+		// loaded rather than built, so its modification count is zero
+		MacResourceArray b = new MacResourceArray(bs.getBytes());
+		
+		MacResourceSearchPath inner = new MacResourceSearchPath();
+		inner.add(a);
+		MacResourceSearchPath outer = new MacResourceSearchPath();
+		outer.add(inner);
+		
+		check("initial contains", outer.contains(TYPE, (short)128));
+		check("initial missing", !outer.contains(TYPE, (short)129));
+		
+		long c = outer.getModificationCount();
+		inner.pushProvider(b);
+		check("count after push", outer.getModificationCount() != c);
+		check("contains after push", outer.contains(TYPE, (short)129));
+		check("get after push", outer.get(TYPE, (short)129) != null);
+		check("find by name after push", outer.contains(TYPE, "b"));
+		
+		c = outer.getModificationCount();
+		inner.setCurrentProvider(1);
+		check("count after setCurrentProvider", outer.getModificationCount() != c);
+		check("missing after setCurrentProvider", !outer.contains(TYPE, (short)129));
+		check("contains after setCurrentProvider", outer.contains(TYPE, (short)128));
+		
+		inner.setCurrentProvider(0);
+		check("contains after reset", outer.contains(TYPE, (short)129));
+		c = outer.getModificationCount();
+		Iterator<MacResourceProvider> it = inner.iterator();
+		it.next();
+		it.remove();
+		check("count after iterator remove", outer.getModificationCount() != c);
+		check("missing after iterator remove", !outer.contains(TYPE, (short)129));
+		
+		c = outer.getModificationCount();
+		check("count stable", outer.getModificationCount() == c);
+		a.add(new MacResource(TYPE, (short)130, "c", new byte[]{3}));
+		check("contains after provider change", outer.contains(TYPE, (short)130));
+		
+		c = outer.getModificationCount();
+		inner.invalidateIndex();
+		check("count after invalidateIndex", outer.getModificationCount() != c);
+		
+		if (failures > 0) {
+			System.out.println(failures + " check(s) failed");
+			System.exit(1);
+		}
+		System.out.println("All checks passed");
+	}
+	
+	private static void check(String what, boolean ok) {
+		if (!ok) {
+			System.out.println("FAILED: " + what);
+			failures++;
+		}
+	}
+}